@@ -0,0 +1,163 @@
+package nl.weeaboo.lua2.aot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.compiler.DumpState;
+import nl.weeaboo.lua2.compiler.LuaC;
+import nl.weeaboo.lua2.interpreter.AotCompiler;
+import nl.weeaboo.lua2.interpreter.CompiledChunk;
+import nl.weeaboo.lua2.lib.PackageLib;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Ahead-of-time compiler for Lua files to Java classes, the class file equivalent of {@code LC}.
+ * <p>
+ * Compiles all {@code .lua} files in a source folder. For each file it writes a chunk class named after the file
+ * (see {@link PackageLib#toClassname(String)}), the binary chunk, and the classes of the compiled functions. It
+ * also writes a manifest ({@link CompiledChunk#MANIFEST_PATH}) which lets {@code dofile}, {@code loadfile} and
+ * {@code require} use the compiled chunks instead of the sources.
+ */
+public final class LuaClassCompiler {
+
+    private static final String USAGE = "usage: java -cp luajpp2-aot.jar " + LuaClassCompiler.class.getName()
+            + " [options] sourceDir outputDir\n"
+            + "Available options are:\n"
+            + "  -s       strip debug information\n";
+
+    private final File sourceDir;
+    private final File outputDir;
+    private boolean stripDebug;
+
+    public LuaClassCompiler(File sourceDir, File outputDir) {
+        this.sourceDir = sourceDir;
+        this.outputDir = outputDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        boolean strip = false;
+        for (String arg : args) {
+            if (arg.equals("-s")) {
+                strip = true;
+            } else if (arg.startsWith("-")) {
+                usageExit();
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.size() != 2) {
+            usageExit();
+        }
+
+        LuaClassCompiler compiler = new LuaClassCompiler(new File(paths.get(0)), new File(paths.get(1)));
+        compiler.setStripDebug(strip);
+        compiler.compileAll();
+    }
+
+    private static void usageExit() {
+        System.out.println(USAGE);
+        System.exit(1);
+    }
+
+    public void setStripDebug(boolean strip) {
+        stripDebug = strip;
+    }
+
+    /**
+     * Compiles all Lua files in the source folder, and writes the manifest.
+     *
+     * @throws IOException If a file can't be read or written. Syntax errors are also reported this way.
+     */
+    public void compileAll() throws IOException {
+        List<String> filenames = new ArrayList<String>();
+        findLuaFiles(sourceDir, "", filenames);
+        Collections.sort(filenames);
+
+        Properties manifest = new Properties();
+        LuaRunState lrs = new LuaRunState();
+        try {
+            for (String filename : filenames) {
+                System.out.println("Compiling Lua: " + filename);
+                manifest.setProperty(filename, compile(filename));
+            }
+        } finally {
+            lrs.destroy();
+        }
+
+        writeManifest(manifest);
+    }
+
+    /**
+     * @param filename Path of the Lua file, relative to the source folder.
+     * @return The name of the generated chunk class.
+     */
+    public String compile(String filename) throws IOException {
+        // Use the same chunk name as a script loaded from the classpath, so error messages match
+        Prototype chunk;
+        InputStream in = new FileInputStream(new File(sourceDir, filename));
+        try {
+            chunk = LuaC.compile(in, "@/" + filename);
+        } finally {
+            in.close();
+        }
+
+        String className = PackageLib.toClassname(filename);
+        for (Map.Entry<String, byte[]> entry : AotCompiler.compile(chunk, className).entrySet()) {
+            write(entry.getKey().replace('.', '/') + ".class", entry.getValue());
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DumpState.dump(chunk, bout, stripDebug);
+        write(AotCompiler.getBinaryChunkPath(className), bout.toByteArray());
+        return className;
+    }
+
+    private static void findLuaFiles(File dir, String prefix, List<String> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findLuaFiles(file, prefix + file.getName() + "/", out);
+            } else if (file.getName().endsWith(".lua")) {
+                out.add(prefix + file.getName());
+            }
+        }
+    }
+
+    private void writeManifest(Properties manifest) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        manifest.store(bout, "Generated by " + LuaClassCompiler.class.getSimpleName());
+        write(CompiledChunk.MANIFEST_PATH, bout.toByteArray());
+    }
+
+    private void write(String relativePath, byte[] bytes) throws IOException {
+        File file = new File(outputDir, relativePath);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create folder: " + parent);
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+}
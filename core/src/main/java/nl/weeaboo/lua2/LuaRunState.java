@@ -25,6 +25,7 @@ import nl.weeaboo.lua2.link.ILuaLink;
 import nl.weeaboo.lua2.link.LuaFunctionLink;
 import nl.weeaboo.lua2.luajava.LuajavaLib;
 import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaError;
 import nl.weeaboo.lua2.vm.LuaTable;
 import nl.weeaboo.lua2.vm.LuaThread;
@@ -36,6 +37,23 @@ public final class LuaRunState implements Serializable, IDestructible, LuaResour
     private static final long serialVersionUID = 1L;
     private static final Logger LOG = LoggerFactory.getLogger(DestructibleElemList.class);
 
+    /**
+     * What happens when a thread exceeds its instruction count limit.
+     *
+     * @see LuaRunState#setInstructionLimitAction(InstructionLimitAction)
+     */
+    public enum InstructionLimitAction {
+        /** Raise an error in the running thread. */
+        ERROR,
+
+        /**
+         * Suspend the running thread, it continues where it left off during the next {@link LuaRunState#update()}.
+         * Threads that can't be suspended (the main thread, coroutines and functions called from Java) raise an
+         * error instead.
+         */
+        SUSPEND;
+    }
+
 	private static ThreadLocal<LuaRunState> threadInstance = new ThreadLocal<LuaRunState>();
 
     private final PackageLib packageLib;
@@ -45,12 +63,13 @@ public final class LuaRunState implements Serializable, IDestructible, LuaResour
 
     private boolean destroyed;
     private int instructionCountLimit = 1000000;
+    private InstructionLimitAction instructionLimitAction = InstructionLimitAction.ERROR;
 
     private LuaResourceFinder resourceFinder = new ClassLoaderResourceFinder();
 
     private transient ILuaLink current;
 	private transient LuaThread currentThread;
-	private transient int instructionCount;
+	private transient int instructionBudget;
 
 	public LuaRunState() {
 		registerOnThread();
@@ -157,14 +176,34 @@ public final class LuaRunState implements Serializable, IDestructible, LuaResour
 		return changed;
 	}
 
-    /**
-     * @param pc The current program counter
-     */
-	public void onInstruction(int pc) throws LuaError {
-		instructionCount++;
-		if (currentThread != null && instructionCount > instructionCountLimit) {
-			throw new LuaError("Lua thread instruction limit exceeded (is there an infinite loop somewhere)?");
+	/**
+	 * Called by the interpreter for every backward jump and function call, which together bound the number of
+	 * instructions that can run in between.
+	 *
+	 * @return {@code false} if the running thread has used up its instruction budget. The interpreter must then
+	 *         call {@link #onInstructionBudgetExhausted(LuaThread)}.
+	 */
+	public boolean consumeInstructionBudget() {
+		return --instructionBudget >= 0;
+	}
+
+	/**
+	 * Raises an error or suspends the thread, depending on the {@link #getInstructionLimitAction()}.
+	 *
+	 * @throws LuaError If the thread can't be suspended.
+	 */
+	public void onInstructionBudgetExhausted(LuaThread thread) throws LuaError {
+		if (currentThread == null || !hasInstructionCountLimit()) {
+			instructionBudget = instructionCountLimit;
+			return;
 		}
+
+		if (instructionLimitAction == InstructionLimitAction.SUSPEND && thread.isSuspendable()) {
+			LOG.trace("Instruction limit reached, suspending thread: {}", thread);
+			thread.yield(LuaConstants.NONE);
+			return;
+		}
+		throw new LuaError("Lua thread instruction limit exceeded (is there an infinite loop somewhere)?");
 	}
 
 	public static LuaRunState getCurrent() {
@@ -200,8 +239,35 @@ public final class LuaRunState implements Serializable, IDestructible, LuaResour
 		return instructionCountLimit;
 	}
 
+	/**
+	 * @param lim The maximum number of backward jumps and function calls a thread may perform each time it's
+	 *        resumed. Use {@link Integer#MAX_VALUE} for no limit.
+	 * @see #setInstructionLimitAction(InstructionLimitAction)
+	 */
 	public void setInstructionCountLimit(int lim) {
 		instructionCountLimit = lim;
+		instructionBudget = lim;
+	}
+
+	public InstructionLimitAction getInstructionLimitAction() {
+		return instructionLimitAction;
+	}
+
+	/**
+	 * Determines what happens when a thread exceeds the instruction count limit. The default is to raise an error.
+	 *
+	 * @see #setInstructionCountLimit(int)
+	 */
+	public void setInstructionLimitAction(InstructionLimitAction action) {
+		instructionLimitAction = action;
+	}
+
+	/**
+	 * @return {@code false} if the instruction count limit is disabled.
+	 * @see #setInstructionCountLimit(int)
+	 */
+	public boolean hasInstructionCountLimit() {
+		return instructionCountLimit != Integer.MAX_VALUE;
 	}
 
     public void setCurrentLink(ILuaLink cur) {
@@ -218,8 +284,11 @@ public final class LuaRunState implements Serializable, IDestructible, LuaResour
 			return;
 		}
 
+		if (currentThread == null || currentThread == mainThread) {
+			// The budget is shared by the resumed thread and any coroutines it resumes in turn
+			instructionBudget = instructionCountLimit;
+		}
 		currentThread = t;
-		instructionCount = 0;
         LOG.trace("Set running thread: {}", t);
 	}
 
@@ -0,0 +1,229 @@
+package nl.weeaboo.lua2.compiler;
+
+import static nl.weeaboo.lua2.vm.Lua.GETARG_A;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_B;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_Bx;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_C;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_sBx;
+import static nl.weeaboo.lua2.vm.Lua.GET_OPCODE;
+import static nl.weeaboo.lua2.vm.Lua.INDEXK;
+import static nl.weeaboo.lua2.vm.Lua.ISK;
+
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.LuaConstants;
+import nl.weeaboo.lua2.vm.LuaError;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Structural checks for the bytecode of precompiled chunks, based on {@code luaG_checkcode} from Lua 5.1.
+ * <p>
+ * The interpreter doesn't check its program counter, register or constant indices while running. Code
+ * produced by {@link LuaC} is correct by construction, this verifier rejects binary chunks that would make the
+ * interpreter jump outside the code array or touch registers outside the function's stack frame.
+ */
+final class BytecodeVerifier {
+
+    /** Maximum number of registers of a Lua function */
+    private static final int MAXSTACK = 250;
+
+    private final Prototype p;
+
+    private BytecodeVerifier(Prototype p) {
+        this.p = p;
+    }
+
+    /**
+     * Verifies the code of a single function prototype. Nested prototypes aren't checked.
+     *
+     * @throws LuaError If the code is invalid.
+     */
+    public static void verify(Prototype p) {
+        new BytecodeVerifier(p).verify();
+    }
+
+    private void verify() {
+        final int[] code = p.code;
+
+        check(p.maxstacksize <= MAXSTACK, -1, "stack too large");
+        check(p.numparams + (p.is_vararg & Lua.VARARG_HASARG) <= p.maxstacksize, -1, "too many parameters");
+        check(p.lineinfo == null || p.lineinfo.length == 0 || p.lineinfo.length == code.length, -1,
+                "line info size doesn't match code size");
+        check(code.length > 0 && GET_OPCODE(code[code.length - 1]) == Lua.OP_RETURN, code.length - 1,
+                "missing final return");
+
+        for (int pc = 0; pc < code.length; pc++) {
+            final int i = code[pc];
+            final int op = GET_OPCODE(i);
+            final int a = GETARG_A(i);
+            int b = 0;
+            int c = 0;
+
+            check(op < Lua.NUM_OPCODES, pc, "invalid opcode");
+            checkRegister(a, pc);
+
+            switch (Lua.getOpMode(op)) {
+            case Lua.iABC:
+                b = GETARG_B(i);
+                c = GETARG_C(i);
+                checkArg(b, Lua.getBMode(op), pc);
+                checkArg(c, Lua.getCMode(op), pc);
+                break;
+            case Lua.iABx:
+                b = GETARG_Bx(i);
+                if (Lua.getBMode(op) == Lua.OpArgK) {
+                    check(b < p.k.length, pc, "constant index out of range");
+                }
+                break;
+            case Lua.iAsBx:
+                b = GETARG_sBx(i);
+                if (Lua.getBMode(op) == Lua.OpArgR) {
+                    checkJump(pc + 1 + b, pc);
+                }
+                break;
+            }
+
+            if (Lua.testTMode(op)) {
+                check(pc + 2 < code.length, pc, "conditional at end of code");
+                check(GET_OPCODE(code[pc + 1]) == Lua.OP_JMP, pc, "conditional not followed by a jump");
+            }
+
+            switch (op) {
+            case Lua.OP_LOADBOOL:
+                if (c != 0) {
+                    check(pc + 2 < code.length, pc, "skip past end of code");
+                    checkNotSetListCount(code[pc + 1], pc);
+                }
+                break;
+            case Lua.OP_GETUPVAL:
+            case Lua.OP_SETUPVAL:
+                check(b < p.nups, pc, "upvalue index out of range");
+                break;
+            case Lua.OP_GETGLOBAL:
+            case Lua.OP_SETGLOBAL:
+                check(p.k[b].type() == LuaConstants.TSTRING, pc, "global name isn't a string");
+                break;
+            case Lua.OP_SELF:
+                checkRegister(a + 1, pc);
+                break;
+            case Lua.OP_CONCAT:
+                check(b < c, pc, "invalid concat range");
+                break;
+            case Lua.OP_TFORLOOP:
+                check(c >= 1, pc, "missing loop variables");
+                checkRegister(a + 2 + c, pc);
+                break;
+            case Lua.OP_FORLOOP:
+            case Lua.OP_FORPREP:
+                checkRegister(a + 3, pc);
+                break;
+            case Lua.OP_CALL:
+            case Lua.OP_TAILCALL:
+                if (b != 0) {
+                    checkRegister(a + b - 1, pc);
+                }
+                if (c == 0) {
+                    checkOpenOp(pc);
+                } else if (c > 1) {
+                    checkRegister(a + c - 2, pc);
+                }
+                break;
+            case Lua.OP_RETURN:
+                if (b > 1) {
+                    checkRegister(a + b - 2, pc);
+                }
+                break;
+            case Lua.OP_SETLIST:
+                if (b > 0) {
+                    checkRegister(a + b, pc);
+                }
+                if (c == 0) {
+                    // The next instruction holds the block number
+                    pc++;
+                    check(pc < code.length - 1, pc, "missing setlist count");
+                }
+                break;
+            case Lua.OP_CLOSURE: {
+                check(b < p.p.length, pc, "prototype index out of range");
+                int nup = p.p[b].nups;
+                check(pc + nup < code.length, pc, "missing upvalue instructions");
+                for (int j = 1; j <= nup; j++) {
+                    int op1 = GET_OPCODE(code[pc + j]);
+                    check(op1 == Lua.OP_GETUPVAL || op1 == Lua.OP_MOVE, pc + j, "invalid upvalue instruction");
+                }
+                break;
+            }
+            case Lua.OP_VARARG:
+                check((p.is_vararg & Lua.VARARG_ISVARARG) != 0 && (p.is_vararg & Lua.VARARG_NEEDSARG) == 0, pc,
+                        "vararg in non-vararg function");
+                if (b == 0) {
+                    checkOpenOp(pc);
+                } else {
+                    checkRegister(a + b - 2, pc);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private void checkArg(int r, int mode, int pc) {
+        switch (mode) {
+        case Lua.OpArgN:
+            check(r == 0, pc, "unused argument must be zero");
+            break;
+        case Lua.OpArgR:
+            checkRegister(r, pc);
+            break;
+        case Lua.OpArgK:
+            if (ISK(r)) {
+                check(INDEXK(r) < p.k.length, pc, "constant index out of range");
+            } else {
+                checkRegister(r, pc);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void checkRegister(int r, int pc) {
+        check(r < p.maxstacksize, pc, "register index out of range");
+    }
+
+    private void checkJump(int dest, int pc) {
+        check(dest >= 0 && dest < p.code.length, pc, "jump target out of range");
+        if (dest > 0) {
+            checkNotSetListCount(p.code[dest - 1], pc);
+        }
+    }
+
+    /** Jumps can't land on the extra word holding the block number of a SETLIST instruction */
+    private void checkNotSetListCount(int prev, int pc) {
+        check(GET_OPCODE(prev) != Lua.OP_SETLIST || GETARG_C(prev) != 0, pc, "jump into setlist count");
+    }
+
+    /** Instructions producing a variable number of results must be followed by one consuming them */
+    private void checkOpenOp(int pc) {
+        check(pc + 1 < p.code.length, pc, "open call at end of code");
+        int next = p.code[pc + 1];
+        switch (GET_OPCODE(next)) {
+        case Lua.OP_CALL:
+        case Lua.OP_TAILCALL:
+        case Lua.OP_RETURN:
+        case Lua.OP_SETLIST:
+            check(GETARG_B(next) == 0, pc, "open call not followed by a multi-value instruction");
+            break;
+        default:
+            check(false, pc, "open call not followed by a multi-value instruction");
+        }
+    }
+
+    private void check(boolean condition, int pc, String message) {
+        if (!condition) {
+            throw new LuaError("bad code in precompiled chunk (" + message + " at pc " + pc + " in "
+                    + p.source + ":" + p.linedefined + ")");
+        }
+    }
+
+}
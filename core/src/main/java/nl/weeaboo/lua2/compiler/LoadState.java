@@ -335,6 +335,7 @@ public class LoadState {
         f.code = loadIntArray();
         loadConstants(f);
         loadDebug(f);
+        BytecodeVerifier.verify(f);
         return f;
     }
 
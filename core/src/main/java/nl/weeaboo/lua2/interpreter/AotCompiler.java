@@ -0,0 +1,100 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.weeaboo.lua2.interpreter.ClassFileWriter.Code;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Compiles Lua chunks to JVM classes ahead of time. This generates a {@link CompiledChunk} subclass for the
+ * chunk, and a {@link CompiledFunction} subclass for every function in the chunk that can be compiled (see
+ * {@link JitCompiler}).
+ * <p>
+ * The binary chunk (see {@link nl.weeaboo.lua2.compiler.DumpState}) must be stored next to the chunk class, it
+ * contains the constants and the code used by the interpreter for the parts that aren't compiled.
+ */
+public final class AotCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AotCompiler.class);
+
+    private static final String COMPILED_CHUNK = "nl/weeaboo/lua2/interpreter/CompiledChunk";
+
+    private AotCompiler() {
+    }
+
+    /**
+     * @param className Binary name of the chunk class, for example {@code "dir.script"}.
+     * @return The generated class files, indexed by binary class name.
+     */
+    public static Map<String, byte[]> compile(Prototype chunk, String className) {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        result.put(className, generateChunkClass(toInternalName(className)));
+
+        List<Prototype> functions = listFunctions(chunk);
+        for (int n = 0; n < functions.size(); n++) {
+            Prototype p = functions.get(n);
+            String functionClassName = getFunctionClassName(className, n);
+            try {
+                byte[] classBytes = JitCompiler.generateClass(p, toInternalName(functionClassName));
+                if (classBytes != null) {
+                    result.put(functionClassName, classBytes);
+                }
+            } catch (RuntimeException e) {
+                // The function stays interpreted
+                LOG.warn("Unable to compile function: {}", p, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The path of the binary chunk resource belonging to a chunk class, relative to the classpath root.
+     */
+    public static String getBinaryChunkPath(String className) {
+        return toInternalName(className) + ".luac";
+    }
+
+    /**
+     * @return All functions in the chunk, depth first. The index of a function in this list determines the name
+     *         of its compiled class.
+     */
+    static List<Prototype> listFunctions(Prototype chunk) {
+        List<Prototype> result = new ArrayList<Prototype>();
+        addFunctions(result, chunk);
+        return result;
+    }
+
+    private static void addFunctions(List<Prototype> out, Prototype p) {
+        out.add(p);
+        for (Prototype child : p.p) {
+            addFunctions(out, child);
+        }
+    }
+
+    static String getFunctionClassName(String chunkClassName, int functionIndex) {
+        return chunkClassName + "$F" + functionIndex;
+    }
+
+    private static String toInternalName(String className) {
+        return className.replace('.', '/');
+    }
+
+    private static byte[] generateChunkClass(String internalName) {
+        ClassFileWriter cw = new ClassFileWriter(internalName, COMPILED_CHUNK);
+
+        Code init = new Code();
+        init.aload(0);
+        init.op(Code.INVOKESPECIAL, cw.methodRef(COMPILED_CHUNK, "<init>", "()V"));
+        init.op(Code.RETURN);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+
+        return cw.toByteArray();
+    }
+
+}
@@ -0,0 +1,363 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files, just enough for the classes generated by {@link JitCompiler}.
+ * <p>
+ * Classes are written as class file version 49 (Java 5). That version doesn't need {@code StackMapTable}
+ * attributes, the JVM verifies it using type inference instead.
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final String className;
+    private final String superName;
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * @param className Internal name of the class, for example {@code "nl/weeaboo/Example"}.
+     * @param superName Internal name of the super class.
+     */
+    public ClassFileWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    /**
+     * Adds a method to the class.
+     *
+     * @param maxStack Maximum depth of the operand stack.
+     * @param maxLocals Number of local variables, including {@code this} and the parameters.
+     */
+    public void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        byte[] bytecode = code.toByteArray();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // attributes_count
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0); // exception_table_length
+            out.writeShort(0); // attributes_count
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+        methods.add(bout.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        final int thisIndex = classRef(className);
+        final int superIndex = classRef(superName);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // interfaces_count
+            out.writeShort(0); // fields_count
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes_count
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+        return bout.toByteArray();
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolIndices.get(key);
+        if (index == null) {
+            try {
+                pool.writeByte(CONSTANT_UTF8);
+                pool.writeUTF(value);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    /** Double constant, for use with {@code LDC2_W} */
+    int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndices.get(key);
+        if (index == null) {
+            try {
+                pool.writeByte(CONSTANT_DOUBLE);
+                pool.writeDouble(value);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            index = addConstant(key);
+            addConstant(key + "+"); // Doubles take up two entries
+        }
+        return index;
+    }
+
+    int classRef(String internalName) {
+        return addRef("C" + internalName, CONSTANT_CLASS, utf8(internalName), -1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return addRef("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF, classRef(owner),
+                nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return addRef("M" + owner + "." + name + descriptor, CONSTANT_METHODREF, classRef(owner),
+                nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return addRef("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    }
+
+    /**
+     * @param second Second index, or {@code -1} for constants consisting of a single index.
+     */
+    private int addRef(String key, int tag, int first, int second) {
+        Integer index = poolIndices.get(key);
+        if (index == null) {
+            try {
+                pool.writeByte(tag);
+                pool.writeShort(first);
+                if (second >= 0) {
+                    pool.writeShort(second);
+                }
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    private int addConstant(String key) {
+        int index = poolCount++;
+        if (index >= 0xFFFF) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    /** Jump target within a {@link Code} block */
+    static final class Label {
+        int position = -1;
+    }
+
+    /** Bytecode of a single method */
+    static final class Code {
+
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int DCONST_0 = 0x0e;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int DLOAD = 0x18;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int DSTORE = 0x39;
+        static final int ASTORE = 0x3a;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int IADD = 0x60;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DNEG = 0x77;
+        static final int DCMPG = 0x98;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IFLT = 0x9b;
+        static final int IFGE = 0x9c;
+        static final int IFGT = 0x9d;
+        static final int IFLE = 0x9e;
+        static final int GOTO = 0xa7;
+        static final int TABLESWITCH = 0xaa;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int NEW = 0xbb;
+        static final int INSTANCEOF = 0xc1;
+        static final int IFNULL = 0xc6;
+        static final int IFNONNULL = 0xc7;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /** Pairs of (position of the offset, position of the instruction) */
+        private final List<int[]> fixups = new ArrayList<int[]>();
+        private final List<Label> fixupLabels = new ArrayList<Label>();
+
+        public int size() {
+            return bytes.size();
+        }
+
+        public void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        /** Instruction with a 16-bit constant pool index */
+        public void op(int opcode, int poolIndex) {
+            bytes.write(opcode);
+            u2(poolIndex);
+        }
+
+        public void aload(int local) {
+            bytes.write(ALOAD);
+            bytes.write(local);
+        }
+
+        public void astore(int local) {
+            bytes.write(ASTORE);
+            bytes.write(local);
+        }
+
+        public void iload(int local) {
+            bytes.write(ILOAD);
+            bytes.write(local);
+        }
+
+        public void dload(int local) {
+            bytes.write(DLOAD);
+            bytes.write(local);
+        }
+
+        public void dstore(int local) {
+            bytes.write(DSTORE);
+            bytes.write(local);
+        }
+
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                u2(value);
+            } else {
+                throw new IllegalArgumentException("Value out of range: " + value);
+            }
+        }
+
+        public void mark(Label label) {
+            label.position = bytes.size();
+        }
+
+        /** Writes a branch instruction with a 16-bit offset */
+        public void jump(int opcode, Label target) {
+            int start = bytes.size();
+            bytes.write(opcode);
+            addFixup(start, target);
+            u2(0);
+        }
+
+        public void tableswitch(int low, Label defaultLabel, Label[] labels) {
+            int start = bytes.size();
+            bytes.write(TABLESWITCH);
+            while (bytes.size() % 4 != 0) {
+                bytes.write(0);
+            }
+            addFixup(start, defaultLabel);
+            u4(0);
+            u4(low);
+            u4(low + labels.length - 1);
+            for (Label label : labels) {
+                addFixup(start, label);
+                u4(0);
+            }
+        }
+
+        private void addFixup(int instructionStart, Label label) {
+            fixups.add(new int[] { bytes.size(), instructionStart });
+            fixupLabels.add(label);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = bytes.toByteArray();
+            for (int n = 0; n < fixups.size(); n++) {
+                int[] fixup = fixups.get(n);
+                Label label = fixupLabels.get(n);
+                if (label.position < 0) {
+                    throw new IllegalStateException("Unmarked label");
+                }
+
+                int offset = label.position - fixup[1];
+                int pos = fixup[0];
+                if (result[fixup[1]] == (byte)TABLESWITCH) {
+                    result[pos++] = (byte)(offset >> 24);
+                    result[pos++] = (byte)(offset >> 16);
+                } else if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Jump offset out of range: " + offset);
+                }
+                result[pos++] = (byte)(offset >> 8);
+                result[pos] = (byte)offset;
+            }
+            return result;
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+    }
+
+}
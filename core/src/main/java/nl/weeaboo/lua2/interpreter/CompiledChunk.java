@@ -0,0 +1,192 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.io.IReadResolveSerializable;
+import nl.weeaboo.lua2.io.IWriteReplaceSerializable;
+import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.lib.VarArgFunction;
+import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaError;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Prototype;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Base class of the chunk classes generated by {@link AotCompiler}. A chunk class has a public no-arg
+ * constructor, so it can be loaded through the java loader of {@code require}. Calling it runs the main function
+ * of the chunk.
+ * <p>
+ * The functions in the chunk run as regular {@link LuaClosure}s, using the precompiled {@link CompiledFunction}
+ * classes where available. Compiled functions return to the interpreter for calls and yields, so threads running
+ * precompiled code can be suspended and serialized like any other thread. After deserialization these functions
+ * are interpreted, until they're compiled again by the {@link JitCompiler}.
+ */
+@LuaSerializable
+public abstract class CompiledChunk extends VarArgFunction implements IWriteReplaceSerializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Classpath resource listing the chunks compiled by the ahead-of-time compiler, a properties file which maps
+     * source file names (relative to the classpath root) to chunk class names.
+     */
+    public static final String MANIFEST_PATH = "META-INF/luajpp2/compiled-chunks.properties";
+
+    private static Properties manifest;
+
+    private transient Prototype prototype;
+
+    protected CompiledChunk() {
+    }
+
+    @Override
+    public Varargs invoke(Varargs args) {
+        return newClosure().invoke(args);
+    }
+
+    /**
+     * @return A new closure for the main function of the chunk, using the environment of this object.
+     */
+    public LuaClosure newClosure() {
+        if (prototype == null) {
+            prototype = loadPrototype(getClass());
+        }
+        return new LuaClosure(prototype, env);
+    }
+
+    @Override
+    public Object writeReplace() throws ObjectStreamException {
+        return new CompiledChunkRef(getClass().getName(), env);
+    }
+
+    @Override
+    public String toString() {
+        return "compiled chunk: " + getClass().getName();
+    }
+
+    /**
+     * Loads the compiled version of a script, if the script is listed in the manifest.
+     *
+     * @return A closure for the main function of the script, or {@code null} if the script wasn't compiled ahead
+     *         of time.
+     * @throws LuaError If the script is listed in the manifest, but the compiled chunk can't be loaded.
+     * @see #MANIFEST_PATH
+     */
+    public static LuaClosure load(String filename, LuaValue env) {
+        Properties manifest = getManifest();
+        if (manifest.isEmpty()) {
+            return null;
+        }
+
+        String className = manifest.getProperty(filename.startsWith("/") ? filename.substring(1) : filename);
+        if (className == null) {
+            return null;
+        }
+
+        CompiledChunk chunk = newInstance(CompiledChunk.class.getClassLoader(), className);
+        chunk.setfenv(env);
+        return chunk.newClosure();
+    }
+
+    private static synchronized Properties getManifest() {
+        if (manifest == null) {
+            manifest = readManifest(CompiledChunk.class.getClassLoader());
+        }
+        return manifest;
+    }
+
+    /** Combines the manifests of all classpath entries */
+    static Properties readManifest(ClassLoader classLoader) {
+        Properties result = new Properties();
+        try {
+            Enumeration<URL> urls = classLoader.getResources(MANIFEST_PATH);
+            while (urls.hasMoreElements()) {
+                InputStream in = urls.nextElement().openStream();
+                try {
+                    result.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException ioe) {
+            throw new LuaError("Error reading " + MANIFEST_PATH, ioe);
+        }
+        return result;
+    }
+
+    static CompiledChunk newInstance(ClassLoader classLoader, String className) {
+        try {
+            Class<?> chunkClass = Class.forName(className, true, classLoader);
+            return (CompiledChunk)chunkClass.newInstance();
+        } catch (Exception e) {
+            throw new LuaError("Unable to load compiled chunk: " + className, e);
+        }
+    }
+
+    private static Prototype loadPrototype(Class<?> chunkClass) {
+        String className = chunkClass.getName();
+        Prototype chunk;
+        try {
+            InputStream in = chunkClass.getResourceAsStream("/" + AotCompiler.getBinaryChunkPath(className));
+            if (in == null) {
+                throw new LuaError("Binary chunk not found for compiled chunk: " + className);
+            }
+            try {
+                chunk = LoadState.loadBinaryChunk(in.read(), in, "=" + className);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new LuaError("Error loading compiled chunk: " + className, ioe);
+        }
+
+        // Functions without a compiled class are interpreted
+        List<Prototype> functions = AotCompiler.listFunctions(chunk);
+        for (int n = 0; n < functions.size(); n++) {
+            Prototype p = functions.get(n);
+            String functionClassName = AotCompiler.getFunctionClassName(className, n);
+            try {
+                Class<?> functionClass = Class.forName(functionClassName, true, chunkClass.getClassLoader());
+                Constructor<?> constructor = functionClass.getConstructor(Prototype.class);
+                p.setCompiledFunction((CompiledFunction)constructor.newInstance(p));
+            } catch (ClassNotFoundException cnfe) {
+                // Not compiled
+            } catch (Exception e) {
+                throw new LuaError("Error loading compiled function: " + functionClassName, e);
+            }
+        }
+        return chunk;
+    }
+
+    @LuaSerializable
+    private static final class CompiledChunkRef implements IReadResolveSerializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String className;
+        private final LuaValue env;
+
+        public CompiledChunkRef(String className, LuaValue env) {
+            this.className = className;
+            this.env = env;
+        }
+
+        @Override
+        public Object readResolve() throws ObjectStreamException {
+            CompiledChunk chunk = newInstance(CompiledChunk.class.getClassLoader(), className);
+            chunk.setfenv(env);
+            return chunk;
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package nl.weeaboo.lua2.interpreter;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Base class of the JVM classes generated by {@link JitCompiler}. A compiled function executes the same code as
+ * the interpreter, on the registers of the interpreter's {@link StackFrame}. It doesn't keep any state of its
+ * own, so the interpreter can take over at any instruction boundary.
+ * <p>
+ * Instructions that call functions, return, or otherwise touch the call stack aren't compiled. The compiled
+ * function returns to the interpreter when it reaches one of them, and the interpreter calls it again with the
+ * program counter of the next instruction. Because of this, yields, coroutines and serialization always happen
+ * while the interpreter is in control.
+ * <p>
+ * Only meant to be subclassed by generated code.
+ */
+public abstract class CompiledFunction {
+
+    protected final Prototype p;
+    protected final LuaValue[] k;
+
+    protected CompiledFunction(Prototype p) {
+        this.p = p;
+        this.k = p.k;
+    }
+
+    /**
+     * Executes instructions starting at {@code pc}.
+     *
+     * @return The program counter of the first instruction that must be executed by the interpreter. When the
+     *         instruction budget of the running thread is exhausted, the bitwise complement of the program
+     *         counter ({@code ~pc}) is returned instead.
+     * @see LuaRunState#consumeInstructionBudget()
+     */
+    public abstract int execute(LuaRunState lrs, StackFrame sf, LuaClosure closure, LuaValue[] stack, int base,
+            int pc);
+
+}
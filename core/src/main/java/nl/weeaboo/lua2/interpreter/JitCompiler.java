@@ -0,0 +1,830 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.AALOAD;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.AASTORE;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.ACONST_NULL;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DADD;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DCMPG;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DCONST_0;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DMUL;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DNEG;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DSUB;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.DUP;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.GETFIELD;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.GETSTATIC;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.GOTO;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IADD;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFEQ;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFGE;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFGT;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFLE;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFLT;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFNE;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IFNONNULL;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.INSTANCEOF;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.INVOKESPECIAL;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.INVOKESTATIC;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.INVOKEVIRTUAL;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.IRETURN;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.LDC2_W;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.NEW;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.POP;
+import static nl.weeaboo.lua2.interpreter.ClassFileWriter.Code.RETURN;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_A;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_B;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_Bx;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_C;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_sBx;
+import static nl.weeaboo.lua2.vm.Lua.GET_OPCODE;
+import static nl.weeaboo.lua2.vm.Lua.INDEXK;
+import static nl.weeaboo.lua2.vm.Lua.ISK;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.weeaboo.lua2.interpreter.ClassFileWriter.Code;
+import nl.weeaboo.lua2.interpreter.ClassFileWriter.Label;
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.LuaNumber;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Compiles frequently executed functions to JVM classes. This is the last tier of execution: functions start
+ * out interpreted (using quickened code, see {@link Quickener}), and are compiled once the number of calls plus
+ * loop iterations reaches {@link #COMPILE_THRESHOLD}.
+ * <p>
+ * The generated code has an entry point for every instruction, and returns to the interpreter for instructions
+ * that aren't compiled (see {@link CompiledFunction}). Functions for which that would happen too often, or
+ * which would result in methods too large for HotSpot to compile, stay interpreted.
+ * <p>
+ * Intermediate results of arithmetic expressions are kept unboxed, in a local {@code double} of the generated
+ * method. This applies to results which are only used by the next instruction, and only if that's an arithmetic
+ * instruction or comparison (see {@link RegisterLiveness}). The register of such a result is never written.
+ */
+public final class JitCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JitCompiler.class);
+
+    /** Number of calls plus loop iterations after which a function is compiled. */
+    public static final int COMPILE_THRESHOLD = 1000;
+
+    /** HotSpot doesn't compile methods with more bytecode than this, so they'd run slower than interpreted */
+    private static final int MAX_METHOD_SIZE = 8000;
+
+    private static final String PACKAGE = "nl/weeaboo/lua2/jit/";
+    private static final String COMPILED_FUNCTION = "nl/weeaboo/lua2/interpreter/CompiledFunction";
+    private static final String JIT_RUNTIME = "nl/weeaboo/lua2/interpreter/JitRuntime";
+    private static final String STACK_FRAME = "nl/weeaboo/lua2/interpreter/StackFrame";
+    private static final String LUA_RUN_STATE = "nl/weeaboo/lua2/LuaRunState";
+    private static final String INDEX_CACHE = "nl/weeaboo/lua2/vm/IndexCache";
+    private static final String LUA_BOOLEAN = "nl/weeaboo/lua2/vm/LuaBoolean";
+    private static final String LUA_CLOSURE = "nl/weeaboo/lua2/vm/LuaClosure";
+    private static final String LUA_DOUBLE = "nl/weeaboo/lua2/vm/LuaDouble";
+    private static final String LUA_NIL = "nl/weeaboo/lua2/vm/LuaNil";
+    private static final String LUA_NUMBER = "nl/weeaboo/lua2/vm/LuaNumber";
+    private static final String LUA_TABLE = "nl/weeaboo/lua2/vm/LuaTable";
+    private static final String LUA_VALUE = "nl/weeaboo/lua2/vm/LuaValue";
+    private static final String MATH_LIB = "nl/weeaboo/lua2/lib/MathLib";
+    private static final String PROTOTYPE = "nl/weeaboo/lua2/vm/Prototype";
+    private static final String UP_VALUE = "nl/weeaboo/lua2/vm/UpValue";
+
+    private static final String LV = "L" + LUA_VALUE + ";";
+    private static final String BINARY_OP = "(" + LV + LV + ")" + LV;
+    private static final String COMPARE_OP = "(" + LV + LV + ")Z";
+    private static final String DOUBLE_OP = "(DD)D";
+    private static final String BOX_DOUBLE = "(D)L" + LUA_NUMBER + ";";
+
+    // Local variable slots of CompiledFunction.execute()
+    private static final int LOCAL_LRS = 1;
+    private static final int LOCAL_SF = 2;
+    private static final int LOCAL_CLOSURE = 3;
+    private static final int LOCAL_STACK = 4;
+    private static final int LOCAL_BASE = 5;
+    private static final int LOCAL_PC = 6;
+    private static final int LOCAL_TEMP = 7;
+    /** Unboxed arithmetic result, only valid while {@link #LOCAL_BOXED} is {@code null} (takes two slots) */
+    private static final int LOCAL_NUMBER = 8;
+    /** Arithmetic result of the slow path, used when the operands aren't numbers */
+    private static final int LOCAL_BOXED = 10;
+    private static final int MAX_LOCALS = 11;
+    private static final int MAX_STACK = 12;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    private static volatile boolean enabled = true;
+
+    private final Prototype p;
+    private final ClassFileWriter cw;
+    private final Code code = new Code();
+    private final Label[] labels;
+    private final RegisterLiveness liveness;
+    private final boolean[] unboxedResult;
+
+    private JitCompiler(Prototype p, String className) {
+        this.p = p;
+        this.cw = new ClassFileWriter(className, COMPILED_FUNCTION);
+
+        liveness = RegisterLiveness.analyze(p);
+        unboxedResult = new boolean[p.code.length];
+        for (int pc = 0; pc < unboxedResult.length; pc++) {
+            unboxedResult[pc] = isUnboxedResult(pc);
+        }
+
+        labels = new Label[p.code.length];
+        for (int pc = 0; pc < labels.length; pc++) {
+            labels[pc] = new Label();
+        }
+    }
+
+    /**
+     * Enables or disables compilation. Already compiled functions keep using their compiled code.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Compiles the function, and stores the result in the prototype. Functions that are already compiled (for
+     * example ahead of time, see {@link AotCompiler}) aren't compiled again.
+     *
+     * @return The compiled function, or {@code null} if the function can't be compiled or the JIT compiler is
+     *         disabled.
+     * @see Prototype#getCompiledFunction()
+     */
+    public static CompiledFunction compile(Prototype p) {
+        CompiledFunction result = p.getCompiledFunction();
+        if (result != null || !enabled) {
+            return result;
+        }
+
+        String className = PACKAGE + "CompiledFunction" + classCounter.incrementAndGet();
+        try {
+            byte[] classBytes = generateClass(p, className);
+            if (classBytes != null) {
+                JitClassLoader loader = new JitClassLoader();
+                Class<?> clazz = loader.define(className.replace('/', '.'), classBytes);
+                result = (CompiledFunction)clazz.getConstructor(Prototype.class).newInstance(p);
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to compile function: {}", p, e);
+        } catch (LinkageError e) {
+            LOG.warn("Unable to compile function: {}", p, e);
+        }
+
+        p.setCompiledFunction(result);
+        LOG.trace("Compiled function: {} -> {}", p, result);
+        return result;
+    }
+
+    /**
+     * Generates the class file of a compiled function. The class has a public constructor taking the
+     * {@link Prototype} as its only parameter.
+     *
+     * @param className Internal name of the generated class.
+     * @return The class file, or {@code null} if the function can't be compiled.
+     */
+    static byte[] generateClass(Prototype p, String className) {
+        if (!isWorthCompiling(p)) {
+            return null;
+        }
+        return new JitCompiler(p, className).generate();
+    }
+
+    /**
+     * Compiled code only helps if it can run for a while before returning to the interpreter.
+     */
+    static boolean isWorthCompiling(Prototype p) {
+        int compiled = 0;
+        for (int i : p.code) {
+            if (isCompiled(i)) {
+                compiled++;
+            }
+        }
+        return compiled * 2 >= p.code.length;
+    }
+
+    private static boolean isCompiled(int i) {
+        switch (GET_OPCODE(i)) {
+        case Lua.OP_CALL:
+        case Lua.OP_TAILCALL:
+        case Lua.OP_RETURN:
+        case Lua.OP_TFORLOOP:
+        case Lua.OP_SETLIST:
+        case Lua.OP_CLOSE:
+        case Lua.OP_CLOSURE:
+        case Lua.OP_VARARG:
+            return false;
+        case Lua.OP_CONCAT:
+            return GETARG_C(i) == GETARG_B(i) + 1;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return The class file, or {@code null} if the generated code is too large.
+     */
+    private byte[] generate() {
+        generateConstructor();
+
+        code.op(DCONST_0);
+        code.dstore(LOCAL_NUMBER);
+        code.op(ACONST_NULL);
+        code.astore(LOCAL_BOXED);
+
+        // Start executing at the requested instruction. Instructions that use an unboxed result can't be entered
+        // directly, the interpreter executes them using the value in the register.
+        Label exit = new Label();
+        Label[] entryPoints = labels.clone();
+        for (int pc = 1; pc < entryPoints.length; pc++) {
+            if (unboxedResult[pc - 1]) {
+                entryPoints[pc] = exit;
+            }
+        }
+        code.iload(LOCAL_PC);
+        code.tableswitch(0, exit, entryPoints);
+        code.mark(exit);
+        code.iload(LOCAL_PC);
+        code.op(IRETURN);
+
+        final int[] instructions = p.code;
+        for (int pc = 0; pc < instructions.length; pc++) {
+            final int i = instructions[pc];
+            code.mark(labels[pc]);
+            if (!generateInstruction(pc, i)) {
+                return null;
+            }
+
+            // Skip pseudo-instructions, the interpreter never continues at them
+            int skip = 0;
+            if (GET_OPCODE(i) == Lua.OP_SETLIST && GETARG_C(i) == 0) {
+                skip = 1;
+            } else if (GET_OPCODE(i) == Lua.OP_CLOSURE) {
+                skip = p.p[GETARG_Bx(i)].nups;
+            }
+            for (; skip > 0 && pc + 1 < instructions.length; skip--) {
+                pc++;
+                code.mark(labels[pc]);
+                exit(pc);
+            }
+        }
+
+        if (code.size() > MAX_METHOD_SIZE) {
+            return null;
+        }
+
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "execute",
+                "(L" + LUA_RUN_STATE + ";L" + STACK_FRAME + ";L" + LUA_CLOSURE + ";[" + LV + "II)I",
+                code, MAX_STACK, MAX_LOCALS);
+        return cw.toByteArray();
+    }
+
+    private void generateConstructor() {
+        Code init = new Code();
+        init.aload(0);
+        init.aload(1);
+        init.op(INVOKESPECIAL, cw.methodRef(COMPILED_FUNCTION, "<init>", "(L" + PROTOTYPE + ";)V"));
+        init.op(RETURN);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "(L" + PROTOTYPE + ";)V", init, 2, 2);
+    }
+
+    /**
+     * @return {@code false} if the instruction can't be compiled.
+     */
+    private boolean generateInstruction(int pc, int i) {
+        final int a = GETARG_A(i);
+        final int b = GETARG_B(i);
+        final int c = GETARG_C(i);
+
+        if (!isCompiled(i)) {
+            exit(pc);
+            return true;
+        }
+
+        switch (GET_OPCODE(i)) {
+        case Lua.OP_MOVE:
+            registerAddress(a);
+            register(b);
+            code.op(AASTORE);
+            break;
+        case Lua.OP_LOADK:
+            registerAddress(a);
+            constant(GETARG_Bx(i));
+            code.op(AASTORE);
+            break;
+        case Lua.OP_LOADBOOL:
+            registerAddress(a);
+            code.op(GETSTATIC, cw.fieldRef(LUA_BOOLEAN, b != 0 ? "TRUE" : "FALSE", "L" + LUA_BOOLEAN + ";"));
+            code.op(AASTORE);
+            if (c != 0) {
+                return jump(GOTO, pc + 2);
+            }
+            break;
+        case Lua.OP_LOADNIL:
+            for (int r = a; r <= b; r++) {
+                registerAddress(r);
+                code.op(GETSTATIC, cw.fieldRef(LUA_NIL, "NIL", "L" + LUA_NIL + ";"));
+                code.op(AASTORE);
+            }
+            break;
+        case Lua.OP_GETUPVAL:
+            registerAddress(a);
+            upValue(b);
+            code.op(INVOKEVIRTUAL, cw.methodRef(UP_VALUE, "getValue", "()" + LV));
+            code.op(AASTORE);
+            break;
+        case Lua.OP_SETUPVAL:
+            upValue(b);
+            register(a);
+            code.op(INVOKEVIRTUAL, cw.methodRef(UP_VALUE, "setValue", "(" + LV + ")V"));
+            break;
+        case Lua.OP_GETGLOBAL:
+            setPc(pc);
+            registerAddress(a);
+            indexCache(pc);
+            environment();
+            constant(GETARG_Bx(i));
+            code.op(INVOKEVIRTUAL, cw.methodRef(INDEX_CACHE, "get", BINARY_OP));
+            code.op(AASTORE);
+            break;
+        case Lua.OP_SETGLOBAL:
+            setPc(pc);
+            indexCache(pc);
+            environment();
+            constant(GETARG_Bx(i));
+            register(a);
+            code.op(INVOKEVIRTUAL, cw.methodRef(INDEX_CACHE, "set", "(" + LV + LV + LV + ")V"));
+            break;
+        case Lua.OP_GETTABLE:
+            setPc(pc);
+            registerAddress(a);
+            if (isStringConstant(c)) {
+                indexCache(pc);
+                register(b);
+                constant(INDEXK(c));
+                code.op(INVOKEVIRTUAL, cw.methodRef(INDEX_CACHE, "get", BINARY_OP));
+            } else {
+                register(b);
+                registerOrConstant(c);
+                code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "get", "(" + LV + ")" + LV));
+            }
+            code.op(AASTORE);
+            break;
+        case Lua.OP_SETTABLE:
+            setPc(pc);
+            register(a);
+            registerOrConstant(b);
+            registerOrConstant(c);
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "set", "(" + LV + LV + ")V"));
+            break;
+        case Lua.OP_NEWTABLE:
+            registerAddress(a);
+            code.op(NEW, cw.classRef(LUA_TABLE));
+            code.op(DUP);
+            code.pushInt(b);
+            code.pushInt(c);
+            code.op(INVOKESPECIAL, cw.methodRef(LUA_TABLE, "<init>", "(II)V"));
+            code.op(AASTORE);
+            break;
+        case Lua.OP_SELF:
+            setPc(pc);
+            register(b);
+            code.astore(LOCAL_TEMP);
+            registerAddress(a + 1);
+            code.aload(LOCAL_TEMP);
+            code.op(AASTORE);
+            registerAddress(a);
+            if (isStringConstant(c)) {
+                indexCache(pc);
+                code.aload(LOCAL_TEMP);
+                constant(INDEXK(c));
+                code.op(INVOKEVIRTUAL, cw.methodRef(INDEX_CACHE, "get", BINARY_OP));
+            } else {
+                code.aload(LOCAL_TEMP);
+                registerOrConstant(c);
+                code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "get", "(" + LV + ")" + LV));
+            }
+            code.op(AASTORE);
+            break;
+        case Lua.OP_ADD:
+        case Lua.OP_SUB:
+        case Lua.OP_MUL:
+        case Lua.OP_DIV:
+        case Lua.OP_MOD:
+        case Lua.OP_POW:
+        case Lua.OP_UNM:
+            arithmetic(pc, i);
+            break;
+        case Lua.OP_NOT:
+            unaryOp(pc, a, b, "not");
+            break;
+        case Lua.OP_LEN:
+            unaryOp(pc, a, b, "len");
+            break;
+        case Lua.OP_CONCAT:
+            setPc(pc);
+            registerAddress(a);
+            register(b);
+            register(c);
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "concat", "(" + LV + ")" + LV));
+            code.op(AASTORE);
+            break;
+        case Lua.OP_JMP: {
+            int target = pc + 1 + GETARG_sBx(i);
+            return (target <= pc ? backwardJump(target) : jump(GOTO, target));
+        }
+        case Lua.OP_EQ:
+            return compare(pc, a, b, c, "eq");
+        case Lua.OP_LT:
+            return (hasUnboxedInput(pc) ? unboxedCompare(pc, i) : compare(pc, a, b, c, "lt"));
+        case Lua.OP_LE:
+            return (hasUnboxedInput(pc) ? unboxedCompare(pc, i) : compare(pc, a, b, c, "le"));
+        case Lua.OP_TEST:
+            // if not (R(A) <=> C) then pc++
+            register(a);
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "toboolean", "()Z"));
+            return jump(c != 0 ? IFEQ : IFNE, pc + 2);
+        case Lua.OP_TESTSET:
+            // if (R(B) <=> C) then R(A) := R(B) else pc++
+            register(b);
+            code.astore(LOCAL_TEMP);
+            code.aload(LOCAL_TEMP);
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "toboolean", "()Z"));
+            if (!jump(c != 0 ? IFEQ : IFNE, pc + 2)) {
+                return false;
+            }
+            registerAddress(a);
+            code.aload(LOCAL_TEMP);
+            code.op(AASTORE);
+            break;
+        case Lua.OP_FORPREP:
+            setPc(pc);
+            registerAddress(a);
+            code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, "forprep", "([" + LV + "I)V"));
+            return jump(GOTO, pc + 1 + GETARG_sBx(i));
+        case Lua.OP_FORLOOP:
+            setPc(pc);
+            registerAddress(a);
+            code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, "forloop", "([" + LV + "I)Z"));
+            return jump(IFEQ, pc + 1) && backwardJump(pc + 1 + GETARG_sBx(i));
+        default:
+            throw new IllegalArgumentException("Unsupported instruction: " + i);
+        }
+        return true;
+    }
+
+    /** Loads the value of a register */
+    private void register(int r) {
+        registerAddress(r);
+        code.op(AALOAD);
+    }
+
+    /** Loads the array and index of a register, to store a value using {@code AASTORE} */
+    private void registerAddress(int r) {
+        code.aload(LOCAL_STACK);
+        code.iload(LOCAL_BASE);
+        code.pushInt(r);
+        code.op(IADD);
+    }
+
+    private void constant(int index) {
+        code.aload(0);
+        code.op(GETFIELD, cw.fieldRef(COMPILED_FUNCTION, "k", "[" + LV));
+        code.pushInt(index);
+        code.op(AALOAD);
+    }
+
+    private void registerOrConstant(int rk) {
+        if (ISK(rk)) {
+            constant(INDEXK(rk));
+        } else {
+            register(rk);
+        }
+    }
+
+    private boolean isStringConstant(int rk) {
+        return ISK(rk) && p.k[INDEXK(rk)] instanceof LuaString;
+    }
+
+    private void upValue(int index) {
+        code.aload(LOCAL_CLOSURE);
+        code.op(INVOKEVIRTUAL, cw.methodRef(LUA_CLOSURE, "getUpValues", "()[L" + UP_VALUE + ";"));
+        code.pushInt(index);
+        code.op(AALOAD);
+    }
+
+    private void environment() {
+        code.aload(LOCAL_CLOSURE);
+        code.op(INVOKEVIRTUAL, cw.methodRef(LUA_CLOSURE, "getfenv", "()" + LV));
+    }
+
+    private void indexCache(int pc) {
+        code.aload(0);
+        code.op(GETFIELD, cw.fieldRef(COMPILED_FUNCTION, "p", "L" + PROTOTYPE + ";"));
+        code.pushInt(pc);
+        code.op(INVOKEVIRTUAL, cw.methodRef(PROTOTYPE, "getIndexCache", "(I)L" + INDEX_CACHE + ";"));
+    }
+
+    /** Instructions that may raise an error or call a metamethod must store the pc for line numbers */
+    private void setPc(int pc) {
+        code.aload(LOCAL_SF);
+        code.pushInt(pc + 1);
+        code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, "setPc", "(L" + STACK_FRAME + ";I)V"));
+    }
+
+    private void binaryOp(int pc, int a, int b, int c, String name) {
+        setPc(pc);
+        registerAddress(a);
+        registerOrConstant(b);
+        registerOrConstant(c);
+        code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, name, BINARY_OP));
+        code.op(AASTORE);
+    }
+
+    private void unaryOp(int pc, int a, int b, String name) {
+        setPc(pc);
+        registerAddress(a);
+        register(b);
+        code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, name, "()" + LV));
+        code.op(AASTORE);
+    }
+
+    /** if ((RK(B) op RK(C)) ~= A) then pc++ */
+    private boolean compare(int pc, int a, int b, int c, String name) {
+        setPc(pc);
+        registerOrConstant(b);
+        registerOrConstant(c);
+        code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, name, COMPARE_OP));
+        return jump(a != 0 ? IFEQ : IFNE, pc + 2);
+    }
+
+    private static boolean isArithmetic(int op) {
+        return (op >= Lua.OP_ADD && op <= Lua.OP_UNM);
+    }
+
+    /**
+     * The result of an arithmetic instruction is kept unboxed if the next instruction is the only instruction
+     * that uses it, and if that instruction is an arithmetic instruction or comparison.
+     */
+    private boolean isUnboxedResult(int pc) {
+        final int i = p.code[pc];
+        if (!isArithmetic(GET_OPCODE(i)) || pc + 1 >= p.code.length || liveness.isBranchTarget(pc + 1)) {
+            return false;
+        }
+
+        final int next = p.code[pc + 1];
+        final int nextOp = GET_OPCODE(next);
+        final int r = GETARG_A(i);
+        if (nextOp == Lua.OP_LT || nextOp == Lua.OP_LE) {
+            return (GETARG_B(next) == r || GETARG_C(next) == r) && !liveness.isLiveAfter(pc + 1, r);
+        } else if (nextOp == Lua.OP_UNM) {
+            return GETARG_B(next) == r && (GETARG_A(next) == r || !liveness.isLiveAfter(pc + 1, r));
+        } else if (isArithmetic(nextOp)) {
+            return (GETARG_B(next) == r || GETARG_C(next) == r)
+                    && (GETARG_A(next) == r || !liveness.isLiveAfter(pc + 1, r));
+        }
+        return false;
+    }
+
+    private boolean hasUnboxedInput(int pc) {
+        return pc > 0 && unboxedResult[pc - 1];
+    }
+
+    /** @return The register holding the unboxed input of the instruction, or {@code -1} if there isn't one */
+    private int getUnboxedInput(int pc) {
+        return (hasUnboxedInput(pc) ? GETARG_A(p.code[pc - 1]) : -1);
+    }
+
+    private void arithmetic(int pc, int i) {
+        final int op = GET_OPCODE(i);
+        final int a = GETARG_A(i);
+        final int b = GETARG_B(i);
+        final int c = (op == Lua.OP_UNM ? b : GETARG_C(i));
+        final int unboxedIn = getUnboxedInput(pc);
+        final boolean unboxedOut = unboxedResult[pc];
+
+        if (unboxedIn < 0 && !unboxedOut) {
+            if (op == Lua.OP_UNM) {
+                unaryOp(pc, a, b, "neg");
+            } else {
+                binaryOp(pc, a, b, c, getRuntimeMethod(op));
+            }
+            return;
+        }
+
+        Label slow = new Label();
+        Label done = new Label();
+        if (isNumberOperand(b) && isNumberOperand(c)) {
+            numberCheck(b, unboxedIn, slow);
+            if (c != b) {
+                numberCheck(c, unboxedIn, slow);
+            }
+
+            if (!unboxedOut) {
+                registerAddress(a);
+            }
+            loadDouble(b, unboxedIn);
+            if (op != Lua.OP_UNM) {
+                loadDouble(c, unboxedIn);
+            }
+            doubleOp(op);
+            if (unboxedOut) {
+                // Adding zero turns -0.0 into 0.0, boxed numbers don't have negative zero either
+                code.op(DCONST_0);
+                code.op(DADD);
+                code.dstore(LOCAL_NUMBER);
+                code.op(ACONST_NULL);
+                code.astore(LOCAL_BOXED);
+            } else {
+                code.op(INVOKESTATIC, cw.methodRef(LUA_DOUBLE, "valueOf", BOX_DOUBLE));
+                code.op(AASTORE);
+            }
+            code.jump(GOTO, done);
+        }
+
+        // Slow path, also used for metamethods and string coercion
+        code.mark(slow);
+        setPc(pc);
+        if (!unboxedOut) {
+            registerAddress(a);
+        }
+        loadBoxed(b, unboxedIn);
+        if (op == Lua.OP_UNM) {
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "neg", "()" + LV));
+        } else {
+            loadBoxed(c, unboxedIn);
+            code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, getRuntimeMethod(op), BINARY_OP));
+        }
+        if (unboxedOut) {
+            code.astore(LOCAL_BOXED);
+        } else {
+            code.op(AASTORE);
+        }
+        code.mark(done);
+    }
+
+    /** Comparison of which one of the operands is an unboxed arithmetic result */
+    private boolean unboxedCompare(int pc, int i) {
+        final int op = GET_OPCODE(i);
+        final int a = GETARG_A(i);
+        final int b = GETARG_B(i);
+        final int c = GETARG_C(i);
+        final int unboxedIn = getUnboxedInput(pc);
+
+        Label slow = new Label();
+        Label done = new Label();
+        if (isNumberOperand(b) && isNumberOperand(c)) {
+            numberCheck(b, unboxedIn, slow);
+            if (c != b) {
+                numberCheck(c, unboxedIn, slow);
+            }
+
+            // if ((RK(B) op RK(C)) ~= A) then pc++, NaN compares as greater than everything
+            loadDouble(b, unboxedIn);
+            loadDouble(c, unboxedIn);
+            code.op(DCMPG);
+            if (op == Lua.OP_LT) {
+                jump(a != 0 ? IFGE : IFLT, pc + 2);
+            } else {
+                jump(a != 0 ? IFGT : IFLE, pc + 2);
+            }
+            code.jump(GOTO, done);
+        }
+
+        code.mark(slow);
+        setPc(pc);
+        loadBoxed(b, unboxedIn);
+        loadBoxed(c, unboxedIn);
+        code.op(INVOKESTATIC, cw.methodRef(JIT_RUNTIME, op == Lua.OP_LT ? "lt" : "le", COMPARE_OP));
+        boolean result = jump(a != 0 ? IFEQ : IFNE, pc + 2);
+        code.mark(done);
+        return result;
+    }
+
+    private static String getRuntimeMethod(int op) {
+        switch (op) {
+        case Lua.OP_ADD: return "add";
+        case Lua.OP_SUB: return "sub";
+        case Lua.OP_MUL: return "mul";
+        case Lua.OP_DIV: return "div";
+        case Lua.OP_MOD: return "mod";
+        case Lua.OP_POW: return "pow";
+        default: throw new IllegalArgumentException("Not a binary arithmetic operator: " + op);
+        }
+    }
+
+    /** Constants are checked at compile time, non-numeric constants always use the slow path */
+    private boolean isNumberOperand(int rk) {
+        return !ISK(rk) || p.k[INDEXK(rk)] instanceof LuaNumber;
+    }
+
+    /** Jumps to {@code slow} if the operand isn't a number */
+    private void numberCheck(int rk, int unboxedIn, Label slow) {
+        if (rk == unboxedIn) {
+            code.aload(LOCAL_BOXED);
+            code.jump(IFNONNULL, slow);
+        } else if (!ISK(rk)) {
+            register(rk);
+            code.op(INSTANCEOF, cw.classRef(LUA_NUMBER));
+            code.jump(IFEQ, slow);
+        }
+    }
+
+    /** Loads a number operand as a {@code double} */
+    private void loadDouble(int rk, int unboxedIn) {
+        if (rk == unboxedIn) {
+            code.dload(LOCAL_NUMBER);
+        } else if (ISK(rk)) {
+            code.op(LDC2_W, cw.doubleConstant(p.k[INDEXK(rk)].todouble()));
+        } else {
+            register(rk);
+            code.op(INVOKEVIRTUAL, cw.methodRef(LUA_VALUE, "todouble", "()D"));
+        }
+    }
+
+    /** Loads an operand as a {@code LuaValue}, boxing it if needed */
+    private void loadBoxed(int rk, int unboxedIn) {
+        if (rk == unboxedIn) {
+            Label boxed = new Label();
+            code.aload(LOCAL_BOXED);
+            code.op(DUP);
+            code.jump(IFNONNULL, boxed);
+            code.op(POP);
+            code.dload(LOCAL_NUMBER);
+            code.op(INVOKESTATIC, cw.methodRef(LUA_DOUBLE, "valueOf", BOX_DOUBLE));
+            code.mark(boxed);
+        } else {
+            registerOrConstant(rk);
+        }
+    }
+
+    /** Same results as the arithmetic fast paths of the interpreter, see {@link JitRuntime} */
+    private void doubleOp(int op) {
+        switch (op) {
+        case Lua.OP_ADD:
+            code.op(DADD);
+            break;
+        case Lua.OP_SUB:
+            code.op(DSUB);
+            break;
+        case Lua.OP_MUL:
+            code.op(DMUL);
+            break;
+        case Lua.OP_DIV:
+            code.op(INVOKESTATIC, cw.methodRef(LUA_DOUBLE, "ddiv_d", DOUBLE_OP));
+            break;
+        case Lua.OP_MOD:
+            code.op(INVOKESTATIC, cw.methodRef(LUA_DOUBLE, "dmod_d", DOUBLE_OP));
+            break;
+        case Lua.OP_POW:
+            code.op(INVOKESTATIC, cw.methodRef(MATH_LIB, "dpow", DOUBLE_OP));
+            break;
+        case Lua.OP_UNM:
+            code.op(DNEG);
+            break;
+        default:
+            throw new IllegalArgumentException("Not an arithmetic operator: " + op);
+        }
+    }
+
+    /** Backward jumps consume instruction budget, see {@link LuaInterpreter} */
+    private boolean backwardJump(int target) {
+        code.aload(LOCAL_LRS);
+        code.op(INVOKEVIRTUAL, cw.methodRef(LUA_RUN_STATE, "consumeInstructionBudget", "()Z"));
+        if (!jump(IFNE, target)) {
+            return false;
+        }
+        code.pushInt(~target);
+        code.op(IRETURN);
+        return true;
+    }
+
+    private boolean jump(int opcode, int target) {
+        if (target < 0 || target >= labels.length) {
+            return false;
+        }
+        code.jump(opcode, labels[target]);
+        return true;
+    }
+
+    /** Returns control to the interpreter */
+    private void exit(int pc) {
+        code.pushInt(pc);
+        code.op(IRETURN);
+    }
+
+    private static final class JitClassLoader extends ClassLoader {
+
+        public JitClassLoader() {
+            super(JitCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+
+}
@@ -0,0 +1,164 @@
+package nl.weeaboo.lua2.interpreter;
+
+import nl.weeaboo.lua2.lib.MathLib;
+import nl.weeaboo.lua2.vm.LuaDouble;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.LuaNumber;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+/**
+ * Operations called by code generated by {@link JitCompiler}. Each method has the same fast paths as the
+ * corresponding instruction in {@link LuaInterpreter}.
+ * <p>
+ * Only meant to be used by generated code.
+ */
+public final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    /** Stores the program counter used for line numbers in error messages and stack traces */
+    public static void setPc(StackFrame sf, int pc) {
+        sf.pc = pc;
+    }
+
+    public static LuaValue add(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return LuaInteger.valueOf((long)rb.toint() + rc.toint());
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.valueOf(rb.todouble() + rc.todouble());
+        }
+        return rb.add(rc);
+    }
+
+    public static LuaValue sub(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return LuaInteger.valueOf((long)rb.toint() - rc.toint());
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.valueOf(rb.todouble() - rc.todouble());
+        }
+        return rb.sub(rc);
+    }
+
+    public static LuaValue mul(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return LuaInteger.valueOf((long)rb.toint() * rc.toint());
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.valueOf(rb.todouble() * rc.todouble());
+        }
+        return rb.mul(rc);
+    }
+
+    public static LuaValue div(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.ddiv(rb.todouble(), rc.todouble());
+        }
+        return rb.div(rc);
+    }
+
+    public static LuaValue mod(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger && rc.toint() != 0) {
+            return LuaInteger.valueOf(floorMod(rb.toint(), rc.toint()));
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.dmod(rb.todouble(), rc.todouble());
+        }
+        return rb.mod(rc);
+    }
+
+    public static LuaValue pow(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return LuaDouble.valueOf(MathLib.dpow(rb.todouble(), rc.todouble()));
+        }
+        return rb.pow(rc);
+    }
+
+    public static boolean eq(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return rb.toint() == rc.toint();
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return rb.todouble() == rc.todouble();
+        }
+        return rb.eq_b(rc);
+    }
+
+    public static boolean lt(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return rb.toint() < rc.toint();
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return rb.todouble() < rc.todouble();
+        }
+        return rb.lt_b(rc);
+    }
+
+    public static boolean le(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            return rb.toint() <= rc.toint();
+        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+            return rb.todouble() <= rc.todouble();
+        }
+        return rb.lteq_b(rc);
+    }
+
+    /** {@code OP_FORPREP}, {@code ra} is the absolute index of register A */
+    public static void forprep(LuaValue[] stack, int ra) {
+        LuaValue init = stack[ra].checknumber("'for' initial value must be a number");
+        LuaValue limit = stack[ra + 1].checknumber("'for' limit must be a number");
+        LuaValue step = stack[ra + 2].checknumber("'for' step must be a number");
+        if (init instanceof LuaInteger && step instanceof LuaInteger && !(limit instanceof LuaInteger)) {
+            limit = toIntegerForLimit(limit, step.toint());
+        }
+        stack[ra] = init.sub(step);
+        stack[ra + 1] = limit;
+        stack[ra + 2] = step;
+    }
+
+    /**
+     * {@code OP_FORLOOP}, {@code ra} is the absolute index of register A.
+     *
+     * @return {@code true} if the loop continues.
+     */
+    public static boolean forloop(LuaValue[] stack, int ra) {
+        LuaValue idx = stack[ra];
+        LuaValue limit = stack[ra + 1];
+        LuaValue step = stack[ra + 2];
+        if (idx instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+            int istep = step.toint();
+            long next = (long)idx.toint() + istep;
+            if (istep > 0 ? next > limit.toint() : next < limit.toint()) {
+                return false;
+            }
+            idx = LuaInteger.valueOf((int)next);
+        } else {
+            idx = step.add(idx);
+            if (step.gt_b(0) ? !idx.lteq_b(limit) : !idx.gteq_b(limit)) {
+                return false;
+            }
+        }
+        stack[ra] = idx;
+        stack[ra + 3] = idx;
+        return true;
+    }
+
+    /**
+     * Integer modulo with the sign of the divisor, equal to the {@code a - b * floor(a / b)} used for doubles.
+     */
+    static int floorMod(int a, int b) {
+        int r = a % b;
+        return (r != 0 && (r ^ b) < 0 ? r + b : r);
+    }
+
+    /**
+     * Rounds a non-integer limit of a loop with an integer initial value and step to an equivalent integer
+     * limit, so {@code OP_FORLOOP} can compare using ints. Limits outside the int range (and NaN) are returned
+     * unchanged, those loops use the generic path.
+     */
+    static LuaValue toIntegerForLimit(LuaValue limit, int step) {
+        double d = limit.todouble();
+        double rounded = (step > 0 ? Math.floor(d) : Math.ceil(d));
+        if (rounded >= Integer.MIN_VALUE && rounded <= Integer.MAX_VALUE) {
+            return LuaInteger.valueOf((int)rounded);
+        }
+        return limit;
+    }
+
+}
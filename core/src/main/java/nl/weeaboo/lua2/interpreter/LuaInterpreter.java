@@ -8,12 +8,22 @@ import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 import static nl.weeaboo.lua2.vm.LuaValue.varargsOf;
 
 import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.interpreter.StackFrame.CallType;
 import nl.weeaboo.lua2.interpreter.StackFrame.Status;
+import nl.weeaboo.lua2.lib.BaseLib;
 import nl.weeaboo.lua2.lib.DebugLib;
+import nl.weeaboo.lua2.lib.LibFunction;
+import nl.weeaboo.lua2.lib.MathLib;
 import nl.weeaboo.lua2.vm.Buffer;
+import nl.weeaboo.lua2.vm.IndexCache;
 import nl.weeaboo.lua2.vm.Lua;
 import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaConstants;
+import nl.weeaboo.lua2.vm.LuaDouble;
 import nl.weeaboo.lua2.vm.LuaError;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.LuaNumber;
+import nl.weeaboo.lua2.vm.LuaString;
 import nl.weeaboo.lua2.vm.LuaTable;
 import nl.weeaboo.lua2.vm.LuaThread;
 import nl.weeaboo.lua2.vm.LuaValue;
@@ -23,6 +33,9 @@ import nl.weeaboo.lua2.vm.Varargs;
 
 public class LuaInterpreter {
 
+    /** Maximum length of a chain of {@code __index} tables, the same limit as {@link LuaValue#get(LuaValue)} */
+    private static final int MAXTAGLOOP = 100;
+
     /**
      * @param thread The executing thread
      * @param callstackBase Don't touch stack frames with zero-based index &lt; callstackBase.
@@ -32,449 +45,986 @@ public class LuaInterpreter {
 
         Varargs result = NONE;
         while (thread.isRunning() && thread.callstackSize() > callstackBase) {
-            StackFrame sf = thread.callstack;
-            if (sf.status == Status.FRESH) {
-                startCall(thread, sf);
-            }
-
-            try {
-                result = resume(thread, sf);
-            } finally {
-                if (sf.status != Status.PAUSED /* && thread.callstack == sf */) {
-                    finishCall(thread, sf, result);
-                }
-            }
+            result = resume(thread, thread.callstack, callstackBase);
         }
 
         return result;
     }
 
-    private static Varargs resume(LuaThread thread, StackFrame sf) {
+    /**
+     * Runs the given frame. Calls to and returns from Lua functions are handled by switching to the new
+     * frame within this method, it only returns once the thread stops running or the frame at
+     * {@code callstackBase} returns.
+     * <p>
+     * This includes Lua functions called through {@code pcall}, iterators of generic for loops, and
+     * {@code __index}, {@code __newindex} and {@code __call} metamethods (see {@link CallType}), so those don't
+     * nest Java calls and can yield. Errors are caught by the nearest protected call frame.
+     */
+    private static Varargs resume(LuaThread thread, StackFrame sf, int callstackBase) {
         int i, a, b, c;
-        LuaValue o;
-
-        final LuaClosure closure = sf.c;
-        final Prototype p = closure.getPrototype();
-        final int[] code = p.code;
-        final LuaValue[] k = p.k;
-        final UpValue[] upValues = closure.getUpValues();
-
-        final LuaValue[] stack = sf.stack;
-        final UpValue[] openups = sf.openups;
-        final Varargs varargs = sf.varargs;
-        int top = sf.top;
-        int pc = sf.pc;
-        Varargs v = sf.v;
-
-        LuaRunState lrs = LuaRunState.getCurrent();
-        sf.status = Status.RUNNING;
+        LuaValue o, rb, rc;
+
+        LuaClosure closure;
+        Prototype p;
+        int[] code;
+        LuaValue[] k;
+        UpValue[] upValues;
+
+        LuaValue[] stack;
+        int base;
+        UpValue[] openups;
+        Varargs varargs;
+        int top;
+        int pc;
+        Varargs v;
+
+        final LuaRunState lrs = thread.getLuaRunState();
+        boolean instrumented;
+        CompiledFunction compiled;
+        while (true) {
         try {
-            while (thread.isRunning()) {
-                if (pc < 0 || pc >= code.length) {
-                    throw new LuaError("Program Counter outside code range: " + pc + " for " + closure);
-                }
+            if (sf.status == Status.FRESH) {
+                startCall(thread, sf);
+            }
 
-                if (DebugLib.DEBUG_ENABLED) {
-                    lrs.onInstruction(pc);
-                    DebugLib.debugBytecode(thread, pc, varargs, top);
-                }
+            newFrame: while (true) {
+                closure = sf.c;
+                p = closure.getPrototype();
+                k = p.k;
+                upValues = closure.getUpValues();
+
+                stack = sf.stack;
+                base = sf.base;
+                openups = sf.openups;
+                varargs = sf.varargs;
+                top = sf.top;
+                pc = sf.pc;
+                v = sf.v;
+                sf.status = Status.RUNNING;
+                instrumented = isInstrumented(thread);
+                code = getCode(p, instrumented);
+                compiled = getCompiledFunction(p, instrumented);
+
+                while (thread.isRunning()) {
+                    if (compiled != null) {
+                        // Run compiled code until it reaches an instruction it leaves to the interpreter
+                        pc = compiled.execute(lrs, sf, closure, stack, base, pc);
+                        if (pc < 0) {
+                            pc = ~pc;
+                            lrs.onInstructionBudgetExhausted(thread);
+                            continue;
+                        }
+                    } else if (instrumented) {
+                        if (pc < 0 || pc >= code.length) {
+                            throw new LuaError("Program Counter outside code range: " + pc + " for " + closure);
+                        }
 
-                // pull out instruction
-                i = code[pc++];
-                a = ((i >> 6) & 0xff);
-
-                // process the op code
-                switch (i & 0x3f) {
-
-                case Lua.OP_MOVE:/* A B R(A):= R(B) */
-                    stack[a] = stack[i >>> 23];
-                    continue;
-
-                case Lua.OP_LOADK:/* A Bx R(A):= Kst(Bx) */
-                    stack[a] = k[i >>> 14];
-                    continue;
-
-                case Lua.OP_LOADBOOL:/* A B C R(A):= (Bool)B: if (C) pc++ */
-                    stack[a] = (i >>> 23 != 0) ? TRUE : FALSE;
-                    if ((i & (0x1ff << 14)) != 0) pc++; /*
-                                                         * skip next instruction (if C)
-                                                         */
-                    continue;
-
-                case Lua.OP_LOADNIL: /* A B R(A):= ...:= R(B):= nil */
-                    for (b = i >>> 23; a <= b;)
-                        stack[a++] = NIL;
-                    continue;
-
-                case Lua.OP_GETUPVAL: /* A B R(A):= UpValue[B] */
-                    stack[a] = upValues[i >>> 23].getValue();
-                    continue;
-
-                case Lua.OP_GETGLOBAL: /* A Bx R(A):= Gbl[Kst(Bx)] */
-                    stack[a] = closure.getfenv().get(k[i >>> 14]);
-                    continue;
-
-                case Lua.OP_GETTABLE: /* A B C R(A):= R(B)[RK(C)] */
-                    stack[a] = stack[i >>> 23].get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_SETGLOBAL: /* A Bx Gbl[Kst(Bx)]:= R(A) */
-                    closure.getfenv().set(k[i >>> 14], stack[a]);
-                    continue;
-
-                case Lua.OP_SETUPVAL: /* A B UpValue[B]:= R(A) */
-                    upValues[i >>> 23].setValue(stack[a]);
-                    continue;
-
-                case Lua.OP_SETTABLE: /* A B C R(A)[RK(B)]:= RK(C) */
-                    stack[a].set(((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]),
-                            (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_NEWTABLE: /* A B C R(A):= {} (size = B,C) */
-                    stack[a] = new LuaTable(i >>> 23, (i >> 14) & 0x1ff);
-                    continue;
-
-                case Lua.OP_SELF: /* A B C R(A+1):= R(B): R(A):= R(B)[RK(C)] */
-                    stack[a + 1] = (o = stack[i >>> 23]);
-                    stack[a] = o.get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_ADD: /* A B C R(A):= RK(B) + RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .add((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_SUB: /* A B C R(A):= RK(B) - RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .sub((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_MUL: /* A B C R(A):= RK(B) * RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .mul((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_DIV: /* A B C R(A):= RK(B) / RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .div((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_MOD: /* A B C R(A):= RK(B) % RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .mod((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_POW: /* A B C R(A):= RK(B) ^ RK(C) */
-                    stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .pow((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
-                    continue;
-
-                case Lua.OP_UNM: /* A B R(A):= -R(B) */
-                    stack[a] = stack[i >>> 23].neg();
-                    continue;
-
-                case Lua.OP_NOT: /* A B R(A):= not R(B) */
-                    stack[a] = stack[i >>> 23].not();
-                    continue;
-
-                case Lua.OP_LEN: /* A B R(A):= length of R(B) */
-                    stack[a] = stack[i >>> 23].len();
-                    continue;
-
-                case Lua.OP_CONCAT: /* A B C R(A):= R(B).. ... ..R(C) */
-                    b = i >>> 23;
-                    c = (i >> 14) & 0x1ff;
-                    if (c > b + 1) {
-                        Buffer sb = stack[c].buffer();
-                        while (--c >= b)
-                            sb = stack[c].concat(sb);
-                        stack[a] = sb.value();
-                    } else {
-                        stack[a] = stack[c - 1].concat(stack[c]);
-                    }
-                    continue;
-
-                case Lua.OP_JMP: /* sBx pc+=sBx */
-                    pc += (i >>> 14) - 0x1ffff;
-                    continue;
-
-                case Lua.OP_EQ: /* A B C if ((RK(B) == RK(C)) ~= A) then pc++ */
-                    if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .eq_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
-                        ++pc;
-                    continue;
-
-                case Lua.OP_LT: /* A B C if ((RK(B) < RK(C)) ~= A) then pc++ */
-                    if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .lt_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
-                        ++pc;
-                    continue;
-
-                case Lua.OP_LE: /* A B C if ((RK(B) <= RK(C)) ~= A) then pc++ */
-                    if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b])
-                            .lteq_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
-                        ++pc;
-                    continue;
-
-                case Lua.OP_TEST: /* A C if not (R(A) <=> C) then pc++ */
-                    if (stack[a].toboolean() != ((i & (0x1ff << 14)) != 0)) ++pc;
-                    continue;
-
-                case Lua.OP_TESTSET: /*
-                                      * A B C if (R(B) <=> C) then R(A):= R(B) else pc++
-                                      */
-                    /* note: doc appears to be reversed */
-                    if ((o = stack[i >>> 23]).toboolean() != ((i & (0x1ff << 14)) != 0)) ++pc;
-                    else stack[a] = o; // TODO: should be sBx?
-                    continue;
-
-                case Lua.OP_CALL: /*
-                                   * A B C R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1))
-                                   */
-                {
-                    b = i >>> 23;
-                    c = (i >> 14) & 0x1ff;
-                    if (b > 0) {
-                        v = varargsOf(stack, a + 1, b - 1); // exact arg count
-                    } else {
-                        v = varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+                        sf.pc = pc + 1;
+                        DebugLib.debugBytecode(thread, pc, varargs, top);
                     }
 
-                    LuaValue f = stack[a];
-                    if (f.isclosure()) {
-                        // Push new entry on callstack
-                        thread.pushPending(f.checkclosure(), v, a, c - 1);
+                    // pull out instruction, the pc stored in the frame is used for debug info (line numbers)
+                    i = code[pc++];
+                    sf.pc = pc;
+                    a = ((i >> 6) & 0xff);
+
+                    // process the op code
+                    switch (i & 0x3f) {
+
+                    case Lua.OP_MOVE:/* A B R(A):= R(B) */
+                        stack[base + a] = stack[base + (i >>> 23)];
+                        continue;
+
+                    case Lua.OP_LOADK:/* A Bx R(A):= Kst(Bx) */
+                        stack[base + a] = k[i >>> 14];
+                        continue;
+
+                    case Lua.OP_LOADBOOL:/* A B C R(A):= (Bool)B: if (C) pc++ */
+                        stack[base + a] = (i >>> 23 != 0) ? TRUE : FALSE;
+                        if ((i & (0x1ff << 14)) != 0) pc++; /*
+                                                             * skip next instruction (if C)
+                                                             */
+                        continue;
+
+                    case Lua.OP_LOADNIL: /* A B R(A):= ...:= R(B):= nil */
+                        for (b = i >>> 23; a <= b;)
+                            stack[base + a++] = NIL;
+                        continue;
+
+                    case Lua.OP_GETUPVAL: /* A B R(A):= UpValue[B] */
+                        stack[base + a] = upValues[i >>> 23].getValue();
+                        continue;
+
+                    case Lua.OP_GETGLOBAL: /* A Bx R(A):= Gbl[Kst(Bx)] */
+                        stack[base + a] = p.getIndexCache(pc - 1).get(closure.getfenv(), k[i >>> 14]);
+                        continue;
+
+                    case Lua.OP_GETTABLE: /* A B C R(A):= R(B)[RK(C)] */
+                        if ((c = (i >> 14) & 0x1ff) > 0xff && (o = k[c & 0x0ff]) instanceof LuaString) {
+                            o = index(thread, p.getIndexCache(pc - 1), stack[base + (i >>> 23)], o, a);
+                        } else {
+                            o = index(thread, null, stack[base + (i >>> 23)], c > 0xff ? k[c & 0x0ff] : stack[base + c], a);
+                        }
+                        if (o == null) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+                        stack[base + a] = o;
+                        continue;
+
+                    case Lua.OP_SETGLOBAL: /* A Bx Gbl[Kst(Bx)]:= R(A) */
+                        p.getIndexCache(pc - 1).set(closure.getfenv(), k[i >>> 14], stack[base + a]);
+                        continue;
+
+                    case Lua.OP_SETUPVAL: /* A B UpValue[B]:= R(A) */
+                        upValues[i >>> 23].setValue(stack[base + a]);
+                        continue;
+
+                    case Lua.OP_SETTABLE: /* A B C R(A)[RK(B)]:= RK(C) */
+                        if (!newIndex(thread, stack[base + a], ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b]),
+                                (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c])) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+                        continue;
 
-                        // Yield
-                        sf.status = Status.PAUSED;
-                        return NONE;
-                    }
+                    case Lua.OP_NEWTABLE: /* A B C R(A):= {} (size = B,C) */
+                        stack[base + a] = new LuaTable(i >>> 23, (i >> 14) & 0x1ff);
+                        continue;
 
-                    // Call immediately
-                    sf.top = top;
-                    sf.pc = pc;
-                    sf.v = v;
-                    v = f.invoke(v);
-                    top = sf.top;
-                    pc = sf.pc;
+                    case Lua.OP_SELF: /* A B C R(A+1):= R(B): R(A):= R(B)[RK(C)] */
+                        stack[base + a + 1] = (o = stack[base + (i >>> 23)]);
+                        if ((c = (i >> 14) & 0x1ff) > 0xff && k[c & 0x0ff] instanceof LuaString) {
+                            o = index(thread, p.getIndexCache(pc - 1), o, k[c & 0x0ff], a);
+                        } else {
+                            o = index(thread, null, o, c > 0xff ? k[c & 0x0ff] : stack[base + c], a);
+                        }
+                        if (o == null) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+                        stack[base + a] = o;
+                        continue;
+
+                    case Lua.OP_ADD: /* A B C R(A):= RK(B) + RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            stack[base + a] = LuaInteger.valueOf((long)rb.toint() + rc.toint());
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.valueOf(rb.todouble() + rc.todouble());
+                        } else {
+                            stack[base + a] = rb.add(rc);
+                        }
+                        continue;
+
+                    case Lua.OP_SUB: /* A B C R(A):= RK(B) - RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            stack[base + a] = LuaInteger.valueOf((long)rb.toint() - rc.toint());
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.valueOf(rb.todouble() - rc.todouble());
+                        } else {
+                            stack[base + a] = rb.sub(rc);
+                        }
+                        continue;
+
+                    case Lua.OP_MUL: /* A B C R(A):= RK(B) * RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            stack[base + a] = LuaInteger.valueOf((long)rb.toint() * rc.toint());
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.valueOf(rb.todouble() * rc.todouble());
+                        } else {
+                            stack[base + a] = rb.mul(rc);
+                        }
+                        continue;
 
-                    // Push return values on the stack
-                    if (c > 0) {
-                        while (--c > 0) {
-                            stack[a + c - 1] = v.arg(c);
+                    case Lua.OP_DIV: /* A B C R(A):= RK(B) / RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.ddiv(rb.todouble(), rc.todouble());
+                        } else {
+                            stack[base + a] = rb.div(rc);
                         }
-                        v = NONE;
-                    } else {
-                        top = a + v.narg();
-                    }
-                    continue;
-                }
+                        continue;
+
+                    case Lua.OP_MOD: /* A B C R(A):= RK(B) % RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger && rc.toint() != 0) {
+                            stack[base + a] = LuaInteger.valueOf(JitRuntime.floorMod(rb.toint(), rc.toint()));
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.dmod(rb.todouble(), rc.todouble());
+                        } else {
+                            stack[base + a] = rb.mod(rc);
+                        }
+                        continue;
 
-                case Lua.OP_TAILCALL: /* A B C return R(A)(R(A+1), ... ,R(A+B-1)) */
-                {
-                    b = i >>> 23;
-                    c = (i >> 14) & 0x1ff;
-                    if (b > 0) {
-                        v = copyArgs(stack, a + 1, b - 1); // Important: copies args
-                    } else {
-                        v = copyArgs(stack, a + 1, top - v.narg() - (a + 1), v); // Important: copies args
-                    }
+                    case Lua.OP_POW: /* A B C R(A):= RK(B) ^ RK(C) */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            stack[base + a] = LuaDouble.valueOf(MathLib.dpow(rb.todouble(), rc.todouble()));
+                        } else {
+                            stack[base + a] = rb.pow(rc);
+                        }
+                        continue;
 
-                    LuaValue f = stack[a];
-                    // System.out.println("TAILCALL: " + f);
+                    case Lua.OP_UNM: /* A B R(A):= -R(B) */
+                        stack[base + a] = stack[base + (i >>> 23)].neg();
+                        continue;
 
-                    if (f.isclosure()) {
-                        // System.out.println("CLOSURE");
+                    case Lua.OP_NOT: /* A B R(A):= not R(B) */
+                        stack[base + a] = stack[base + (i >>> 23)].not();
+                        continue;
 
-                        thread.postReturn(sf, sf.size() - 1);
+                    case Lua.OP_LEN: /* A B R(A):= length of R(B) */
+                        stack[base + a] = stack[base + (i >>> 23)].len();
+                        continue;
 
-                        sf.prepareTailcall(f.checkclosure(), v);
-                        top = sf.top;
-                        pc = sf.pc;
-                        v = sf.v;
+                    case Lua.OP_CONCAT: /* A B C R(A):= R(B).. ... ..R(C) */
+                        b = i >>> 23;
+                        c = (i >> 14) & 0x1ff;
+                        if (c > b + 1) {
+                            Buffer sb = stack[base + c].buffer();
+                            while (--c >= b)
+                                sb = stack[base + c].concat(sb);
+                            stack[base + a] = sb.value();
+                        } else {
+                            stack[base + a] = stack[base + c - 1].concat(stack[base + c]);
+                        }
+                        continue;
 
-                        // thread.postReturn(sf, sf.size()-1); //No regular finishCall(), that would close()
-                        // sf
-                        startCall(thread, sf);
+                    case Lua.OP_JMP: /* sBx pc+=sBx */
+                        pc += (b = (i >>> 14) - 0x1ffff);
+                        if (b < 0) {
+                            if (!lrs.consumeInstructionBudget()) {
+                                lrs.onInstructionBudgetExhausted(thread);
+                            }
+                            if (p.countExecution() && !instrumented) {
+                                compiled = JitCompiler.compile(p);
+                            }
+                        }
+                        continue;
+
+                    case Lua.OP_EQ: /* A B C if ((RK(B) == RK(C)) ~= A) then pc++ */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((rb.toint() == rc.toint()) != (a != 0)) ++pc;
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            if ((rb.todouble() == rc.todouble()) != (a != 0)) ++pc;
+                        } else if (rb.eq_b(rc) != (a != 0)) {
+                            ++pc;
+                        }
+                        continue;
+
+                    case Lua.OP_LT: /* A B C if ((RK(B) < RK(C)) ~= A) then pc++ */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((rb.toint() < rc.toint()) != (a != 0)) ++pc;
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            if ((rb.todouble() < rc.todouble()) != (a != 0)) ++pc;
+                        } else if (rb.lt_b(rc) != (a != 0)) {
+                            ++pc;
+                        }
+                        continue;
+
+                    case Lua.OP_LE: /* A B C if ((RK(B) <= RK(C)) ~= A) then pc++ */
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[base + c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((rb.toint() <= rc.toint()) != (a != 0)) ++pc;
+                        } else if (rb instanceof LuaNumber && rc instanceof LuaNumber) {
+                            if ((rb.todouble() <= rc.todouble()) != (a != 0)) ++pc;
+                        } else if (rb.lteq_b(rc) != (a != 0)) {
+                            ++pc;
+                        }
+                        continue;
+
+                    case Lua.OP_TEST: /* A C if not (R(A) <=> C) then pc++ */
+                        if (stack[base + a].toboolean() != ((i & (0x1ff << 14)) != 0)) ++pc;
+                        continue;
+
+                    case Lua.OP_TESTSET: /*
+                                          * A B C if (R(B) <=> C) then R(A):= R(B) else pc++
+                                          */
+                        /* note: doc appears to be reversed */
+                        if ((o = stack[base + (i >>> 23)]).toboolean() != ((i & (0x1ff << 14)) != 0)) ++pc;
+                        else stack[base + a] = o; // TODO: should be sBx?
+                        continue;
+
+                    case Lua.OP_CALL: /*
+                                       * A B C R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1))
+                                       */
+                    {
+                        b = i >>> 23;
+                        c = (i >> 14) & 0x1ff;
+
+                        LuaValue f = stack[base + a];
+                        if (b > 0 && f.isclosure()) {
+                            sf.top = top;
+                            sf.pc = pc;
+                            sf.v = v;
+                            sf.status = Status.PAUSED;
+
+                            // Args are passed in registers, the new frame's registers start at R(A+1) if possible
+                            thread.callstack = sf = StackFrame.newInstance(thread, f.checkclosure(), sf, a, b - 1,
+                                    c - 1);
+
+                            // Continue executing in the new frame
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
 
-                        sf.status = Status.PAUSED;
-                        return NONE;
-                    }
+                        if (b > 0) {
+                            v = varargsOf(stack, base + a + 1, b - 1); // exact arg count
+                        } else {
+                            v = varargsOf(stack, base + a + 1, top - v.narg() - (a + 1), v); // from prev top
+                        }
 
-                    sf.top = top;
-                    sf.pc = pc;
-                    sf.v = v;
-                    thread.postReturn(sf, sf.size() - 1);
-                    sf.parentCount--; // Hack to make recursive calls have the correct callstack size when I
-                                      // remove sf later
-                    v = f.invoke(v);
+                        if (f.isclosure()) {
+                            sf.top = top;
+                            sf.pc = pc;
+                            sf.v = v;
+                            sf.status = Status.PAUSED;
+
+                            // Push new entry on callstack
+                            thread.pushPending(f.checkclosure(), v, a, c - 1);
+                            sf = thread.callstack;
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
 
-                    if (sf == thread.callstack) {
-                        sf.parentCount++; // Java function didn't do anything to the callstack, recover.
+                        if (pushCall(thread, f, v, a, c - 1)) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
 
+                        // Call immediately
+                        sf.top = top;
+                        sf.pc = pc;
+                        sf.v = v;
+                        v = f.invoke(v);
                         top = sf.top;
                         pc = sf.pc;
+
+                        // Java functions may set a debug hook, re-evaluate the instrumentation after calling them
+                        instrumented = isInstrumented(thread);
+                        code = getCode(p, instrumented);
+                        compiled = getCompiledFunction(p, instrumented);
+
+                        // Push return values on the stack
                         if (c > 0) {
                             while (--c > 0) {
-                                stack[a + c - 1] = v.arg(c);
+                                stack[base + a + c - 1] = v.arg(c);
                             }
                             v = NONE;
                         } else {
                             top = a + v.narg();
                         }
+                        continue;
                     }
-                    continue;
-                }
 
-                case Lua.OP_RETURN: /* A B return R(A), ... ,R(A+B-2) (see note) */
-                    b = i >>> 23;
-                    switch (b) {
-                    case 0:
-                        return copyArgs(stack, a, top - v.narg() - a, v); // Important: copies args
-                    case 1:
-                        return NONE;
-                    case 2:
-                        return stack[a];
-                    default:
-                        return copyArgs(stack, a, b - 1); // Important: copies args
-                    }
+                    case Lua.OP_TAILCALL: /* A B C return R(A)(R(A+1), ... ,R(A+B-1)) */
+                    {
+                        b = i >>> 23;
+                        c = (i >> 14) & 0x1ff;
 
-                case Lua.OP_FORLOOP: /*
-                                      * A sBx R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-                                      */
-                {
-                    LuaValue limit = stack[a + 1];
-                    LuaValue step = stack[a + 2];
-                    LuaValue idx = step.add(stack[a]);
-                    if (step.gt_b(0) ? idx.lteq_b(limit) : idx.gteq_b(limit)) {
-                        stack[a] = idx;
-                        stack[a + 3] = idx;
-                        pc += (i >>> 14) - 0x1ffff;
+                        LuaValue f = stack[base + a];
+                        if (b > 0 && f.isclosure()) {
+                            thread.postReturn(sf, sf.size() - 1);
+
+                            // Reuses the current frame, moving the args down to the start of its registers
+                            sf.prepareTailcall(thread, f.checkclosure(), a + 1, b - 1);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+
+                        if (b > 0) {
+                            v = copyArgs(stack, base + a + 1, b - 1); // Important: copies args
+                        } else {
+                            v = copyArgs(stack, base + a + 1, top - v.narg() - (a + 1), v); // Important: copies args
+                        }
+
+                        if (f.isclosure()) {
+                            // System.out.println("CLOSURE");
+
+                            thread.postReturn(sf, sf.size() - 1);
+
+                            // Reuses the current frame, no regular finishCall() because that would close() it
+                            sf.prepareTailcall(thread, f.checkclosure(), v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+
+                        sf.top = top;
+                        sf.pc = pc;
+                        sf.v = v;
+                        thread.postReturn(sf, sf.size() - 1);
+                        sf.parentCount--; // Hack to make recursive calls have the correct callstack size when I
+                                          // remove sf later
+                        v = f.invoke(v);
+
+                        if (sf == thread.callstack) {
+                            sf.parentCount++; // Java function didn't do anything to the callstack, recover.
+
+                            top = sf.top;
+                            pc = sf.pc;
+                            if (c > 0) {
+                                while (--c > 0) {
+                                    stack[base + a + c - 1] = v.arg(c);
+                                }
+                                v = NONE;
+                            } else {
+                                top = a + v.narg();
+                            }
+                        }
+                        continue;
                     }
 
-                }
-                    continue;
-
-                case Lua.OP_FORPREP: /* A sBx R(A)-=R(A+2): pc+=sBx */
-                {
-                    LuaValue init = stack[a].checknumber("'for' initial value must be a number");
-                    LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
-                    LuaValue step = stack[a + 2].checknumber("'for' step must be a number");
-                    stack[a] = init.sub(step);
-                    stack[a + 1] = limit;
-                    stack[a + 2] = step;
-                    pc += (i >>> 14) - 0x1ffff;
-                }
-                    continue;
+                    case Lua.OP_RETURN: /* A B return R(A), ... ,R(A+B-2) (see note) */
+                    {
+                        b = i >>> 23;
 
-                case Lua.OP_TFORLOOP: /*
-                                       * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1), R(A+2)): if R(A+3) ~= nil
-                                       * then R(A+2)=R(A+3) else pc++
-                                       */
-                    sf.top = top;
-                    sf.pc = pc;
-                    sf.v = v;
-                    v = stack[a].invoke(varargsOf(stack[a + 1], stack[a + 2]));
-                    top = sf.top;
-                    pc = sf.pc;
-
-                    if ((o = v.arg1()).isnil()) ++pc;
-                    else {
-                        stack[a + 2] = stack[a + 3] = o;
-                        for (c = (i >> 14) & 0x1ff; c > 1; --c)
-                            stack[a + 2 + c] = v.arg(c);
-                        v = NONE; // todo: necessary?
+                        StackFrame parent = sf.parent;
+                        if (b != 0 && sf.returnCount >= 0 && sf.callType == CallType.NORMAL && parent != null
+                                && parent.status == Status.PAUSED && thread.callstack == sf
+                                && parent.size() > callstackBase) {
+                            // Returning to a Lua function with a fixed number of results, copy registers directly
+                            sf.closeAndReturn(thread.getFramePool(), a, b - 1);
+                            parent.v = NONE;
+                            thread.callstack = parent;
+                            thread.postReturn(sf, parent.size());
+                            thread.getFramePool().freeFrame(sf);
+
+                            sf = parent;
+                            continue newFrame;
+                        }
+
+                        Varargs result;
+                        switch (b) {
+                        case 0:
+                            result = copyArgs(stack, base + a, top - v.narg() - a, v); // Important: copies args
+                            break;
+                        case 1:
+                            result = NONE;
+                            break;
+                        case 2:
+                            result = stack[base + a];
+                            break;
+                        default:
+                            result = copyArgs(stack, base + a, b - 1); // Important: copies args
+                            break;
+                        }
+
+                        sf.top = top;
+                        sf.pc = pc;
+                        sf.v = v;
+
+                        finishCall(thread, sf, result);
+
+                        // Continue executing the calling Lua function, unless it belongs to an outer resume()
+                        if (parent != null && parent.status == Status.PAUSED && thread.callstack == parent
+                                && thread.callstackSize() > callstackBase) {
+                            sf = parent;
+                            continue newFrame;
+                        }
+                        return result;
                     }
-                    continue;
-
-                case Lua.OP_SETLIST: /*
-                                      * A B C R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
-                                      */
-                {
-                    if ((c = (i >> 14) & 0x1ff) == 0) c = code[pc++];
-                    int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
-                    o = stack[a];
-                    if ((b = i >>> 23) == 0) {
-                        b = top - a - 1;
-                        int m = b - v.narg();
-                        int j = 1;
-                        for (; j <= m; j++)
-                            o.set(offset + j, stack[a + j]);
-                        for (; j <= b; j++)
-                            o.set(offset + j, v.arg(j - m));
-                    } else {
-                        o.presize(offset + b);
-                        for (int j = 1; j <= b; j++)
-                            o.set(offset + j, stack[a + j]);
+
+                    case Lua.OP_FORLOOP: /*
+                                          * A sBx R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+                                          */
+                    {
+                        LuaValue idx = stack[base + a];
+                        LuaValue limit = stack[base + a + 1];
+                        LuaValue step = stack[base + a + 2];
+                        if (idx instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+                            // Integer loop (see OP_FORPREP), the counter can't overflow unless it passes the limit
+                            int istep = step.toint();
+                            long next = (long)idx.toint() + istep;
+                            if (istep > 0 ? next <= limit.toint() : next >= limit.toint()) {
+                                idx = LuaInteger.valueOf((int)next);
+                                stack[base + a] = idx;
+                                stack[base + a + 3] = idx;
+                                pc += (i >>> 14) - 0x1ffff;
+                                if (!lrs.consumeInstructionBudget()) {
+                                    lrs.onInstructionBudgetExhausted(thread);
+                                }
+                                if (p.countExecution() && !instrumented) {
+                                    compiled = JitCompiler.compile(p);
+                                }
+                            }
+                        } else {
+                            idx = step.add(idx);
+                            if (step.gt_b(0) ? idx.lteq_b(limit) : idx.gteq_b(limit)) {
+                                stack[base + a] = idx;
+                                stack[base + a + 3] = idx;
+                                pc += (i >>> 14) - 0x1ffff;
+                                if (!lrs.consumeInstructionBudget()) {
+                                    lrs.onInstructionBudgetExhausted(thread);
+                                }
+                                if (p.countExecution() && !instrumented) {
+                                    compiled = JitCompiler.compile(p);
+                                }
+                            }
+                        }
                     }
-                }
-                    continue;
+                        continue;
+
+                    case Lua.OP_FORPREP: /* A sBx R(A)-=R(A+2): pc+=sBx */
+                        JitRuntime.forprep(stack, base + a);
+                        pc += (i >>> 14) - 0x1ffff;
+                        continue;
+
+                    case Lua.OP_TFORLOOP: /*
+                                           * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1), R(A+2)): if R(A+3) ~= nil
+                                           * then R(A+2)=R(A+3) else pc++
+                                           */
+                        if ((o = stack[base + a]).isclosure()) {
+                            // Continues in finishCall() when the iterator returns
+                            thread.pushPending(o.checkclosure(), varargsOf(stack[base + a + 1], stack[base + a + 2]),
+                                    a + 3, (i >> 14) & 0x1ff);
+                            thread.callstack.callType = CallType.ITERATOR;
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
 
-                case Lua.OP_CLOSE: /*
-                                    * A close all variables in the stack up to (>=) R(A)
-                                    */
-                    for (b = openups.length; --b >= a;) {
-                        if (openups[b] != null) {
-                            openups[b].close();
-                            openups[b] = null;
+                        sf.top = top;
+                        sf.pc = pc;
+                        sf.v = v;
+                        v = o.invoke(varargsOf(stack[base + a + 1], stack[base + a + 2]));
+                        top = sf.top;
+                        pc = sf.pc;
+
+                        if ((o = v.arg1()).isnil()) ++pc;
+                        else {
+                            stack[base + a + 2] = stack[base + a + 3] = o;
+                            for (c = (i >> 14) & 0x1ff; c > 1; --c)
+                                stack[base + a + 2 + c] = v.arg(c);
+                            v = NONE; // todo: necessary?
+                        }
+                        continue;
+
+                    case Lua.OP_SETLIST: /*
+                                          * A B C R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+                                          */
+                    {
+                        if ((c = (i >> 14) & 0x1ff) == 0) c = code[pc++];
+                        int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+                        o = stack[base + a];
+                        if ((b = i >>> 23) == 0) {
+                            b = top - a - 1;
+                            int m = b - v.narg();
+                            int j = 1;
+                            for (; j <= m; j++)
+                                o.set(offset + j, stack[base + a + j]);
+                            for (; j <= b; j++)
+                                o.set(offset + j, v.arg(j - m));
+                        } else {
+                            o.presize(offset + b);
+                            for (int j = 1; j <= b; j++)
+                                o.set(offset + j, stack[base + a + j]);
                         }
                     }
-                    continue;
-
-                case Lua.OP_CLOSURE: /*
-                                      * A Bx R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
-                                      */
-                {
-                    Prototype newp = p.p[i >>> 14];
-                    LuaClosure newcl = new LuaClosure(newp, closure.getfenv());
-                    UpValue[] newUpValues = newcl.getUpValues();
-                    for (int j = 0, nup = newp.nups; j < nup; ++j) {
-                        i = code[pc++];
-                        b = i >>> 23;
-                        newUpValues[j] = (i & 4) != 0 ? upValues[b]
-                                : openups[b] != null ? openups[b] : (openups[b] = new UpValue(stack, b));
+                        continue;
+
+                    case Lua.OP_CLOSE: /*
+                                        * A close all variables in the stack up to (>=) R(A)
+                                        */
+                        for (b = openups.length; --b >= a;) {
+                            if (openups[b] != null) {
+                                openups[b].close();
+                                openups[b] = null;
+                            }
+                        }
+                        continue;
+
+                    case Lua.OP_CLOSURE: /*
+                                          * A Bx R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+                                          */
+                    {
+                        Prototype newp = p.p[i >>> 14];
+                        LuaClosure newcl = new LuaClosure(newp, closure.getfenv());
+                        UpValue[] newUpValues = newcl.getUpValues();
+                        for (int j = 0, nup = newp.nups; j < nup; ++j) {
+                            i = code[pc++];
+                            b = i >>> 23;
+                            newUpValues[j] = (i & 4) != 0 ? upValues[b]
+                                    : openups[b] != null ? openups[b] : (openups[b] = new UpValue(stack, base + b));
+                        }
+                        stack[base + a] = newcl;
                     }
-                    stack[a] = newcl;
-                }
-                    continue;
+                        continue;
+
+                    case Lua.OP_VARARG: /* A B R(A), R(A+1), ..., R(A+B-1) = vararg */
+                        b = i >>> 23;
+                        if (b == 0) {
+                            top = a + (b = varargs.narg());
+                            v = varargs;
+                        } else {
+                            for (int j = 1; j < b; ++j) {
+                                stack[base + a + j - 1] = varargs.arg(j);
+                            }
+                        }
+                        continue;
+
+                    /*
+                     * Quickened instructions, only found in the execution copy of the code (see Quickener). When
+                     * a speculative instruction is deoptimized, the original instruction is restored and executed.
+                     */
+
+                    case Quickener.OP_GETTABLE_S:
+                        o = index(thread, p.getIndexCache(pc - 1), stack[base + (i >>> 23)], k[(i >> 14) & 0x0ff], a);
+                        if (o == null) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+                        stack[base + a] = o;
+                        continue;
+
+                    case Quickener.OP_SELF_S:
+                        stack[base + a + 1] = (o = stack[base + (i >>> 23)]);
+                        o = index(thread, p.getIndexCache(pc - 1), o, k[(i >> 14) & 0x0ff], a);
+                        if (o == null) {
+                            sf = enterPushedFrame(thread, sf, top, pc, v);
+                            startCall(thread, sf);
+                            continue newFrame;
+                        }
+                        stack[base + a] = o;
+                        continue;
+
+                    case Quickener.OP_ADD_IK:
+                        if ((rb = stack[base + (i >>> 23)]) instanceof LuaInteger) {
+                            stack[base + a] = LuaInteger.valueOf((long)rb.toint() + k[(i >> 14) & 0x0ff].toint());
+                            continue;
+                        }
+                        code[pc - 1] = p.code[pc - 1];
+                        pc--;
+                        continue;
+
+                    case Quickener.OP_SUB_IK:
+                        if ((rb = stack[base + (i >>> 23)]) instanceof LuaInteger) {
+                            stack[base + a] = LuaInteger.valueOf((long)rb.toint() - k[(i >> 14) & 0x0ff].toint());
+                            continue;
+                        }
+                        code[pc - 1] = p.code[pc - 1];
+                        pc--;
+                        continue;
+
+                    case Quickener.OP_EQ_SK:
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[base + b];
+                        rc = k[(i >> 14) & 0x0ff];
+                        if (rb instanceof LuaString) {
+                            if ((rb == rc || ((LuaString)rb).raweq((LuaString)rc)) != (a != 0)) ++pc;
+                        } else if (rb.eq_b(rc) != (a != 0)) {
+                            ++pc;
+                        }
+                        continue;
+
+                    case Quickener.OP_CALL_PROBE:
+                        // Specialize the call for the function called the first time it runs
+                        o = stack[base + a];
+                        code[pc - 1] = Quickener.withOpcode(i,
+                                o instanceof LibFunction && !BaseLib.isPcall(o) ? Quickener.OP_CALL_JAVA : Lua.OP_CALL);
+                        pc--;
+                        continue;
+
+                    case Quickener.OP_CALL_JAVA: /* OP_CALL of a Java function with 0-3 args and 0-1 results */
+                    {
+                        LuaValue f = stack[base + a];
+                        if (!(f instanceof LibFunction)) {
+                            code[pc - 1] = p.code[pc - 1];
+                            pc--;
+                            continue;
+                        }
+
+                        // Call without Varargs
+                        sf.top = top;
+                        sf.pc = pc;
+                        sf.v = v;
+                        switch (i >>> 23) {
+                        case 1:
+                            o = f.call();
+                            break;
+                        case 2:
+                            o = f.call(stack[base + a + 1]);
+                            break;
+                        case 3:
+                            o = f.call(stack[base + a + 1], stack[base + a + 2]);
+                            break;
+                        default:
+                            o = f.call(stack[base + a + 1], stack[base + a + 2], stack[base + a + 3]);
+                            break;
+                        }
+                        top = sf.top;
+                        pc = sf.pc;
 
-                case Lua.OP_VARARG: /* A B R(A), R(A+1), ..., R(A+B-1) = vararg */
-                    b = i >>> 23;
-                    if (b == 0) {
-                        top = a + (b = varargs.narg());
-                        v = varargs;
-                    } else {
-                        for (int j = 1; j < b; ++j) {
-                            stack[a + j - 1] = varargs.arg(j);
+                        // Java functions may set a debug hook, re-evaluate the instrumentation after calling them
+                        instrumented = isInstrumented(thread);
+                        code = getCode(p, instrumented);
+                        compiled = getCompiledFunction(p, instrumented);
+
+                        if (((i >> 14) & 0x1ff) == 2) {
+                            stack[base + a] = o;
                         }
+                        v = NONE;
+                        continue;
+                    }
                     }
-                    continue;
                 }
+
+                // Yield
+                sf.top = top;
+                sf.pc = pc;
+                sf.v = v;
+                if (thread.isDead() || thread.isEndCall()) {
+                    sf.status = Status.DEAD;
+                    finishCall(thread, sf, NONE);
+                } else {
+                    sf.status = Status.PAUSED;
+                }
+                return NONE;
             }
+        } catch (RuntimeException e) {
+            // Continues in the function that called pcall, or rethrows the exception
+            sf = catchError(thread, sf, callstackBase, e);
+        } catch (Error e) {
+            // Errors such as running out of memory are caught by pcall too, wrapped in a LuaError
+            sf = catchError(thread, sf, callstackBase, e);
+        }
+        }
+    }
 
-            // Yield
-            if (thread.isDead() || thread.isEndCall()) {
-                sf.status = Status.DEAD;
-            } else {
-                sf.status = Status.PAUSED;
+    /**
+     * Line/count hooks require a per-instruction callback. When they're not active, the interpreter loop runs
+     * without any per-instruction checks. The instruction limit is only checked on backward jumps and calls.
+     */
+    private static boolean isInstrumented(LuaThread thread) {
+        return DebugLib.hasInstructionHook(thread);
+    }
+
+    /**
+     * @return The code to execute. Quickened instructions aren't used while debug hooks are active, so every
+     *         instruction executes exactly once per hook callback.
+     */
+    private static int[] getCode(Prototype p, boolean instrumented) {
+        return (instrumented ? p.code : p.getExecutionCode());
+    }
+
+    /**
+     * @return The compiled code to use, or {@code null} if the function isn't compiled. Compiled code doesn't
+     *         call debug hooks, so it isn't used while they're active.
+     */
+    private static CompiledFunction getCompiledFunction(Prototype p, boolean instrumented) {
+        return (instrumented ? null : p.getCompiledFunction());
+    }
+
+    /**
+     * Pauses the current frame in favor of the frame that was pushed on top of it. The caller must call
+     * {@link #startCall(LuaThread, StackFrame)} after making the new frame the current one, so an exception thrown
+     * there is handled in the new frame.
+     *
+     * @return The new frame.
+     */
+    private static StackFrame enterPushedFrame(LuaThread thread, StackFrame sf, int top, int pc, Varargs v) {
+        sf.top = top;
+        sf.pc = pc;
+        sf.v = v;
+        sf.status = Status.PAUSED;
+        return thread.callstack;
+    }
+
+    /**
+     * Pushes a frame for a call of a non-closure value, if the call ends up calling a Lua closure: a protected
+     * call through {@code pcall}, or the {@code __call} metamethod of a callable object.
+     *
+     * @return {@code true} if a frame was pushed.
+     */
+    private static boolean pushCall(LuaThread thread, LuaValue f, Varargs args, int a, int returnCount) {
+        if (f instanceof LibFunction) {
+            LuaValue func = args.arg1();
+            if (!func.isclosure() || !BaseLib.isPcall(f)) {
+                return false;
+            }
+            thread.pushPending(func.checkclosure(), args.subargs(2), a, returnCount);
+            thread.callstack.callType = CallType.PROTECTED;
+            return true;
+        } else if (!f.isfunction()) {
+            LuaValue h = f.metatag(LuaConstants.CALL);
+            if (!h.isclosure()) {
+                return false;
+            }
+            thread.pushPending(h.checkclosure(), varargsOf(f, args), a, returnCount);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Equivalent to {@code t.get(key)}, except that an {@code __index} metamethod that's a Lua closure is called
+     * in a new frame.
+     *
+     * @param cache (optional) Inline cache, only for string keys.
+     * @param a The register to store the result of the {@code __index} metamethod in.
+     * @return The value, or {@code null} if a frame was pushed for the {@code __index} metamethod.
+     */
+    private static LuaValue index(LuaThread thread, IndexCache cache, LuaValue t, LuaValue key, int a) {
+        if (cache != null) {
+            LuaValue result = cache.find(t, key);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        // Same as LuaValue.gettable(), other types and subclasses of LuaTable may override get()
+        for (int loop = 0; loop < MAXTAGLOOP && t.getClass() == LuaTable.class; loop++) {
+            LuaValue result = t.rawget(key);
+            if (!result.isnil()) {
+                return result;
+            }
+
+            LuaValue h = t.metatag(LuaConstants.INDEX);
+            if (h.isnil()) {
+                return NIL;
+            } else if (h.isclosure()) {
+                thread.pushPending(h.checkclosure(), varargsOf(t, key), a, 1);
+                return null;
+            } else if (h.isfunction()) {
+                return h.call(t, key);
             }
-            return NONE;
-        } finally {
-            sf.top = top;
-            sf.pc = pc;
-            sf.v = v;
+            t = h;
         }
+        return t.get(key);
+    }
+
+    /**
+     * Equivalent to {@code t.set(key, value)}, except that an {@code __newindex} metamethod that's a Lua closure
+     * is called in a new frame.
+     *
+     * @return {@code false} if a frame was pushed for the {@code __newindex} metamethod.
+     */
+    private static boolean newIndex(LuaThread thread, LuaValue t, LuaValue key, LuaValue value) {
+        if (t.getClass() == LuaTable.class && t.getmetatable() != null && !key.isnil() && t.rawget(key).isnil()) {
+            LuaValue h = t.metatag(LuaConstants.NEWINDEX);
+            if (h.isclosure()) {
+                thread.pushPending(h.checkclosure(), varargsOf(t, key, value), 0, 0);
+                return false;
+            }
+        }
+        t.set(key, value);
+        return true;
     }
 
     private static void startCall(LuaThread thread, StackFrame sf) {
         if (DebugLib.DEBUG_ENABLED) {
-            DebugLib.debugSetupCall(thread, sf.args, sf.stack);
+            DebugLib.debugSetupCall(thread, sf.args, sf.stack, sf.base);
         }
         thread.preCall(sf, sf.size());
+
+        Prototype p = sf.c.getPrototype();
+        if (p.countExecution()) {
+            JitCompiler.compile(p);
+        }
+
+        LuaRunState lrs = thread.getLuaRunState();
+        if (!lrs.consumeInstructionBudget()) {
+            // If the thread gets suspended, the new frame starts running when the thread is resumed
+            lrs.onInstructionBudgetExhausted(thread);
+        }
+    }
+
+    /**
+     * Pops the frames that were pushed by the current invocation of {@link #resume(LuaThread, int)} after an
+     * exception, so an enclosing pcall continues with a consistent callstack.
+     */
+    private static void unwindCallstack(LuaThread thread, StackFrame sf, int callstackBase) {
+        final StackFramePool pool = thread.getFramePool();
+        while (thread.callstack == sf) {
+            StackFrame parent = sf.parent;
+            sf.close(pool);
+            thread.callstack = parent;
+            thread.postReturn(sf, (parent != null ? parent.size() : 0));
+            pool.freeFrame(sf);
+
+            if (parent == null || thread.callstackSize() <= callstackBase) {
+                return;
+            }
+            sf = parent;
+        }
+
+        // Frame is no longer part of the callstack, don't touch the rest
+        sf.close(null);
+    }
+
+    /**
+     * Handles an exception the way {@code pcall} does, if it was thrown inside a protected call frame that
+     * belongs to the current invocation of {@link #resume(LuaThread, int)}. The frames above the protected call
+     * are popped, and the results of the failed call are passed to the function that called {@code pcall}.
+     *
+     * @return The function that called {@code pcall}, it continues running.
+     * @param e A {@link RuntimeException} or {@link Error}, rethrown if there's no protected call to catch it.
+     */
+    private static StackFrame catchError(LuaThread thread, StackFrame sf, int callstackBase, Throwable e) {
+        StackFrame handler = null;
+        if (thread.callstack == sf) {
+            for (StackFrame f = sf; f.parent != null && f.parent.size() > callstackBase; f = f.parent) {
+                if (f.callType == CallType.PROTECTED) {
+                    handler = f;
+                    break;
+                }
+            }
+        }
+        if (handler == null) {
+            unwindCallstack(thread, sf, callstackBase);
+            if (e instanceof Error) {
+                throw (Error)e;
+            }
+            throw (RuntimeException)e;
+        }
+
+        final StackFramePool pool = thread.getFramePool();
+        while (sf != handler) {
+            StackFrame parent = sf.parent;
+            sf.close(pool);
+            thread.callstack = parent;
+            thread.postReturn(sf, parent.size());
+            pool.freeFrame(sf);
+            sf = parent;
+        }
+
+        // Non-Lua exceptions get the same message as when pcall calls the function from Java
+        StackFrame caller = handler.parent;
+        handler.callType = CallType.NORMAL;
+        finishCall(thread, handler, BaseLib.pcallError(e instanceof LuaError ? (LuaError)e
+                : new LuaError("Runtime error :: " + e, e, -1)));
+        return caller;
     }
 
     private static void finishCall(LuaThread thread, StackFrame sf, Varargs retval) {
+        final boolean popped = (thread.callstack == sf);
+        final StackFramePool pool = thread.getFramePool();
+
+        // Close before writing the return values, clearing the frame's registers may overwrite them otherwise.
+        // A frame that isn't on top of the callstack may still be referenced, so it's not recycled.
+        sf.close(popped ? pool : null);
+
+        if (sf.callType == CallType.PROTECTED) {
+            retval = varargsOf(TRUE, retval);
+        }
+
         // Pushes return values on parent's stack
         StackFrame parent = sf.parent;
         if (parent != null) {
@@ -483,7 +1033,7 @@ public class LuaInterpreter {
 
             if (c > 0) {
                 while (--c > 0) {
-                    parent.stack[a + c - 1] = retval.arg(c);
+                    parent.stack[parent.base + a + c - 1] = retval.arg(c);
                 }
                 parent.top = a + retval.narg();
                 parent.v = retval;
@@ -491,12 +1041,22 @@ public class LuaInterpreter {
                 parent.top = a + retval.narg();
                 parent.v = retval;
             }
+
+            if (sf.callType == CallType.ITERATOR) {
+                // Rest of OP_TFORLOOP: if R(A+3) ~= nil then R(A+2)=R(A+3) else pc++
+                LuaValue o = parent.stack[parent.base + a];
+                if (o.isnil()) {
+                    parent.pc++;
+                } else {
+                    parent.stack[parent.base + a - 1] = o;
+                }
+            }
         }
 
-        sf.close();
-        if (thread.callstack == sf) {
-            thread.callstack = thread.callstack.parent;
-            thread.postReturn(sf, (thread.callstack != null ? thread.callstack.size() : 0));
+        if (popped) {
+            thread.callstack = parent;
+            thread.postReturn(sf, (parent != null ? parent.size() : 0));
+            pool.freeFrame(sf);
         }
     }
 
@@ -0,0 +1,125 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.vm.Lua.GETARG_B;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_C;
+import static nl.weeaboo.lua2.vm.Lua.GET_OPCODE;
+import static nl.weeaboo.lua2.vm.Lua.INDEXK;
+import static nl.weeaboo.lua2.vm.Lua.ISK;
+
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.LuaInteger;
+import nl.weeaboo.lua2.vm.LuaString;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Creates the execution copy of a function's code, in which instructions are replaced by specialized internal
+ * opcodes. The operands of a quickened instruction are the same as those of the original instruction, only the
+ * opcode changes.
+ * <p>
+ * Some specializations are speculative. When their assumption fails, the interpreter deoptimizes the
+ * instruction by copying the original instruction from {@link Prototype#code} back into the execution copy.
+ * Deoptimized instructions are never quickened again.
+ * <p>
+ * Internal opcodes only exist in execution copies, never in {@link Prototype#code}. Dumped or serialized code
+ * is therefore unaffected, and the {@code BytecodeVerifier} rejects them in binary chunks.
+ *
+ * @see Prototype#getExecutionCode()
+ */
+public final class Quickener {
+
+    /** {@code OP_GETTABLE} with a constant string key, always uses the inline cache */
+    static final int OP_GETTABLE_S = Lua.NUM_OPCODES;
+
+    /** {@code OP_SELF} with a constant string key, always uses the inline cache */
+    static final int OP_SELF_S = Lua.NUM_OPCODES + 1;
+
+    /** {@code OP_ADD} of a register and an integer constant, speculates the register holds an integer */
+    static final int OP_ADD_IK = Lua.NUM_OPCODES + 2;
+
+    /** {@code OP_SUB} of a register and an integer constant, speculates the register holds an integer */
+    static final int OP_SUB_IK = Lua.NUM_OPCODES + 3;
+
+    /** {@code OP_EQ} with a constant string as its second operand */
+    static final int OP_EQ_SK = Lua.NUM_OPCODES + 4;
+
+    /**
+     * {@code OP_CALL} with 0-3 args and 0-1 results which hasn't run yet. Replaced by {@link #OP_CALL_JAVA} or
+     * the original instruction the first time it runs, depending on the called function.
+     */
+    static final int OP_CALL_PROBE = Lua.NUM_OPCODES + 5;
+
+    /** {@code OP_CALL} with 0-3 args and 0-1 results, speculates the called function is a {@code LibFunction} */
+    static final int OP_CALL_JAVA = Lua.NUM_OPCODES + 6;
+
+    private Quickener() {
+    }
+
+    /**
+     * @return A copy of the function's code, with the instructions that can be specialized based on their
+     *         operands replaced by internal opcodes.
+     */
+    public static int[] quicken(Prototype p) {
+        final int[] code = p.code.clone();
+        final LuaValue[] k = p.k;
+
+        for (int pc = 0; pc < code.length; pc++) {
+            final int i = code[pc];
+            final int b = GETARG_B(i);
+            final int c = GETARG_C(i);
+
+            switch (GET_OPCODE(i)) {
+            case Lua.OP_GETTABLE:
+                if (isConstant(k, c, LuaString.class)) {
+                    code[pc] = withOpcode(i, OP_GETTABLE_S);
+                }
+                break;
+            case Lua.OP_SELF:
+                if (isConstant(k, c, LuaString.class)) {
+                    code[pc] = withOpcode(i, OP_SELF_S);
+                }
+                break;
+            case Lua.OP_ADD:
+                if (!ISK(b) && isConstant(k, c, LuaInteger.class)) {
+                    code[pc] = withOpcode(i, OP_ADD_IK);
+                }
+                break;
+            case Lua.OP_SUB:
+                if (!ISK(b) && isConstant(k, c, LuaInteger.class)) {
+                    code[pc] = withOpcode(i, OP_SUB_IK);
+                }
+                break;
+            case Lua.OP_EQ:
+                if (isConstant(k, c, LuaString.class)) {
+                    code[pc] = withOpcode(i, OP_EQ_SK);
+                }
+                break;
+            case Lua.OP_CALL:
+                if (b > 0 && b <= 4 && c > 0 && c <= 2) {
+                    code[pc] = withOpcode(i, OP_CALL_PROBE);
+                }
+                break;
+            case Lua.OP_SETLIST:
+                if (c == 0) {
+                    pc++; // The next instruction holds the block number
+                }
+                break;
+            case Lua.OP_CLOSURE:
+                pc += p.p[i >>> 14].nups; // Pseudo-instructions describing the upvalues
+                break;
+            default:
+                break;
+            }
+        }
+        return code;
+    }
+
+    private static boolean isConstant(LuaValue[] k, int rk, Class<? extends LuaValue> type) {
+        return ISK(rk) && type.isInstance(k[INDEXK(rk)]);
+    }
+
+    static int withOpcode(int i, int op) {
+        return (i & Lua.MASK_NOT_OP) | op;
+    }
+
+}
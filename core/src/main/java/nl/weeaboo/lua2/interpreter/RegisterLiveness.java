@@ -0,0 +1,262 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.vm.Lua.GETARG_A;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_B;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_Bx;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_C;
+import static nl.weeaboo.lua2.vm.Lua.GETARG_sBx;
+import static nl.weeaboo.lua2.vm.Lua.GET_OPCODE;
+import static nl.weeaboo.lua2.vm.Lua.ISK;
+
+import java.util.BitSet;
+
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.Prototype;
+
+/**
+ * Determines which registers may still be read after each instruction of a function. Used by the
+ * {@link JitCompiler} to find temporary values which never need to be stored in a register.
+ * <p>
+ * The analysis is conservative: instructions which may read a variable number of registers (calls, returns,
+ * {@code SETLIST}) are assumed to read all registers from their first operand up. Registers captured by closures
+ * are always live.
+ */
+final class RegisterLiveness {
+
+    private final Prototype p;
+    private final int[] code;
+    private final int numRegisters;
+
+    private final boolean[] pseudoInstruction;
+    private final boolean[] branchTarget;
+    private final BitSet captured;
+    private final BitSet[] liveOut;
+
+    private RegisterLiveness(Prototype p) {
+        this.p = p;
+        code = p.code;
+        numRegisters = p.maxstacksize;
+
+        pseudoInstruction = new boolean[code.length];
+        branchTarget = new boolean[code.length];
+        captured = new BitSet();
+        liveOut = new BitSet[code.length];
+    }
+
+    public static RegisterLiveness analyze(Prototype p) {
+        RegisterLiveness result = new RegisterLiveness(p);
+        result.findPseudoInstructions();
+        result.solve();
+        return result;
+    }
+
+    /**
+     * @return {@code true} if the value of the register after the instruction at {@code pc} may be read later.
+     */
+    public boolean isLiveAfter(int pc, int register) {
+        return captured.get(register) || liveOut[pc].get(register);
+    }
+
+    /**
+     * @return {@code true} if the instruction can be reached other than by falling through from the previous
+     *         instruction.
+     */
+    public boolean isBranchTarget(int pc) {
+        return branchTarget[pc];
+    }
+
+    private void findPseudoInstructions() {
+        for (int pc = 0; pc < code.length; pc++) {
+            int i = code[pc];
+            if (GET_OPCODE(i) == Lua.OP_SETLIST && GETARG_C(i) == 0) {
+                markPseudoInstruction(++pc);
+            } else if (GET_OPCODE(i) == Lua.OP_CLOSURE) {
+                for (int n = 0; n < p.p[GETARG_Bx(i)].nups; n++) {
+                    if (markPseudoInstruction(++pc) && GET_OPCODE(code[pc]) == Lua.OP_MOVE) {
+                        captured.set(GETARG_B(code[pc]));
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean markPseudoInstruction(int pc) {
+        if (pc >= code.length) {
+            return false;
+        }
+        pseudoInstruction[pc] = true;
+        return true;
+    }
+
+    private void solve() {
+        final int length = code.length;
+        final BitSet[] use = new BitSet[length];
+        final BitSet[] def = new BitSet[length];
+        final int[][] successors = new int[length][];
+        final BitSet[] liveIn = new BitSet[length];
+        for (int pc = 0; pc < length; pc++) {
+            use[pc] = new BitSet();
+            def[pc] = new BitSet();
+            liveIn[pc] = new BitSet();
+            liveOut[pc] = new BitSet();
+            if (pseudoInstruction[pc]) {
+                successors[pc] = new int[0];
+            } else {
+                successors[pc] = analyzeInstruction(pc, use[pc], def[pc]);
+                for (int target : successors[pc]) {
+                    if (target != pc + 1 && target >= 0 && target < length) {
+                        branchTarget[target] = true;
+                    }
+                }
+            }
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (int pc = length - 1; pc >= 0; pc--) {
+                BitSet out = liveOut[pc];
+                for (int target : successors[pc]) {
+                    if (target >= 0 && target < length) {
+                        out.or(liveIn[target]);
+                    }
+                }
+
+                BitSet in = (BitSet)out.clone();
+                in.andNot(def[pc]);
+                in.or(use[pc]);
+                if (!in.equals(liveIn[pc])) {
+                    liveIn[pc] = in;
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+
+    /**
+     * Collects the registers read ({@code use}) and always overwritten ({@code def}) by an instruction.
+     *
+     * @return The program counters of the instructions that may execute next.
+     */
+    private int[] analyzeInstruction(int pc, BitSet use, BitSet def) {
+        final int i = code[pc];
+        final int a = GETARG_A(i);
+        final int b = GETARG_B(i);
+        final int c = GETARG_C(i);
+
+        switch (GET_OPCODE(i)) {
+        case Lua.OP_MOVE:
+        case Lua.OP_UNM:
+        case Lua.OP_NOT:
+        case Lua.OP_LEN:
+            use.set(b);
+            def.set(a);
+            break;
+        case Lua.OP_LOADK:
+        case Lua.OP_GETUPVAL:
+        case Lua.OP_GETGLOBAL:
+        case Lua.OP_NEWTABLE:
+            def.set(a);
+            break;
+        case Lua.OP_LOADBOOL:
+            def.set(a);
+            if (c != 0) {
+                return new int[] { pc + 2 };
+            }
+            break;
+        case Lua.OP_LOADNIL:
+            def.set(a, b + 1);
+            break;
+        case Lua.OP_SETGLOBAL:
+        case Lua.OP_SETUPVAL:
+            use.set(a);
+            break;
+        case Lua.OP_GETTABLE:
+            use.set(b);
+            useRK(use, c);
+            def.set(a);
+            break;
+        case Lua.OP_SETTABLE:
+            use.set(a);
+            useRK(use, b);
+            useRK(use, c);
+            break;
+        case Lua.OP_SELF:
+            use.set(b);
+            useRK(use, c);
+            def.set(a, a + 2);
+            break;
+        case Lua.OP_ADD:
+        case Lua.OP_SUB:
+        case Lua.OP_MUL:
+        case Lua.OP_DIV:
+        case Lua.OP_MOD:
+        case Lua.OP_POW:
+            useRK(use, b);
+            useRK(use, c);
+            def.set(a);
+            break;
+        case Lua.OP_CONCAT:
+            use.set(b, c + 1);
+            def.set(a);
+            break;
+        case Lua.OP_JMP:
+            return new int[] { pc + 1 + GETARG_sBx(i) };
+        case Lua.OP_EQ:
+        case Lua.OP_LT:
+        case Lua.OP_LE:
+            useRK(use, b);
+            useRK(use, c);
+            return new int[] { pc + 1, pc + 2 };
+        case Lua.OP_TEST:
+            use.set(a);
+            return new int[] { pc + 1, pc + 2 };
+        case Lua.OP_TESTSET:
+            use.set(b);
+            return new int[] { pc + 1, pc + 2 };
+        case Lua.OP_FORLOOP:
+            use.set(a, a + 3);
+            return new int[] { pc + 1, pc + 1 + GETARG_sBx(i) };
+        case Lua.OP_FORPREP:
+            use.set(a, a + 3);
+            return new int[] { pc + 1 + GETARG_sBx(i) };
+        case Lua.OP_TFORLOOP:
+            useFrom(use, a);
+            return new int[] { pc + 1, pc + 2 };
+        case Lua.OP_CALL:
+            useFrom(use, a);
+            break;
+        case Lua.OP_SETLIST:
+            useFrom(use, a);
+            if (c == 0) {
+                return new int[] { pc + 2 }; // Skip the block number
+            }
+            break;
+        case Lua.OP_TAILCALL:
+        case Lua.OP_RETURN:
+            useFrom(use, a);
+            return new int[0];
+        case Lua.OP_CLOSURE:
+            def.set(a);
+            return new int[] { pc + 1 + p.p[GETARG_Bx(i)].nups }; // Skip the upvalue descriptions
+        case Lua.OP_VARARG:
+        case Lua.OP_CLOSE:
+        default:
+            break;
+        }
+        return new int[] { pc + 1 };
+    }
+
+    private static void useRK(BitSet use, int rk) {
+        if (!ISK(rk)) {
+            use.set(rk);
+        }
+    }
+
+    private void useFrom(BitSet use, int register) {
+        if (register < numRegisters) {
+            use.set(register, numRegisters);
+        }
+    }
+
+}
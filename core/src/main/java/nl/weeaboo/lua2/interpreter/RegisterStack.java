@@ -0,0 +1,98 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+/**
+ * Register storage shared by all stack frames of a single thread. Each {@link StackFrame} is a window
+ * ({@code base}, {@code maxstacksize}) into one of the segments.
+ * <p>
+ * Instead of reallocating a single array when it runs out of space, the register stack grows by adding
+ * segments. A frame that doesn't fit in its parent's segment starts at index 0 of the next segment. Segments
+ * are never moved, so open upvalues and register arrays cached in (suspended) Java stack frames stay valid.
+ * <p>
+ * All registers above the window of the topmost frame are {@code NIL}.
+ */
+@LuaSerializable
+public final class RegisterStack implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_SEGMENT_SIZE = 256;
+    private static final int MAX_SEGMENT_SIZE = 8192;
+
+    private LuaValue[][] segments = new LuaValue[2][];
+    private int segmentCount;
+
+    /**
+     * @param prev The segment containing the parent frame, or {@code null} if there's no parent frame.
+     * @param minSize The number of registers required.
+     * @return The segment directly after {@code prev}, allocating or replacing it if it doesn't exist or is
+     *         too small.
+     */
+    LuaValue[] segmentAfter(LuaValue[] prev, int minSize) {
+        int index = 0;
+        if (prev != null) {
+            index = indexOf(prev) + 1;
+            if (index == 0) {
+                index = segmentCount; // Not one of our segments
+            }
+        }
+
+        if (index < segmentCount && segments[index].length >= minSize) {
+            return segments[index];
+        }
+
+        int size = INITIAL_SEGMENT_SIZE;
+        if (index > 0) {
+            size = Math.min(MAX_SEGMENT_SIZE, segments[index - 1].length << 1);
+        }
+        size = Math.max(minSize, size);
+
+        if (index >= segments.length) {
+            segments = Arrays.copyOf(segments, index + 2);
+        }
+        LuaValue[] segment = newSegment(size);
+        segments[index] = segment;
+        segmentCount = Math.max(segmentCount, index + 1);
+        return segment;
+    }
+
+    private int indexOf(LuaValue[] segment) {
+        for (int n = segmentCount - 1; n >= 0; n--) {
+            if (segments[n] == segment) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    LuaValue[] segment(int index) {
+        return segments[index];
+    }
+
+    /** @return The total number of registers in all segments */
+    public int capacity() {
+        int result = 0;
+        for (int n = 0; n < segmentCount; n++) {
+            result += segments[n].length;
+        }
+        return result;
+    }
+
+    static LuaValue[] newSegment(int size) {
+        LuaValue[] segment = new LuaValue[size];
+        Arrays.fill(segment, NIL);
+        return segment;
+    }
+
+}
@@ -1,5 +1,6 @@
 package nl.weeaboo.lua2.interpreter;
 
+import static nl.weeaboo.lua2.LuaUtil.copyArgs;
 import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
 import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 
@@ -14,6 +15,7 @@ import nl.weeaboo.lua2.vm.Lua;
 import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaFunction;
 import nl.weeaboo.lua2.vm.LuaTable;
+import nl.weeaboo.lua2.vm.LuaThread;
 import nl.weeaboo.lua2.vm.LuaValue;
 import nl.weeaboo.lua2.vm.Prototype;
 import nl.weeaboo.lua2.vm.UpValue;
@@ -26,18 +28,30 @@ public final class StackFrame implements Externalizable {
 		FRESH, RUNNING, PAUSED, DEAD
 	}
 
+	/** How a frame was called by its parent, see {@link LuaInterpreter} */
+	enum CallType {
+		/** Regular call, the return values are stored in the parent's registers */
+		NORMAL,
+		/** Function called through pcall, catches errors and prefixes the return values with {@code true} */
+		PROTECTED,
+		/** Iterator of a generic for loop, the parent continues its {@code OP_TFORLOOP} after the call */
+		ITERATOR
+	}
+
 	// --- Uses manual serialization, don't add variables ---
 	Status status;
 	LuaClosure c;      //The closure that's being called
-	Varargs args;      //The args given
+	Varargs args;      //The args given (NONE if the args were passed in-place on the register stack)
 	Varargs varargs;   //The varargs part of the arguments given
 
 	StackFrame parent; //Link to calling context
 	int parentCount;   //Number of parents
 	int returnBase;    //Stack offset in parent to write return values to
 	int returnCount;   //Number of return values to write in parent stack
+	CallType callType; //What to do with the return values
 
-	LuaValue[] stack;
+	LuaValue[] stack;  //Register stack segment containing this frame's registers
+	int base;          //Offset of register 0 in stack
 	UpValue[] openups;
 	Varargs v;
 	int top;
@@ -48,13 +62,64 @@ public final class StackFrame implements Externalizable {
 	public StackFrame() {
 	}
 
+    /**
+     * Creates a stack frame that isn't backed by a thread's register stack.
+     */
     public static StackFrame newInstance(LuaClosure c, Varargs args, StackFrame parent, int returnBase,
             int returnCount) {
 
         StackFrame frame = new StackFrame();
-		frame.prepareCall(c, args, parent, returnBase, returnCount);
-		return frame;
-	}
+        frame.prepareCall(null, c, args, parent, returnBase, returnCount);
+        return frame;
+    }
+
+    /**
+     * Creates a stack frame on top of {@code parent}, allocating the frame from the thread's frame pool and
+     * its registers from the thread's register stack.
+     */
+    public static StackFrame newInstance(LuaThread thread, LuaClosure c, Varargs args, StackFrame parent,
+            int returnBase, int returnCount) {
+
+        StackFrame frame = allocFrame(thread.getFramePool());
+        frame.prepareCall(thread, c, args, parent, returnBase, returnCount);
+        return frame;
+    }
+
+    /**
+     * Creates a stack frame for a call from Lua code where the arguments are already stored in the parent's
+     * registers. If possible, the new frame's registers start at the first argument so the arguments don't
+     * need to be copied. Otherwise, the frame is placed in the next register stack segment.
+     *
+     * @param parent The calling frame.
+     * @param a Register in the parent containing the function to call, arguments start at {@code a + 1}.
+     * @param nargs The number of arguments.
+     */
+    static StackFrame newInstance(LuaThread thread, LuaClosure c, StackFrame parent, int a, int nargs,
+            int returnCount) {
+
+        final StackFramePool pool = thread.getFramePool();
+        final int maxstacksize = c.getPrototype().maxstacksize;
+        final int argsBase = parent.base + a + 1;
+
+        StackFrame frame = allocFrame(pool);
+        if (argsBase + maxstacksize <= parent.stack.length) {
+            frame.stack = parent.stack;
+            frame.base = argsBase;
+        } else {
+            frame.stack = thread.getRegisterStack().segmentAfter(parent.stack, maxstacksize);
+            frame.base = 0;
+        }
+        frame.prepareRegisterCall(pool, c, parent, parent.stack, argsBase, nargs, a, returnCount);
+        return frame;
+    }
+
+    private static StackFrame allocFrame(StackFramePool pool) {
+        StackFrame frame = pool.allocFrame();
+        if (frame == null) {
+            frame = new StackFrame();
+        }
+        return frame;
+    }
 
     /** Closes every frame in the callstack */
     public static void releaseCallstack(StackFrame frame) {
@@ -73,6 +138,7 @@ public final class StackFrame implements Externalizable {
 		out.writeObject(varargs);
 
 		out.writeObject(stack);
+		out.writeInt(base);
 		out.writeObject(openups);
 		out.writeObject(v);
 		out.writeInt(top);
@@ -82,6 +148,7 @@ public final class StackFrame implements Externalizable {
 		out.writeInt(parentCount);
 		out.writeInt(returnBase);
 		out.writeInt(returnCount);
+		out.writeObject(callType);
 	}
 
 	@Override
@@ -92,6 +159,7 @@ public final class StackFrame implements Externalizable {
 		varargs = (Varargs)in.readObject();
 
 		stack = (LuaValue[])in.readObject();
+		base = in.readInt();
 		openups = (UpValue[])in.readObject();
 		v = (Varargs)in.readObject();
 		top = in.readInt();
@@ -101,16 +169,81 @@ public final class StackFrame implements Externalizable {
 		parentCount = in.readInt();
 		returnBase = in.readInt();
 		returnCount = in.readInt();
+		callType = (CallType)in.readObject();
 	}
 
 	public void close() {
+		close(null);
+	}
+
+    /**
+     * @param pool (optional) If not {@code null}, the frame's registers are cleared and its open upvalues
+     *        array is returned to this pool. Only pass a pool for frames that have been removed from the top
+     *        of the callstack.
+     */
+    void close(StackFramePool pool) {
 		status = Status.DEAD;
 
 		closeUpValues();
 
+        if (pool != null) {
+            clearRegisters();
+            releaseArrays(pool);
+        }
         stack = null;
 	}
 
+    /**
+     * Closes this frame and moves its return values directly into the result registers of the parent frame.
+     * Only valid for frames that have just been removed from the top of the callstack.
+     *
+     * @param from Register containing the first return value.
+     * @param count The number of return values.
+     */
+    void closeAndReturn(StackFramePool pool, int from, int count) {
+        status = Status.DEAD;
+
+        closeUpValues();
+
+        // The result registers may overlap with our registers, arraycopy handles that correctly
+        final LuaValue[] dst = parent.stack;
+        final int dstStart = parent.base + returnBase;
+        final int dstEnd = dstStart + returnCount;
+        final int n = Math.min(count, returnCount);
+        System.arraycopy(stack, base + from, dst, dstStart, n);
+        Arrays.fill(dst, dstStart + n, dstEnd, NIL);
+
+        // Clear our registers, except the ones that now contain the results
+        int clearStart = base;
+        if (dst == stack) {
+            clearStart = Math.max(clearStart, dstEnd);
+        }
+        int clearEnd = Math.min(stack.length, base + c.getPrototype().maxstacksize);
+        if (clearStart < clearEnd) {
+            Arrays.fill(stack, clearStart, clearEnd, NIL);
+        }
+
+        releaseArrays(pool);
+        stack = null;
+    }
+
+    void releaseArrays(StackFramePool pool) {
+        if (openups != null && openups.length > 0) {
+            pool.freeOpenUps(openups);
+        }
+        openups = UpValue.NOUPVALUES;
+    }
+
+    /** Clears references to other objects, so a pooled frame doesn't keep them alive. */
+    void clearReferences() {
+        c = null;
+        args = null;
+        varargs = null;
+        parent = null;
+        stack = null;
+        v = null;
+    }
+
 	public void closeUpValues() {
         for (int u = openups.length; --u >= 0;) {
             if (openups[u] != null) {
@@ -120,16 +253,56 @@ public final class StackFrame implements Externalizable {
 		}
 	}
 
-	private void resetExecutionState(int minStackSize, int subFunctionCount) {
-        if (stack == null || stack.length != minStackSize) {
-            stack = new LuaValue[minStackSize];
-		}
-        Arrays.fill(stack, NIL);
+    /** Resets this frame's registers to {@code NIL}, so the register stack doesn't keep garbage alive. */
+    private void clearRegisters() {
+        if (stack != null && c != null) {
+            int end = Math.min(stack.length, base + c.getPrototype().maxstacksize);
+            Arrays.fill(stack, base, end, NIL);
+        }
+    }
+
+    /**
+     * Chooses the register window for a frame called from {@code parent} (directly above the parent's
+     * registers if possible).
+     */
+    private void allocRegisters(RegisterStack registers, StackFrame parent, int size) {
+        if (parent != null && parent.stack != null) {
+            int end = parent.base + parent.c.getPrototype().maxstacksize;
+            if (end + size <= parent.stack.length) {
+                stack = parent.stack;
+                base = end;
+                return;
+            }
+        }
 
-		if (subFunctionCount == 0) {
+        base = 0;
+        if (registers != null) {
+            stack = registers.segmentAfter(parent != null ? parent.stack : null, size);
+        } else {
+            stack = RegisterStack.newSegment(size);
+        }
+    }
+
+	private void resetExecutionState(StackFramePool pool, int fromRegister, int minStackSize,
+	        int subFunctionCount) {
+
+        Arrays.fill(stack, base + fromRegister, base + minStackSize, NIL);
+
+        // Open upvalues array is always null-filled here, upvalues get closed when the frame is closed
+        if (subFunctionCount == 0) {
+            if (pool != null && openups != null && openups.length > 0) {
+                pool.freeOpenUps(openups);
+            }
             openups = UpValue.NOUPVALUES;
-		} else {
-			openups = new UpValue[minStackSize];
+        } else if (openups == null || openups.length < minStackSize) {
+            if (pool != null) {
+                if (openups != null && openups.length > 0) {
+                    pool.freeOpenUps(openups);
+                }
+                openups = pool.allocOpenUps(minStackSize);
+            } else {
+                openups = new UpValue[minStackSize];
+            }
 		}
 
 		v = NONE;
@@ -141,6 +314,18 @@ public final class StackFrame implements Externalizable {
 		return parentCount + 1; //(parent != null ? parentCount + 1 : 1);
 	}
 
+	public StackFrame getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return The index of the instruction this frame is executing, or of the call instruction if another
+	 *         function was called from this frame. Returns {@code -1} if the frame hasn't started running.
+	 */
+	public int getCurrentPc() {
+		return pc - 1;
+	}
+
 	public LuaFunction getCallstackFunction(int level) {
 		StackFrame sf = this;
 		while (--level >= 1) {
@@ -155,6 +340,12 @@ public final class StackFrame implements Externalizable {
 	public final void prepareCall(LuaClosure c, Varargs args,
 			StackFrame parent, int returnBase, int returnCount)
 	{
+        prepareCall(null, c, args, parent, returnBase, returnCount);
+    }
+
+    private void prepareCall(LuaThread thread, LuaClosure c, Varargs args,
+            StackFrame parent, int returnBase, int returnCount)
+    {
 		final Prototype p = c.getPrototype();
 
 		this.status = Status.FRESH;
@@ -166,20 +357,116 @@ public final class StackFrame implements Externalizable {
 		this.parentCount = (parent != null ? parent.size() : 0);
 		this.returnBase = returnBase;
 		this.returnCount = returnCount;
+		this.callType = CallType.NORMAL;
 
-		resetExecutionState(p.maxstacksize, p.p.length);
+		StackFramePool pool = null;
+		RegisterStack registers = null;
+		if (thread != null) {
+		    pool = thread.getFramePool();
+		    registers = thread.getRegisterStack();
+		}
+		allocRegisters(registers, parent, p.maxstacksize);
+		resetExecutionState(pool, 0, p.maxstacksize, p.p.length);
 
 		//Push params on stack
 		for (int i = 0; i < p.numparams; i++) {
-			stack[i] = args.arg(i + 1);
+			stack[base + i] = args.arg(i + 1);
 		}
 		if (p.is_vararg >= Lua.VARARG_NEEDSARG) {
-			stack[p.numparams] = new LuaTable(args.subargs(p.numparams + 1));
+			stack[base + p.numparams] = new LuaTable(args.subargs(p.numparams + 1));
 		}
 	}
 
+    /**
+     * Initializes a frame for a call with the arguments stored in registers. The {@link #stack} and
+     * {@link #base} must already be set, and may be the same as the location of the arguments.
+     */
+    private void prepareRegisterCall(StackFramePool pool, LuaClosure c, StackFrame parent, LuaValue[] argsStack,
+            int argsBase, int nargs, int returnBase, int returnCount) {
+
+        this.status = Status.FRESH;
+
+        this.parent = parent;
+        this.parentCount = parent.size();
+        this.returnBase = returnBase;
+        this.returnCount = returnCount;
+        this.callType = CallType.NORMAL;
+
+        prepareRegisterArgs(pool, c, argsStack, argsBase, nargs);
+    }
+
+    private void prepareRegisterArgs(StackFramePool pool, LuaClosure c, LuaValue[] argsStack, int argsBase,
+            int nargs) {
+
+        final Prototype p = c.getPrototype();
+        final int numparams = p.numparams;
+        final int nparams = Math.min(nargs, numparams);
+
+        this.c = c;
+        this.args = NONE;
+
+        // The extra args may overlap with our registers, so they need to be copied
+        if (p.is_vararg != 0 && nargs > numparams) {
+            this.varargs = copyArgs(argsStack, argsBase + numparams, nargs - numparams);
+        } else {
+            this.varargs = NONE;
+        }
+
+        if (argsStack != stack || argsBase != base) {
+            System.arraycopy(argsStack, argsBase, stack, base, nparams);
+        }
+
+        // Clear everything except the params
+        resetExecutionState(pool, nparams, p.maxstacksize, p.p.length);
+
+        if (p.is_vararg >= Lua.VARARG_NEEDSARG) {
+            stack[base + numparams] = new LuaTable(varargs);
+        }
+    }
+
+    /**
+     * Replaces the function executing in this frame, taking the arguments from this frame's registers.
+     *
+     * @param from Register containing the first argument.
+     * @param nargs The number of arguments.
+     */
+    final void prepareTailcall(LuaThread thread, LuaClosure c, int from, int nargs) {
+        closeUpValues(); //We're clobbering the stack, save the upvalues first
+
+        final StackFramePool pool = thread.getFramePool();
+        final int maxstacksize = c.getPrototype().maxstacksize;
+        final int oldEnd = Math.min(stack.length, base + this.c.getPrototype().maxstacksize);
+
+        //Don't change status or parent
+
+        if (base + maxstacksize <= stack.length) {
+            prepareRegisterArgs(pool, c, stack, base + from, nargs);
+
+            // The new window was cleared (except for the params and arg table), clear the rest of the old one
+            int clearStart = base + maxstacksize;
+            if (clearStart < oldEnd) {
+                Arrays.fill(stack, clearStart, oldEnd, NIL);
+            }
+        } else {
+            // Doesn't fit in the current segment
+            final LuaValue[] oldStack = stack;
+            final int oldBase = base;
+
+            stack = thread.getRegisterStack().segmentAfter(oldStack, maxstacksize);
+            base = 0;
+            prepareRegisterArgs(pool, c, oldStack, oldBase + from, nargs);
+
+            Arrays.fill(oldStack, oldBase, oldEnd, NIL);
+        }
+    }
+
     public final void prepareTailcall(LuaClosure c, Varargs args) {
+        prepareTailcall(null, c, args);
+    }
+
+    final void prepareTailcall(LuaThread thread, LuaClosure c, Varargs args) {
 		closeUpValues(); //We're clobbering the stack, save the upvalues first
+		clearRegisters();
 
 		final Prototype p = c.getPrototype();
 
@@ -191,14 +478,27 @@ public final class StackFrame implements Externalizable {
 
 		//Don't change parent
 
-		resetExecutionState(p.maxstacksize, p.p.length);
+		StackFramePool pool = null;
+		if (base + p.maxstacksize > stack.length) {
+		    // Doesn't fit in the current segment
+		    base = 0;
+		    if (thread != null) {
+		        stack = thread.getRegisterStack().segmentAfter(stack, p.maxstacksize);
+		    } else {
+		        stack = RegisterStack.newSegment(p.maxstacksize);
+		    }
+		}
+		if (thread != null) {
+		    pool = thread.getFramePool();
+		}
+		resetExecutionState(pool, 0, p.maxstacksize, p.p.length);
 
 		//Push params on stack
 		for (int i = 0; i < p.numparams; i++) {
-			stack[top + i] = args.arg(i + 1);
+			stack[base + i] = args.arg(i + 1);
 		}
 		if (p.is_vararg >= Lua.VARARG_NEEDSARG) {
-			stack[p.numparams] = new LuaTable(args.subargs(p.numparams + 1));
+			stack[base + p.numparams] = new LuaTable(args.subargs(p.numparams + 1));
 		}
 	}
 
@@ -0,0 +1,132 @@
+package nl.weeaboo.lua2.interpreter;
+
+import nl.weeaboo.lua2.vm.UpValue;
+
+/**
+ * Per-thread free list of {@link StackFrame} objects and their open upvalue arrays. Registers are allocated
+ * from the thread's {@link RegisterStack} instead.
+ * <p>
+ * Arrays are recycled by size class (the next power of two), so a returned array may be longer than the
+ * {@code maxstacksize} it was requested for. Arrays handed out by this pool are always filled with
+ * {@code null}.
+ * <p>
+ * A pool is not thread-safe and isn't serialized; it's owned by exactly one {@code LuaThread}.
+ */
+public final class StackFramePool {
+
+    private static final int MAX_POOLED_FRAMES = 64;
+
+    private final StackFrame[] frames = new StackFrame[MAX_POOLED_FRAMES];
+    private int frameCount;
+
+    private final ArrayPool openups = new ArrayPool();
+
+    /**
+     * @return A recycled frame, or {@code null} if the pool is empty. The returned frame must be
+     *         initialized before use.
+     */
+    StackFrame allocFrame() {
+        if (frameCount == 0) {
+            return null;
+        }
+
+        StackFrame frame = frames[--frameCount];
+        frames[frameCount] = null;
+        return frame;
+    }
+
+    /**
+     * Returns a frame and its open upvalues array to the pool. The frame must already be closed and may no
+     * longer be referenced by the callstack.
+     */
+    void freeFrame(StackFrame frame) {
+        frame.releaseArrays(this);
+        frame.clearReferences();
+
+        if (frameCount < MAX_POOLED_FRAMES) {
+            frames[frameCount++] = frame;
+        }
+    }
+
+    /**
+     * @return A null-filled array with a length of at least {@code minSize}.
+     */
+    UpValue[] allocOpenUps(int minSize) {
+        UpValue[] result = (UpValue[])openups.alloc(minSize);
+        if (result == null) {
+            result = new UpValue[ArrayPool.pooledLength(minSize)];
+        }
+        return result;
+    }
+
+    /**
+     * Returns an open upvalues array to the pool. All elements must be {@code null}.
+     */
+    void freeOpenUps(UpValue[] ups) {
+        if (ArrayPool.isPoolable(ups.length)) {
+            openups.free(ups);
+        }
+    }
+
+    /** Free lists of arrays, indexed by size class. */
+    private static final class ArrayPool {
+
+        /** Arrays larger than this aren't pooled (the compiler limits maxstacksize to 250). */
+        private static final int MAX_POOLED_LENGTH = 256;
+        private static final int SIZE_CLASSES = 9; // 1, 2, 4, ..., 256
+        private static final int MAX_PER_CLASS = 32;
+
+        private final Object[][][] free = new Object[SIZE_CLASSES][MAX_PER_CLASS][];
+        private final int[] counts = new int[SIZE_CLASSES];
+
+        /** @return A pooled array, or {@code null} if no suitable array is available. */
+        Object[] alloc(int minSize) {
+            if (minSize > MAX_POOLED_LENGTH) {
+                return null;
+            }
+
+            int sizeClass = sizeClass(minSize);
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+
+            Object[][] list = free[sizeClass];
+            Object[] result = list[--count];
+            list[count] = null;
+            counts[sizeClass] = count;
+            return result;
+        }
+
+        void free(Object[] array) {
+            int sizeClass = sizeClass(array.length);
+            int count = counts[sizeClass];
+            if (count < MAX_PER_CLASS) {
+                free[sizeClass][count] = array;
+                counts[sizeClass] = count + 1;
+            }
+        }
+
+        /** @return The length of the array that would be allocated for the requested size. */
+        static int pooledLength(int minSize) {
+            if (minSize > MAX_POOLED_LENGTH) {
+                return minSize;
+            }
+            return 1 << sizeClass(minSize);
+        }
+
+        /** Arrays with lengths other than one of the size classes weren't allocated by the pool. */
+        static boolean isPoolable(int length) {
+            return length > 0 && length <= MAX_POOLED_LENGTH && Integer.bitCount(length) == 1;
+        }
+
+        /** @return The exponent of the smallest power of two {@code >= size} */
+        static int sizeClass(int size) {
+            if (size <= 1) {
+                return 0;
+            }
+            return 32 - Integer.numberOfLeadingZeros(size - 1);
+        }
+    }
+
+}
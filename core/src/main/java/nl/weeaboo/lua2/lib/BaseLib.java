@@ -35,7 +35,9 @@ import java.io.Serializable;
 
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.compiler.LoadState;
+import nl.weeaboo.lua2.interpreter.CompiledChunk;
 import nl.weeaboo.lua2.io.LuaSerializable;
+import nl.weeaboo.lua2.vm.LuaClosure;
 import nl.weeaboo.lua2.vm.LuaConstants;
 import nl.weeaboo.lua2.vm.LuaError;
 import nl.weeaboo.lua2.vm.LuaInteger;
@@ -162,7 +164,7 @@ public class BaseLib extends OneArgFunction {
                 }
                 return NIL;
             case 1: // "error", // ( message [,level] ) -> ERR
-                throw new LuaError(arg1.isnil() ? null : arg1.tojstring(), null, arg2.optint(1));
+                throw LuaError.luaError(arg1.isnil() ? null : arg1.tojstring(), arg2.optint(1));
             case 2: { // "setfenv", // (f, table) -> void
                 LuaTable t = arg2.checktable();
                 LuaValue f = getfenvobj(arg1);
@@ -374,13 +376,28 @@ public class BaseLib extends OneArgFunction {
     public static Varargs pcall(LuaValue func, Varargs args, LuaValue errfunc) {
         try {
             return varargsOf(TRUE, func.invoke(args));
-        } catch (LuaError le) {
-            String m = le.getMessage();
-            return varargsOf(FALSE, m != null ? valueOf(m) : NIL);
         } catch (Exception e) {
-            String m = e.getMessage();
-            return varargsOf(FALSE, valueOf(m != null ? m : e.toString()));
+            return pcallError(e);
+        }
+    }
+
+    /**
+     * @return The return values of pcall for a call that failed with the given exception.
+     */
+    public static Varargs pcallError(Exception e) {
+        String m = e.getMessage();
+        if (e instanceof LuaError) {
+            return varargsOf(FALSE, m != null ? valueOf(m) : NIL);
         }
+        return varargsOf(FALSE, valueOf(m != null ? m : e.toString()));
+    }
+
+    /**
+     * @return {@code true} if the function is the {@code pcall} function of a base library instance. The
+     *         interpreter handles calls to it without calling it from Java.
+     */
+    public static boolean isPcall(LuaValue function) {
+        return function instanceof BaseLibV && ((BaseLibV)function).opcode == 7;
     }
 
     /**
@@ -389,6 +406,12 @@ public class BaseLib extends OneArgFunction {
      * @return Varargs containing chunk, or NIL,error-text on error
      */
     public static Varargs loadFile(String filename) {
+        // Scripts compiled ahead of time don't need to be parsed
+        LuaClosure compiled = CompiledChunk.load(filename, LuaThread.getRunning().getfenv());
+        if (compiled != null) {
+            return compiled;
+        }
+
         LuaRunState lrs = LuaRunState.getCurrent();
         LuaResource r = lrs.findResource(filename);
         if (r == null) {
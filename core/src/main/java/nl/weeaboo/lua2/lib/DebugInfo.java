@@ -28,6 +28,7 @@ final class DebugInfo implements Externalizable {
     LuaValue func;
     LuaClosure closure;
     LuaValue[] stack;
+    int base;
     Varargs varargs, extras;
     int pc, top;
     // --- Uses manual serialization, don't add variables ---
@@ -41,11 +42,19 @@ final class DebugInfo implements Externalizable {
         setfunction(func);
     }
 
+    /** Copies the function and program counter, enough to look up the names and line numbers */
+    DebugInfo(DebugInfo di) {
+        func = di.func;
+        closure = di.closure;
+        pc = di.pc;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeObject(func);
         out.writeObject(closure);
         out.writeObject(stack);
+        out.writeInt(base);
         out.writeObject(varargs);
         out.writeObject(extras);
         out.writeInt(pc);
@@ -57,15 +66,17 @@ final class DebugInfo implements Externalizable {
         func = (LuaValue)in.readObject();
         closure = (LuaClosure)in.readObject();
         stack = (LuaValue[])in.readObject();
+        base = in.readInt();
         varargs = (Varargs)in.readObject();
         extras = (Varargs)in.readObject();
         pc = in.readInt();
         top = in.readInt();
     }
 
-    void setargs(Varargs varargs, LuaValue[] stack) {
+    void setargs(Varargs varargs, LuaValue[] stack, int base) {
         this.varargs = varargs;
         this.stack = stack;
+        this.base = base;
     }
 
     void setfunction(LuaValue func) {
@@ -77,6 +88,7 @@ final class DebugInfo implements Externalizable {
         func = NIL;
         closure = null;
         stack = null;
+        base = 0;
         varargs = extras = null;
         pc = top = 0;
     }
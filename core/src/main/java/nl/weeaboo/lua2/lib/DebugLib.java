@@ -178,13 +178,25 @@ public class DebugLib extends VarArgFunction {
         return (DebugState)thread.debugState;
     }
 
+    /**
+     * @return {@code true} if a line or count hook is set for the thread, these hooks require the interpreter
+     *         to call {@link #debugBytecode(LuaThread, int, Varargs, int)} for every instruction.
+     */
+    public static boolean hasInstructionHook(LuaThread thread) {
+        if (!DEBUG_ENABLED || thread.debugState == null) {
+            return false;
+        }
+        DebugState ds = (DebugState)thread.debugState;
+        return ds.hookline || ds.hookcount > 0;
+    }
+
     /** Called by Closures to set up stack and arguments to next call */
-    public static void debugSetupCall(LuaThread thread, Varargs args, LuaValue[] stack) {
+    public static void debugSetupCall(LuaThread thread, Varargs args, LuaValue[] stack, int base) {
         DebugState ds = getDebugState(thread);
         if (ds.inhook) {
             return;
         }
-        ds.nextInfo().setargs(args, stack);
+        ds.nextInfo().setargs(args, stack, base);
     }
 
     /**
@@ -405,7 +417,7 @@ public class DebugLib extends VarArgFunction {
         DebugInfo di = ds.getDebugInfo(level - 1);
         LuaString name = (di != null ? di.getlocalname(local) : null);
         if (name != null) {
-            LuaValue value = di.stack[local - 1];
+            LuaValue value = di.stack[di.base + local - 1];
             return varargsOf(name, value);
         } else {
             return NIL;
@@ -423,7 +435,7 @@ public class DebugLib extends VarArgFunction {
         DebugInfo di = ds.getDebugInfo(level - 1);
         LuaString name = (di != null ? di.getlocalname(local) : null);
         if (name != null) {
-            di.stack[local - 1] = value;
+            di.stack[di.base + local - 1] = value;
             return name;
         } else {
             return NIL;
@@ -559,21 +571,29 @@ public class DebugLib extends VarArgFunction {
     }
 
     public static StackTraceElement[] getStackTrace(LuaThread thread, int levelOffset, int count) {
+        return snapshotStack(thread, levelOffset, count).toStackTrace();
+    }
+
+    /**
+     * Records up to {@code count} levels of the callstack, starting at {@code levelOffset}. Unlike
+     * {@link #getStackTrace(LuaThread, int, int)}, this doesn't look up any names or line numbers yet.
+     */
+    public static StackSnapshot snapshotStack(LuaThread thread, int levelOffset, int count) {
         if (thread == null) {
-            return new StackTraceElement[0];
+            return StackSnapshot.EMPTY;
         }
 
         DebugState ds = getDebugState(thread);
 
-        List<StackTraceElement> out = new ArrayList<StackTraceElement>();
+        List<DebugInfo> out = new ArrayList<DebugInfo>(count);
         for (int level = 0; level < count; level++) {
             DebugInfo di = ds.getDebugInfo(levelOffset + level);
             if (di == null) {
                 break;
             }
-            out.add(new StackTraceElement("Lua", di.tracename(), di.source(), di.currentline()));
+            out.add(new DebugInfo(di));
         }
-        return out.toArray(new StackTraceElement[out.size()]);
+        return new StackSnapshot(out.toArray(new DebugInfo[out.size()]));
     }
 
     /**
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import nl.weeaboo.lua2.interpreter.StackFrame;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.vm.LuaError;
 import nl.weeaboo.lua2.vm.LuaString;
@@ -108,7 +109,7 @@ final class DebugState implements Externalizable {
         inhook = true;
         try {
             int n = debugCalls;
-            ds.nextInfo().setargs(arg, null);
+            ds.nextInfo().setargs(arg, null, 0);
             ds.pushInfo(n + 1).setfunction(hookfunc);
             try {
                 hookfunc.call(type, arg);
@@ -139,18 +140,42 @@ final class DebugState implements Externalizable {
     }
 
     DebugInfo getDebugInfo(int level) {
-        return level < 0 || level >= debugCalls ? null : debugInfo[debugCalls - level - 1];
+        if (level < 0 || level >= debugCalls) {
+            return null;
+        }
+        DebugInfo di = debugInfo[debugCalls - level - 1];
+        updatePc(di, debugCalls - level);
+        return di;
     }
 
     public DebugInfo findDebugInfo(LuaValue func) {
         for (int i = debugCalls; --i >= 0;) {
             if (debugInfo[i].func == func) {
+                updatePc(debugInfo[i], i + 1);
                 return debugInfo[i];
             }
         }
         return new DebugInfo(func);
     }
 
+    /**
+     * The interpreter only updates {@link DebugInfo#pc} while hooks are active. Otherwise, the current pc is
+     * only stored in the stack frame at the same call depth.
+     */
+    private void updatePc(DebugInfo di, int calls) {
+        for (StackFrame sf = thread.callstack; sf != null; sf = sf.getParent()) {
+            int size = sf.size();
+            if (size == calls) {
+                if (di.closure != null && di.closure == sf.getCallstackFunction(1)) {
+                    di.pc = sf.getCurrentPc();
+                }
+                return;
+            } else if (size < calls) {
+                return;
+            }
+        }
+    }
+
     public String tojstring() {
         return DebugLib.traceback(thread, 0);
     }
@@ -0,0 +1,39 @@
+package nl.weeaboo.lua2.lib;
+
+/**
+ * The function and program counter of each level of part of a Lua callstack. Taking a snapshot is cheap, the
+ * names and line numbers are only looked up when {@link #toStackTrace()} is called, even if the callstack has
+ * changed by then.
+ *
+ * @see DebugLib#snapshotStack(nl.weeaboo.lua2.vm.LuaThread, int, int)
+ */
+public final class StackSnapshot {
+
+    static final StackSnapshot EMPTY = new StackSnapshot(new DebugInfo[0]);
+
+    private final DebugInfo[] levels;
+
+    StackSnapshot(DebugInfo[] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * @return The number of levels in the snapshot.
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * @return Stack trace elements for each level, using "Lua" as the class name.
+     */
+    public StackTraceElement[] toStackTrace() {
+        StackTraceElement[] result = new StackTraceElement[levels.length];
+        for (int n = 0; n < levels.length; n++) {
+            DebugInfo di = levels[n];
+            result[n] = new StackTraceElement("Lua", di.tracename(), di.source(), di.currentline());
+        }
+        return result;
+    }
+
+}
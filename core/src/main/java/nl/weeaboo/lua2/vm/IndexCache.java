@@ -0,0 +1,230 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.INDEX;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+/**
+ * Inline cache for a single table access instruction with a constant string key ({@code OP_GETTABLE},
+ * {@code OP_SELF}, {@code OP_GETGLOBAL}, {@code OP_SETGLOBAL}). Remembers the hash part position the value was
+ * found in last time, either in the receiver itself or at the end of a chain of {@code __index} tables (up to
+ * {@link #MAX_DEPTH} levels, the way class hierarchies are usually built).
+ * <p>
+ * Keys found in a receiver with a {@link TableShape} are cached by shape instead, so the cache also works for
+ * other tables with the same shape (objects of the same class). A removed key leaves a {@code null} value at its
+ * position.
+ * <p>
+ * Cached positions are validated using {@link LuaTable#version}, which changes whenever a key is added or
+ * removed, the hash part is rebuilt or the metatable is replaced. A cached chain is valid as long as none of its
+ * metatables and {@code __index} tables changed version, and the receiver doesn't contain the key. Value changes
+ * don't invalidate the cache, the value is always read from the position. Tables with weak keys/values are never
+ * cached.
+ * <p>
+ * Caches are owned by a {@link Prototype}, aren't thread-safe and are never serialized.
+ */
+public final class IndexCache {
+
+    /** Maximum number of {@code __index} tables between the receiver and the table containing the key. */
+    static final int MAX_DEPTH = 8;
+
+    /** The table containing {@link #index}. */
+    private LuaTable holder;
+    private int holderVersion;
+    /** Position of the value in {@link LuaTable#hashValues} of the holder, or of tables with {@link #shape}. */
+    private int index;
+    /** The shape of the receiver, if the key was found in the receiver itself and it was shaped. */
+    private TableShape shape;
+
+    /**
+     * Number of {@code __index} tables followed to get to {@link #holder}, {@code 0} if the holder is the
+     * receiver itself.
+     */
+    private int depth;
+
+    /**
+     * The metatables in the chain, starting with the metatable of the receiver. Allocated when a chain is cached
+     * for the first time.
+     */
+    private LuaTable[] metas;
+    private int[] metaVersions;
+    /** The positions of the {@code __index} values of the metatables. */
+    private int[] metaIndexes;
+    /** The {@code __index} tables, the last one is the {@link #holder}. */
+    private LuaTable[] indexTables;
+    private int[] indexVersions;
+
+    /**
+     * Equivalent to {@code receiver.get(key)}.
+     *
+     * @param key A string key.
+     */
+    public LuaValue get(LuaValue receiver, LuaValue key) {
+        LuaValue result = find(receiver, key);
+        return (result != null ? result : receiver.get(key));
+    }
+
+    /**
+     * Looks up a value like {@link #get(LuaValue, LuaValue)}, but only using raw table accesses.
+     *
+     * @param key A string key.
+     * @return The value, or {@code null} if it can only be found using {@code receiver.get(key)}, for example
+     *         because it requires calling an {@code __index} function.
+     */
+    public LuaValue find(LuaValue receiver, LuaValue key) {
+        final LuaTable h = holder;
+        if (depth == 0) {
+            if (shape != null) {
+                if (receiver instanceof LuaTable && ((LuaTable)receiver).shape == shape) {
+                    LuaValue v = ((LuaTable)receiver).hashValues[index];
+                    if (v != null) {
+                        return v;
+                    }
+                }
+            } else if (receiver == h && h.version == holderVersion) {
+                return h.hashValues[index];
+            }
+        } else if (h.version == holderVersion && receiver.getmetatable() == metas[0] && isChainValid()
+                && (!receiver.istable() || ((LuaTable)receiver).hashget(key).isnil())) {
+            return h.hashValues[index];
+        }
+        return fill(receiver, key);
+    }
+
+    private boolean isChainValid() {
+        for (int n = 0; n < depth; n++) {
+            // The version of an __index table also covers the absence of the key, and its metatable
+            if (metas[n].version != metaVersions[n] || metas[n].hashValues[metaIndexes[n]] != indexTables[n]
+                    || indexTables[n].version != indexVersions[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equivalent to {@code receiver.set(key, value)}.
+     *
+     * @param key A string key.
+     */
+    public void set(LuaValue receiver, LuaValue key, LuaValue value) {
+        if (depth == 0 && !value.isnil()) {
+            // An existing key is overwritten without consulting __newindex
+            if (shape != null) {
+                if (receiver.getClass() == LuaTable.class && ((LuaTable)receiver).shape == shape) {
+                    LuaValue[] values = ((LuaTable)receiver).hashValues;
+                    if (values[index] != null) {
+                        values[index] = value;
+                        return;
+                    }
+                }
+            } else if (receiver == holder && holder.version == holderVersion) {
+                holder.hashValues[index] = value;
+                return;
+            }
+        }
+
+        receiver.set(key, value);
+
+        clear();
+        if (receiver.getClass() == LuaTable.class) {
+            // Subclasses may override hashset()
+            LuaTable t = (LuaTable)receiver;
+            int i = t.findIndex(key);
+            if (i >= 0) {
+                setHolder(t, i);
+            }
+        }
+    }
+
+    private LuaValue fill(LuaValue receiver, LuaValue key) {
+        // Don't keep the previously cached tables alive
+        clear();
+
+        if (receiver.istable()) {
+            LuaTable t = (LuaTable)receiver;
+            int i = t.findIndex(key);
+            if (i >= 0) {
+                setHolder(t, i);
+                return t.hashValues[i];
+            } else if (!isCacheable(t)) {
+                LuaValue v = t.hashget(key);
+                if (!v.isnil()) {
+                    return v;
+                }
+            }
+            if (t.m_metatable == null) {
+                return NIL;
+            }
+        } else if (!(receiver instanceof LuaString)) {
+            // Other types may override get()
+            return null;
+        }
+
+        // Try to find the key in the chain of __index tables
+        LuaValue mt = receiver.getmetatable();
+        for (int n = 0; n < MAX_DEPTH && mt != null && mt.istable(); n++) {
+            LuaTable m = (LuaTable)mt;
+            int mi = m.findIndex(INDEX);
+            if (mi < 0 || !m.hashValues[mi].istable()) {
+                break;
+            }
+
+            LuaTable t = (LuaTable)m.hashValues[mi];
+            if (!isCacheable(t)) {
+                break;
+            }
+            addLevel(m, mi, t);
+
+            int i = t.findIndex(key);
+            if (i >= 0) {
+                setHolder(t, i);
+                return t.hashValues[i];
+            }
+            mt = t.getmetatable();
+        }
+
+        clear();
+        return null;
+    }
+
+    private void setHolder(LuaTable t, int i) {
+        if (depth == 0 && t.shape != null) {
+            shape = t.shape;
+        } else {
+            holder = t;
+            holderVersion = t.version;
+        }
+        index = i;
+    }
+
+    private void addLevel(LuaTable meta, int metaIndex, LuaTable indexTable) {
+        if (metas == null) {
+            metas = new LuaTable[MAX_DEPTH];
+            metaVersions = new int[MAX_DEPTH];
+            metaIndexes = new int[MAX_DEPTH];
+            indexTables = new LuaTable[MAX_DEPTH];
+            indexVersions = new int[MAX_DEPTH];
+        }
+
+        final int n = depth++;
+        metas[n] = meta;
+        metaVersions[n] = meta.version;
+        metaIndexes[n] = metaIndex;
+        indexTables[n] = indexTable;
+        indexVersions[n] = indexTable.version;
+    }
+
+    private void clear() {
+        holder = null;
+        shape = null;
+        for (int n = 0; n < depth; n++) {
+            metas[n] = null;
+            indexTables[n] = null;
+        }
+        depth = 0;
+    }
+
+    private static boolean isCacheable(LuaTable table) {
+        return !(table.m_metatable instanceof WeakTable);
+    }
+
+}
@@ -1,8 +1,22 @@
 package nl.weeaboo.lua2.vm;
 
+import java.io.ObjectStreamException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.lib.DebugLib;
+import nl.weeaboo.lua2.lib.StackSnapshot;
 
+/**
+ * Errors raised by Lua code, such as by {@code error()} or a failed arithmetic, index or call operation, don't
+ * record a Java stack trace. Their stack trace consists of the Lua callstack at the time of the error, which is
+ * only converted to stack trace elements when it's requested. This keeps errors used for control flow (caught by
+ * {@code pcall}) cheap. Errors raised by Java code record the full Java stack trace, with the Lua callstack
+ * inserted at the point where Lua code called into Java.
+ *
+ * @see #luaError(String, int)
+ */
 @LuaSerializable
 public class LuaError extends RuntimeException {
 
@@ -10,9 +24,11 @@ public class LuaError extends RuntimeException {
 
 	private static final String DEFAULT_MESSAGE = "Lua error";
 	private static final int MAX_LEVELS = 8;
-	
+	private static final StackTraceElement[] NO_STACK_TRACE = new StackTraceElement[0];
+
 	private String message;
 	private Throwable cause;
+	private transient StackSnapshot luaStack; //Converted to a stack trace when requested
 
 	public LuaError() {
 		this(DEFAULT_MESSAGE, null, 0);
@@ -32,20 +48,41 @@ public class LuaError extends RuntimeException {
 		this.message = message;
 		this.cause = c;
 		
+		super.fillInStackTrace();
 		if (level >= 0) {
+			// Java stack trace of the cause (or this error) with the Lua callstack inserted
 			StackTraceElement[] stack = DebugLib.getStackTrace(LuaThread.getRunning(), level, MAX_LEVELS);
-			if (c != null) {
-				stack = prefixLuaStackTrace(c, stack);
-			} else {
-				stack = prefixLuaStackTrace(this, stack);
-			}
-			setStackTrace(stack);
-		}		
+			setStackTrace(prefixLuaStackTrace(c != null ? c : this, stack));
+		}
 	}
 	public LuaError(LuaError lee) {
 		this(lee.message, lee.cause, -1);
 		
-		setStackTrace(lee.getStackTrace());		
+		StackTraceElement[] stack = lee.getStackTrace();
+		if (stack.length > 0) {
+			setStackTrace(stack);
+		}
+	}
+	private LuaError(String message, int level) {
+		super(message);
+		
+		this.message = message;
+		
+		setStackTrace(NO_STACK_TRACE);
+		if (level >= 0) {
+			luaStack = DebugLib.snapshotStack(LuaThread.getRunning(), level, MAX_LEVELS);
+		}
+	}
+
+	/**
+	 * Creates an error raised on behalf of Lua code. The error doesn't record a Java stack trace, only the Lua
+	 * callstack.
+	 *
+	 * @param level Call level of the function whose position is used in the stack trace, or {@code -1} for no
+	 *        stack trace.
+	 */
+	public static LuaError luaError(String message, int level) {
+		return new LuaError(message, level);
 	}
 
 	//Functions
@@ -73,4 +110,48 @@ public class LuaError extends RuntimeException {
 		return cause;
 	}
 
+	/**
+	 * Does nothing, the constructors record the Java stack trace if needed.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+	@Override
+	public StackTraceElement[] getStackTrace() {
+		resolveLuaStack();
+		return super.getStackTrace();
+	}
+
+	@Override
+	public void setStackTrace(StackTraceElement[] stackTrace) {
+		luaStack = null;
+		super.setStackTrace(stackTrace);
+	}
+
+	@Override
+	public void printStackTrace(PrintStream s) {
+		resolveLuaStack();
+		super.printStackTrace(s);
+	}
+
+	@Override
+	public void printStackTrace(PrintWriter s) {
+		resolveLuaStack();
+		super.printStackTrace(s);
+	}
+
+	private void resolveLuaStack() {
+		StackSnapshot snapshot = luaStack;
+		if (snapshot != null) {
+			setStackTrace(snapshot.toStackTrace());
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		resolveLuaStack(); //The snapshot isn't serializable
+		return this;
+	}
+
 }
@@ -52,16 +52,22 @@ import nl.weeaboo.lua2.lib.MathLib;
 @LuaSerializable
 public final class LuaInteger extends LuaNumber implements Externalizable {
 
-	private static final LuaInteger[] intValues = new LuaInteger[512];
+	/**
+	 * Cached instances for small integers. The positive range is larger because numeric for loops over array
+	 * indices box their loop variable on every iteration.
+	 */
+	private static final int CACHE_MIN = -256;
+	private static final int CACHE_MAX = 1023;
+	private static final LuaInteger[] intValues = new LuaInteger[CACHE_MAX - CACHE_MIN + 1];
 	static {
-		for (int i = 0; i < 512; i++) {
-			intValues[i] = new LuaInteger(i - 256);
+		for (int i = 0; i < intValues.length; i++) {
+			intValues[i] = new LuaInteger(i + CACHE_MIN);
 		}
 	}
 
 	public static LuaInteger valueOf(int i) {
-		if (i <= 255 && i >= -256) {
-			return intValues[i + 256];
+		if (i <= CACHE_MAX && i >= CACHE_MIN) {
+			return intValues[i - CACHE_MIN];
 		}
 		return new LuaInteger(i);
 	}
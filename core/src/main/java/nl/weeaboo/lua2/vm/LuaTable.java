@@ -23,6 +23,9 @@ package nl.weeaboo.lua2.vm;
 
 import static nl.weeaboo.lua2.vm.LuaBoolean.FALSE;
 import static nl.weeaboo.lua2.vm.LuaBoolean.TRUE;
+import static nl.weeaboo.lua2.vm.LuaConstants.CALL;
+import static nl.weeaboo.lua2.vm.LuaConstants.EQ;
+import static nl.weeaboo.lua2.vm.LuaConstants.INDEX;
 import static nl.weeaboo.lua2.vm.LuaConstants.LEN;
 import static nl.weeaboo.lua2.vm.LuaConstants.NEWINDEX;
 import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
@@ -41,6 +44,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import nl.weeaboo.lua2.io.DelayedReader;
@@ -101,23 +105,74 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
     private static final LuaString N = valueOf("n");
 
     private static final Slot[] NOBUCKETS = {};
+    private static final int[] NONEXT = {};
 
-    /** the array values */
+    /** the array values, {@link LuaConstants#NOVALS} while the array part is stored in {@link #numbers} */
     protected LuaValue[] array;
 
-    /** the hash part */
+    /**
+     * The array part of a list that only contains numbers, stored unboxed. Only the first {@link #numberCount}
+     * elements are in use, the keys after them are nil. {@code null} for tables with other values in their array
+     * part, and for tables with weak keys/values.
+     */
+    private double[] numbers;
+
+    /** the number of values in {@link #numbers} */
+    private int numberCount;
+
+    /** the hash part of tables with weak keys or values, {@code null} for other tables */
     protected Slot[] hash;
 
+    /**
+     * The keys of the hash part of tables without weak keys/values. Like in C Lua, this is a chained scatter table
+     * with Brent's variation: colliding keys are stored in free positions of the same arrays and linked using
+     * {@link #hashNext}. Removed entries keep their key until the next rehash, so they can still be passed to
+     * {@link #next(LuaValue)}.
+     * <p>
+     * While all keys are strings, the keys are those of {@link #shape} instead and must not be modified.
+     */
+    protected LuaValue[] hashKeys;
+
+    /** the values of the hash part, {@code null} for removed entries */
+    protected LuaValue[] hashValues;
+
+    /** offset to the next position in the same chain, or {@code 0} at the end of a chain */
+    private int[] hashNext;
+
+    /** all positions in the hash part at or above this index are in use */
+    private int lastFree;
+
+    /**
+     * The keys of the hash part while they're all strings, shared with other tables that had the same keys added
+     * in the same order. {@code null} once the hash part switched to a chained scatter table. Not serialized.
+     */
+    transient TableShape shape;
+
     /** the number of hash entries */
     protected int hashEntries;
 
     /** metatable for this table, or null */
     protected Metatable m_metatable;
 
+    /** The border in the array part found by the previous call to {@link #rawlen()}. Not serialized. */
+    private transient int lengthHint;
+
+    /**
+     * Changes whenever a key is added or removed, the hash part is rebuilt, or the metatable is replaced.
+     * Used to validate the slots remembered by {@link IndexCache}. Not serialized.
+     */
+    transient int version;
+
+    /**
+     * Flags for the metamethods known to be absent from this table, when it's used as a metatable (see
+     * {@link #metamethod(LuaValue)}). Cleared whenever a value is stored in the hash part. Not serialized.
+     */
+    private transient int absentMetamethods;
+
     /** Construct empty table */
     public LuaTable() {
         array = NOVALS;
-        hash = NOBUCKETS;
+        initHashShape(0);
     }
 
     /**
@@ -210,22 +265,46 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
         out.writeObject(m_metatable);
 
-        out.writeInt(array.length);
-        int lastNonNil = array.length - 1;
-        while (lastNonNil >= 0 && array[lastNonNil] == null) {
-            lastNonNil--;
-        }
-        out.writeInt(lastNonNil + 1);
-        for (int n = 0; n <= lastNonNil; n++) {
-            out.writeObject(array[n]);
+        out.writeBoolean(numbers != null);
+        if (numbers != null) {
+            out.writeInt(numbers.length);
+            out.writeInt(numberCount);
+            for (int n = 0; n < numberCount; n++) {
+                out.writeDouble(numbers[n]);
+            }
+        } else {
+            out.writeInt(array.length);
+            int lastNonNil = array.length - 1;
+            while (lastNonNil >= 0 && array[lastNonNil] == null) {
+                lastNonNil--;
+            }
+            out.writeInt(lastNonNil + 1);
+            for (int n = 0; n <= lastNonNil; n++) {
+                out.writeObject(array[n]);
+            }
         }
 
         out.writeInt(hashEntries);
+        out.writeBoolean(hash != null);
+
+        // Tables without weak keys/values only write their live entries, they're rehashed when read back
+        Object hashData = hash;
+        if (hash == null) {
+            LuaValue[] pairs = new LuaValue[hashEntries << 1];
+            for (int i = 0, n = 0; i < hashKeys.length; i++) {
+                if (hashValues[i] != null) {
+                    pairs[n++] = hashKeys[i];
+                    pairs[n++] = hashValues[i];
+                }
+            }
+            hashData = pairs;
+        }
+
         // Use writeDelayed to reduce recursion depth
         if (ls != null) {
-            ls.writeDelayed(hash);
+            ls.writeDelayed(hashData);
         } else {
-            out.writeObject(hash);
+            out.writeObject(hashData);
         }
     }
 
@@ -235,24 +314,49 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
         m_metatable = (Metatable)in.readObject();
 
+        final boolean numeric = in.readBoolean();
         int arrayLength = in.readInt();
         int arrayUsed = in.readInt();
-        array = new LuaValue[arrayLength];
-        for (int n = 0; n < arrayUsed; n++) {
-            array[n] = (LuaValue)in.readObject();
+        if (numeric) {
+            array = NOVALS;
+            numbers = new double[arrayLength];
+            numberCount = arrayUsed;
+            for (int n = 0; n < arrayUsed; n++) {
+                numbers[n] = in.readDouble();
+            }
+        } else {
+            array = new LuaValue[arrayLength];
+            for (int n = 0; n < arrayUsed; n++) {
+                array[n] = (LuaValue)in.readObject();
+            }
         }
 
         hashEntries = in.readInt();
+        final boolean weak = in.readBoolean();
 
+        initHashShape(0);
         if (ls != null) {
             ls.readDelayed(new DelayedReader() {
                 @Override
                 public void onRead(Object obj) {
-                    hash = (Slot[])obj;
+                    readHash(weak, obj);
                 }
             });
         } else {
-            hash = (Slot[])in.readObject();
+            readHash(weak, in.readObject());
+        }
+    }
+
+    private void readHash(boolean weak, Object hashData) {
+        if (weak) {
+            hash = (Slot[])hashData;
+        } else {
+            LuaValue[] pairs = (LuaValue[])hashData;
+            initHashShape(hashCapacity(pairs.length >> 1));
+            hashEntries = 0;
+            for (int n = 0; n < pairs.length; n += 2) {
+                hashNodeSet(pairs[n], pairs[n + 1]);
+            }
         }
     }
 
@@ -283,19 +387,61 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
     @Override
     public void presize(int narray) {
-        if (narray > array.length) {
+        if (numbers != null) {
+            if (narray > numbers.length) {
+                numbers = Arrays.copyOf(numbers, 1 << log2(narray));
+            }
+        } else if (narray > array.length) {
             array = resize(array, 1 << log2(narray));
         }
     }
 
     public void presize(int narray, int nhash) {
+        version++;
         if (nhash > 0 && nhash < MIN_HASH_CAPACITY) nhash = MIN_HASH_CAPACITY;
         // Size of both parts must be a power of two.
         array = (narray > 0 ? new LuaValue[1 << log2(narray)] : NOVALS);
-        hash = (nhash > 0 ? new Slot[1 << log2(nhash)] : NOBUCKETS);
+        numbers = null;
+        numberCount = 0;
+        nhash = (nhash > 0 ? 1 << log2(nhash) : 0);
+        if (hasWeakEntries()) {
+            hash = (nhash > 0 ? new Slot[nhash] : NOBUCKETS);
+        } else {
+            initHashShape(nhash);
+        }
         hashEntries = 0;
     }
 
+    /** Replaces the hash part with an empty shaped hash part, with room for the given number of values. */
+    private void initHashShape(int capacity) {
+        hash = null;
+        shape = TableShape.ROOT;
+        hashKeys = shape.keys;
+        hashValues = (capacity > 0 ? new LuaValue[capacity] : NOVALS);
+        hashNext = NONEXT;
+        lastFree = 0;
+    }
+
+    /** Replaces the hash part with an empty chained scatter table of the given capacity (a power of two). */
+    private void initHashNodes(int capacity) {
+        hash = null;
+        shape = null;
+        if (capacity > 0) {
+            hashKeys = new LuaValue[capacity];
+            hashValues = new LuaValue[capacity];
+            hashNext = new int[capacity];
+        } else {
+            hashKeys = NOVALS;
+            hashValues = NOVALS;
+            hashNext = NONEXT;
+        }
+        lastFree = capacity;
+    }
+
+    private boolean hasWeakEntries() {
+        return m_metatable != null && (m_metatable.useWeakKeys() || m_metatable.useWeakValues());
+    }
+
     /** Resize the table */
     private static LuaValue[] resize(LuaValue[] old, int n) {
         LuaValue[] v = new LuaValue[n];
@@ -309,7 +455,26 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
      * @return length of the array part, does not relate to count of objects in the table.
      */
     protected int getArrayLength() {
-        return array.length;
+        return (numbers != null ? numbers.length : array.length);
+    }
+
+    /** Switches the array part of a numeric list to unboxed storage, the array part must be empty. */
+    private void initNumbers(int capacity) {
+        array = NOVALS;
+        numbers = new double[capacity];
+        numberCount = 0;
+    }
+
+    /** Switches the array part back to boxed values, called when a value can't be stored in {@link #numbers}. */
+    private void boxNumbers() {
+        final double[] numbers = this.numbers;
+        LuaValue[] boxed = new LuaValue[numbers.length];
+        for (int n = 0; n < numberCount; n++) {
+            boxed[n] = valueOf(numbers[n]);
+        }
+        array = boxed;
+        this.numbers = null;
+        numberCount = 0;
     }
 
     /**
@@ -318,7 +483,10 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
      * @return length of the hash part, does not relate to count of objects in the table.
      */
     protected int getHashLength() {
-        return hash.length;
+        if (hash != null) {
+            return hash.length;
+        }
+        return (shape != null ? hashValues.length : hashKeys.length);
     }
 
     @Override
@@ -332,6 +500,7 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         boolean oldWeakValues = m_metatable != null && m_metatable.useWeakValues();
 
         m_metatable = metatableOf(metatable);
+        version++;
 
         boolean newWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
         boolean newWeakValues = m_metatable != null && m_metatable.useWeakValues();
@@ -360,6 +529,8 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         if (key > 0 && key <= array.length) {
             LuaValue v = m_metatable == null ? array[key - 1] : m_metatable.arrayget(array, key - 1);
             return v != null ? v : NIL;
+        } else if (numbers != null && key > 0 && key <= numbers.length) {
+            return key <= numberCount ? valueOf(numbers[key - 1]) : NIL;
         }
         return hashget(LuaInteger.valueOf(key));
     }
@@ -371,6 +542,8 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
             if (ikey > 0 && ikey <= array.length) {
                 LuaValue v = m_metatable == null ? array[ikey - 1] : m_metatable.arrayget(array, ikey - 1);
                 return v != null ? v : NIL;
+            } else if (numbers != null && ikey > 0 && ikey <= numbers.length) {
+                return ikey <= numberCount ? valueOf(numbers[ikey - 1]) : NIL;
             }
         }
         return hashget(key);
@@ -378,6 +551,11 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
     protected LuaValue hashget(LuaValue key) {
         if (hashEntries > 0) {
+            if (hash == null) {
+                int i = hashIndex(key);
+                LuaValue v;
+                return (i >= 0 && (v = hashValues[i]) != null ? v : NIL);
+            }
             for (Slot slot = hash[hashSlot(key)]; slot != null; slot = slot.rest()) {
                 StrongSlot foundSlot;
                 if ((foundSlot = slot.find(key)) != null) {
@@ -388,6 +566,45 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         return NIL;
     }
 
+    /**
+     * @return The index in {@link #hashValues} containing the value for the given key, or {@code -1} if not found
+     *         or if this table has weak keys/values. The index stays valid until {@link #version} changes.
+     */
+    int findIndex(LuaValue key) {
+        if (hashEntries > 0 && hash == null) {
+            int i = hashIndex(key);
+            if (i >= 0 && hashValues[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The position of the given key in the hash part, including removed entries, or {@code -1} if not
+     *         found. Only for tables without weak keys/values, and the hash part must not be empty unless it's
+     *         shaped.
+     */
+    private int hashIndex(LuaValue key) {
+        if (shape != null) {
+            return shape.indexOf(key);
+        }
+
+        final LuaValue[] keys = hashKeys;
+        int i = hashSlot(key, keys.length - 1);
+        while (true) {
+            LuaValue k = keys[i];
+            if (k == key || (k != null && key.raweq(k))) {
+                return i;
+            }
+            int next = hashNext[i];
+            if (next == 0) {
+                return -1;
+            }
+            i += next;
+        }
+    }
+
     @Override
     public void set(int key, LuaValue value) {
         if (m_metatable == null || !rawget(key).isnil() || !settable(this, LuaInteger.valueOf(key), value)) {
@@ -419,13 +636,71 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
     /** Set an array element */
     private boolean arrayset(int key, LuaValue value) {
+        if (numbers != null) {
+            if (numberset(key, value)) {
+                return true;
+            } else if (numbers != null) {
+                return false;
+            }
+        }
+
         if (key > 0 && key <= array.length) {
+            if (key == 1 && hash == null && value.type() == TNUMBER && !hasValues(array, 0)) {
+                // The first value of an empty list is a number, store the list unboxed until that changes
+                initNumbers(array.length);
+                return numberset(key, value);
+            }
             array[key - 1] = value.isnil() ? null : (m_metatable != null ? m_metatable.wrap(value) : value);
             return true;
+        } else if (key == array.length + 1 && hash == null && (shape != null || hashEntries == 0) && !value.isnil()) {
+            // Appending to a list: the hash part doesn't contain integer keys, so the array part can just grow
+            if (key == 1 && value.type() == TNUMBER) {
+                initNumbers(1);
+                return numberset(key, value);
+            }
+            array = resize(array, Math.max(1, array.length << 1));
+            array[key - 1] = (m_metatable != null ? m_metatable.wrap(value) : value);
+            return true;
         }
         return false;
     }
 
+    /**
+     * Set an element of {@link #numbers}. Switches the array part back to boxed values when the value isn't a
+     * number or would leave a gap.
+     *
+     * @return {@code false} if the key must be stored elsewhere.
+     */
+    private boolean numberset(int key, LuaValue value) {
+        final int n = numberCount;
+        if (key > 0 && key <= numbers.length) {
+            if (value.type() == TNUMBER) {
+                if (key <= n + 1) {
+                    numbers[key - 1] = value.todouble();
+                    if (key > n) {
+                        numberCount = key;
+                    }
+                    return true;
+                }
+            } else if (value.isnil()) {
+                if (key >= n) {
+                    numberCount = Math.min(n, key - 1);
+                    return true;
+                }
+            }
+        } else if (key != n + 1 || n != numbers.length || value.isnil() || (shape == null && hashEntries > 0)) {
+            return false; // Not part of the array
+        } else if (value.type() == TNUMBER) {
+            // Appending to a list: the hash part doesn't contain integer keys, so the array part can just grow
+            numbers = Arrays.copyOf(numbers, numbers.length << 1);
+            numbers[n] = value.todouble();
+            numberCount = key;
+            return true;
+        }
+        boxNumbers();
+        return false;
+    }
+
     /**
      * Remove the element at a position in a list-table
      *
@@ -493,6 +768,53 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
     @Override
     public int rawlen() {
+        if (numbers != null) {
+            final int n = numberCount;
+            if (n < numbers.length) {
+                return n;
+            }
+            return (hashEntries == 0 || hashget(LuaInteger.valueOf(n + 1)).isnil()) ? n : unboundSearch();
+        }
+
+        final LuaValue[] array = this.array;
+        final int a = array.length;
+        if (m_metatable != null && m_metatable.useWeakValues()) {
+            // Array values may have been collected
+            return unboundSearch();
+        } else if (a == 0 || array[a - 1] != null) {
+            // The array part is full, the border is usually right after it
+            return (hashEntries == 0 || hashget(LuaInteger.valueOf(a + 1)).isnil()) ? a : unboundSearch();
+        }
+
+        // There's a border in the array part, usually at or next to the previous one
+        int j = lengthHint;
+        if (j < a) {
+            if (array[j] == null) {
+                if (j == 0 || array[j - 1] != null) {
+                    return j;
+                } else if (j == 1 || array[j - 2] != null) {
+                    return lengthHint = j - 1;
+                }
+            } else if (array[j + 1] == null) {
+                return lengthHint = j + 1;
+            }
+        }
+
+        // Binary search, array[i - 1] is non-nil (or i == 0) and array[k - 1] is nil
+        int i = 0;
+        int k = a;
+        while (k - i > 1) {
+            int m = (i + k) >>> 1;
+            if (array[m - 1] == null) {
+                k = m;
+            } else {
+                i = m;
+            }
+        }
+        return lengthHint = i;
+    }
+
+    private int unboundSearch() {
         int a = getArrayLength();
         int n = a + 1, m = 0;
         while (!rawget(n).isnil()) {
@@ -517,16 +839,24 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
      */
     @Override
     public Varargs next(LuaValue key) {
+        final int arrayLength = getArrayLength();
         int i = 0;
         do {
             // find current key index
             if (!key.isnil()) {
                 if (key.isinttype()) {
                     i = key.toint();
-                    if (i > 0 && i <= array.length) {
+                    if (i > 0 && i <= arrayLength) {
                         break;
                     }
                 }
+                if (hash == null) {
+                    if (hashKeys.length == 0 || (i = hashIndex(key)) < 0) {
+                        error("invalid key to 'next'");
+                    }
+                    i += 1 + arrayLength;
+                    break;
+                }
                 if (hash.length == 0) error("invalid key to 'next'");
                 i = hashSlot(key);
                 boolean found = false;
@@ -543,11 +873,17 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
                 if (!found) {
                     error("invalid key to 'next'");
                 }
-                i += 1 + array.length;
+                i += 1 + arrayLength;
             }
         } while (false);
 
         // check array part
+        if (numbers != null && i < arrayLength) {
+            if (i < numberCount) {
+                return varargsOf(LuaInteger.valueOf(i + 1), valueOf(numbers[i]));
+            }
+            i = arrayLength;
+        }
         for (; i < array.length; ++i) {
             if (array[i] != null) {
                 LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
@@ -558,7 +894,16 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
+        if (hash == null) {
+            final LuaValue[] values = hashValues;
+            for (i -= arrayLength; i < values.length; ++i) {
+                if (values[i] != null) {
+                    return varargsOf(hashKeys[i], values[i]);
+                }
+            }
+            return NIL;
+        }
+        for (i -= arrayLength; i < hash.length; ++i) {
             Slot slot = hash[i];
             while (slot != null) {
                 StrongSlot first = slot.first();
@@ -593,12 +938,21 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         if (value.isnil()) {
             hashRemove(key);
         } else {
+            absentMetamethods = 0;
+            if (hash == null) {
+                hashNodeSet(key, value);
+                return;
+            }
+
             int index = 0;
             if (hash.length > 0) {
                 index = hashSlot(key);
                 for (Slot slot = hash[index]; slot != null; slot = slot.rest()) {
                     StrongSlot foundSlot;
                     if ((foundSlot = slot.find(key)) != null) {
+                        if (foundSlot instanceof NumberValueEntry && value.type() != TNUMBER) {
+                            version++; // Entry will be replaced by one that can store non-numeric values
+                        }
                         hash[index] = hash[index].set(foundSlot, value);
                         return;
                     }
@@ -619,9 +973,157 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
             Slot entry = (m_metatable != null) ? m_metatable.entry(key, value) : defaultEntry(key, value);
             hash[index] = (hash[index] != null) ? hash[index].add(entry) : entry;
             ++hashEntries;
+            version++;
         }
     }
 
+    private void hashNodeSet(LuaValue key, LuaValue value) {
+        if (hashKeys.length > 0) {
+            int i = hashIndex(key);
+            if (i >= 0) {
+                if (hashValues[i] == null) {
+                    // Re-adding a removed key
+                    hashEntries++;
+                    version++;
+                }
+                hashValues[i] = value;
+                return;
+            }
+        }
+
+        TableShape nextShape = null;
+        if (shape != null) {
+            nextShape = (key.type() == TSTRING ? shape.addKey(key) : null);
+            if (nextShape != null && shape.size() < hashValues.length) {
+                shapeAppend(nextShape, value);
+                ++hashEntries;
+                version++;
+                return;
+            }
+        } else if (hashInsert(key, value)) {
+            ++hashEntries;
+            version++;
+            return;
+        }
+
+        // The hash part is full, or can't stay shaped
+        if (key.isinttype() && key.toint() > 0) {
+            // a rehash might make room in the array portion for this key.
+            rehash(key.toint(), false);
+            if (arrayset(key.toint(), value)) {
+                return;
+            }
+        } else {
+            rehash(-1, nextShape != null);
+        }
+        if (shape != null) {
+            shapeAppend(nextShape, value);
+        } else {
+            hashInsert(key, value);
+        }
+        ++hashEntries;
+        version++;
+    }
+
+    /**
+     * Inserts a key that's not in the hash part yet. If the main position of the key is taken by a key from
+     * another chain, that key is moved to a free position. Otherwise the new key is stored in a free position and
+     * linked into the chain of its main position.
+     *
+     * @return {@code false} if there's no free position left, the table must be rehashed.
+     */
+    private boolean hashInsert(LuaValue key, LuaValue value) {
+        final LuaValue[] keys = hashKeys;
+        final LuaValue[] values = hashValues;
+        final int[] next = hashNext;
+        if (keys.length == 0) {
+            return false;
+        }
+
+        int mp = hashSlot(key, keys.length - 1);
+        if (values[mp] != null) {
+            int f = freePosition();
+            if (f < 0) {
+                return false;
+            }
+
+            int othern = hashSlot(keys[mp], keys.length - 1);
+            if (othern != mp) {
+                // Colliding key is out of its main position, move it to the free position
+                while (othern + next[othern] != mp) {
+                    othern += next[othern];
+                }
+                next[othern] = f - othern;
+                keys[f] = keys[mp];
+                values[f] = values[mp];
+                next[f] = (next[mp] != 0 ? mp + next[mp] - f : 0);
+                next[mp] = 0;
+            } else {
+                // Colliding key is in its main position, the new key goes into the free position
+                next[f] = (next[mp] != 0 ? mp + next[mp] - f : 0);
+                next[mp] = f - mp;
+                mp = f;
+            }
+        }
+        // Removed entries in the main position are reused, their chain link stays intact
+        keys[mp] = key;
+        values[mp] = value;
+        return true;
+    }
+
+    /** Adds the value for the last key of the next shape, there must be room for it in {@link #hashValues}. */
+    private void shapeAppend(TableShape next, LuaValue value) {
+        hashValues[shape.size()] = value;
+        shape = next;
+        hashKeys = next.keys;
+    }
+
+    private int freePosition() {
+        while (lastFree > 0) {
+            lastFree--;
+            if (hashKeys[lastFree] == null) {
+                return lastFree;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up a metamethod in this table, using it as a metatable. The absence of the metamethods used by
+     * common operations ({@code __index}, {@code __newindex}, {@code __len}, {@code __eq} and {@code __call}) is
+     * remembered, so tables with a metatable don't need a hash lookup for each of those operations.
+     *
+     * @return The metamethod, or {@link LuaNil#NIL} if not found.
+     */
+    LuaValue metamethod(LuaValue tag) {
+        final int flag = metamethodFlag(tag);
+        if ((absentMetamethods & flag) != 0) {
+            return NIL;
+        }
+
+        LuaValue h = rawget(tag);
+        if (h.isnil()) {
+            absentMetamethods |= flag;
+        }
+        return h;
+    }
+
+    /** @return The flag for a metamethod in {@link #absentMetamethods}, or {@code 0} if not tracked. */
+    private static int metamethodFlag(LuaValue tag) {
+        if (tag == INDEX) {
+            return 1;
+        } else if (tag == NEWINDEX) {
+            return 2;
+        } else if (tag == LEN) {
+            return 4;
+        } else if (tag == EQ) {
+            return 8;
+        } else if (tag == CALL) {
+            return 16;
+        }
+        return 0;
+    }
+
     public static int hashpow2(int hashCode, int mask) {
         return hashCode & mask;
     }
@@ -661,6 +1163,16 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
     }
 
     private void hashRemove(LuaValue key) {
+        if (hash == null) {
+            int i;
+            if (hashEntries > 0 && (i = hashIndex(key)) >= 0 && hashValues[i] != null) {
+                // Keep the key, it may be passed to next()
+                hashValues[i] = null;
+                --hashEntries;
+                version++;
+            }
+            return;
+        }
         if (hash.length == 0) {
             return;
         }
@@ -671,6 +1183,7 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
             if ((foundSlot = slot.find(key)) != null) {
                 hash[index] = hash[index].remove(foundSlot);
                 --hashEntries;
+                version++;
                 return;
             }
         }
@@ -713,6 +1226,16 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         }
 
         // Count integer keys in hash part
+        if (hash == null) {
+            for (i = 0; i < hashKeys.length; ++i) {
+                int k;
+                if (hashValues[i] != null && hashKeys[i].isinttype() && (k = hashKeys[i].toint()) > 0) {
+                    nums[log2(k)]++;
+                    total++;
+                }
+            }
+            return total;
+        }
         for (i = 0; i < hash.length; ++i) {
             for (Slot s = hash[i]; s != null; s = s.rest()) {
                 int k;
@@ -802,12 +1325,29 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
      * < 0 next key will go in hash part
      */
     private void rehash(int newKey) {
-        if (m_metatable != null && (m_metatable.useWeakKeys() || m_metatable.useWeakValues())) {
+        rehash(newKey, false);
+    }
+
+    /**
+     * @param shapedKey {@code true} if the next key can be added to the shape of the hash part.
+     */
+    private void rehash(int newKey, boolean shapedKey) {
+        version++;
+        if (numbers != null) {
+            if (newKey < 0 && shapedKey && shape != null) {
+                // Numeric lists with string keys: the array part stays the same, the shape only needs room
+                hashValues = resize(hashValues, hashCapacity(shape.size() + 1));
+                return;
+            }
+            boxNumbers();
+        }
+        final boolean weak = hasWeakEntries();
+        if (hash != null) {
             // If this table has weak entries, hashEntries is just an upper bound.
             hashEntries = countHashKeys();
-            if (m_metatable.useWeakValues()) {
-                dropWeakArrayValues();
-            }
+        }
+        if (weak && m_metatable.useWeakValues()) {
+            dropWeakArrayValues();
         }
         int[] nums = new int[32];
         int total = countIntKeys(nums);
@@ -831,6 +1371,8 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
 
         final LuaValue[] oldArray = array;
         final Slot[] oldHash = hash;
+        final LuaValue[] oldKeys = hashKeys;
+        final LuaValue[] oldValues = hashValues;
         final LuaValue[] newArray;
         final Slot[] newHash;
 
@@ -855,37 +1397,61 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
             newArray = array;
         }
 
-        final int newHashSize = hashEntries - movingToArray + ((newKey < 0 || newKey > newArraySize) ? 1 : 0); // Make
-                                                                                                               // room
-                                                                                                               // for
-                                                                                                               // the
-                                                                                                               // new
-                                                                                                               // entry
-        final int oldCapacity = oldHash.length;
-        final int newCapacity;
-        final int newHashMask;
-
-        if (newHashSize > 0) {
-            // round up to next power of 2.
-            newCapacity = (newHashSize < MIN_HASH_CAPACITY) ? MIN_HASH_CAPACITY : 1 << log2(newHashSize);
-            newHashMask = newCapacity - 1;
-            newHash = new Slot[newCapacity];
+        if (shape != null && !weak && (newKey > 0 ? newKey <= newArraySize : shapedKey)
+                && !hasValues(oldArray, newArraySize)) {
+            // All keys in the hash part remain strings, it can stay shaped
+            if (newKey < 0) {
+                hashValues = resize(hashValues, hashCapacity(shape.size() + 1));
+            }
+            array = newArray;
+            return;
+        }
+
+        // Make room for the new entry
+        final int newHashSize = hashEntries - movingToArray + ((newKey < 0 || newKey > newArraySize) ? 1 : 0);
+        final int newCapacity = hashCapacity(newHashSize);
+        final int newHashMask = (newCapacity > 0 ? newCapacity - 1 : 0);
+
+        if (weak) {
+            newHash = (newCapacity > 0 ? new Slot[newCapacity] : NOBUCKETS);
+            initHashNodes(0);
+            hash = newHash;
         } else {
-            newCapacity = 0;
-            newHashMask = 0;
-            newHash = NOBUCKETS;
+            newHash = null;
+            initHashNodes(newCapacity);
         }
 
-        // Move hash buckets
-        for (int i = 0; i < oldCapacity; ++i) {
-            for (Slot slot = oldHash[i]; slot != null; slot = slot.rest()) {
-                int k;
-                if ((k = slot.arraykey(newArraySize)) > 0) {
-                    StrongSlot entry = slot.first();
-                    if (entry != null) newArray[k - 1] = entry.value();
-                } else {
-                    int j = slot.keyindex(newHashMask);
-                    newHash[j] = slot.relink(newHash[j]);
+        // Move hash entries, counting the entries inserted into a new chained scatter table
+        int inserted = 0;
+        if (oldHash != null) {
+            for (int i = 0; i < oldHash.length; ++i) {
+                for (Slot slot = oldHash[i]; slot != null; slot = slot.rest()) {
+                    int k;
+                    if ((k = slot.arraykey(newArraySize)) > 0) {
+                        StrongSlot entry = slot.first();
+                        if (entry != null) newArray[k - 1] = entry.value();
+                    } else if (newHash != null) {
+                        int j = slot.keyindex(newHashMask);
+                        newHash[j] = slot.relink(newHash[j]);
+                    } else {
+                        StrongSlot entry = slot.first();
+                        if (entry != null && hashInsert(entry.key(), entry.value())) inserted++;
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < oldKeys.length; ++i) {
+                final LuaValue k = oldKeys[i];
+                final LuaValue v = oldValues[i];
+                int ik;
+                if (v == null) {
+                    continue;
+                } else if (k.isinttype() && (ik = k.toint()) > 0 && ik <= newArraySize) {
+                    newArray[ik - 1] = v;
+                } else if (newHash != null) {
+                    hashAdd(newHash, newHashMask, m_metatable.entry(k, v));
+                } else if (hashInsert(k, v)) {
+                    inserted++;
                 }
             }
         }
@@ -894,21 +1460,42 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         for (int i = newArraySize; i < oldArray.length;) {
             LuaValue v;
             if ((v = oldArray[i++]) != null) {
-                int slot = hashmod(LuaInteger.hashCode(i), newHashMask);
-                Slot newEntry;
-                if (m_metatable != null) {
-                    newEntry = m_metatable.entry(valueOf(i), v);
-                    if (newEntry == null) continue;
+                if (newHash == null) {
+                    if (hashInsert(valueOf(i), v)) inserted++;
                 } else {
-                    newEntry = defaultEntry(valueOf(i), v);
+                    hashAdd(newHash, newHashMask, m_metatable.entry(valueOf(i), v));
                 }
-                newHash[slot] = (newHash[slot] != null) ? newHash[slot].add(newEntry) : newEntry;
             }
         }
 
-        hash = newHash;
         array = newArray;
-        hashEntries -= movingToArray;
+        hashEntries = (newHash != null ? hashEntries - movingToArray : inserted);
+    }
+
+    /** @return {@code true} if the array contains any values starting at the given index. */
+    private static boolean hasValues(LuaValue[] array, int start) {
+        for (int i = start; i < array.length; i++) {
+            if (array[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The capacity of the hash part needed to store the given number of entries. */
+    private static int hashCapacity(int entries) {
+        if (entries <= 0) {
+            return 0;
+        }
+        // round up to next power of 2.
+        return (entries < MIN_HASH_CAPACITY) ? MIN_HASH_CAPACITY : 1 << log2(entries);
+    }
+
+    private static void hashAdd(Slot[] hash, int hashMask, Slot entry) {
+        if (entry != null) {
+            int j = entry.keyindex(hashMask);
+            hash[j] = (hash[j] != null) ? hash[j].add(entry) : entry;
+        }
     }
 
     @Override
@@ -950,67 +1537,42 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
      * @param comparator {@link LuaValue} to be called to compare elements.
      */
     public void sort(LuaValue comparator) {
+        if (numbers != null && comparator.isnil()) {
+            Arrays.sort(numbers, 0, numberCount);
+            return;
+        }
+
         if (m_metatable != null && m_metatable.useWeakValues()) {
             dropWeakArrayValues();
         }
-        int n = array.length;
-        while (n > 0 && array[n - 1] == null) {
-            --n;
+        int n;
+        if (numbers != null) {
+            n = numberCount;
+        } else {
+            n = array.length;
+            while (n > 0 && array[n - 1] == null) {
+                --n;
+            }
         }
-        if (n > 1) {
-            heapSort(n, comparator);
+        if (n <= 1) {
+            return;
         }
-    }
 
-    private void heapSort(int count, LuaValue cmpfunc) {
-        heapify(count, cmpfunc);
-        for (int end = count - 1; end > 0;) {
-            swap(end, 0);
-            siftDown(0, --end, cmpfunc);
-        }
-    }
-
-    private void heapify(int count, LuaValue cmpfunc) {
-        for (int start = count / 2 - 1; start >= 0; --start)
-            siftDown(start, count - 1, cmpfunc);
-    }
-
-    private void siftDown(int start, int end, LuaValue cmpfunc) {
-        for (int root = start; root * 2 + 1 <= end;) {
-            int child = root * 2 + 1;
-            if (child < end && compare(child, child + 1, cmpfunc)) ++child;
-            if (compare(root, child, cmpfunc)) {
-                swap(root, child);
-                root = child;
+        // Sort a copy, the comparator may modify the table
+        LuaValue[] values = new LuaValue[n];
+        for (int i = 0; i < n; i++) {
+            if (numbers != null) {
+                values[i] = valueOf(numbers[i]);
             } else {
-                return;
+                values[i] = (m_metatable == null ? array[i] : m_metatable.arrayget(array, i));
             }
         }
-    }
-
-    private boolean compare(int i, int j, LuaValue cmpfunc) {
-        LuaValue a, b;
-        if (m_metatable == null) {
-            a = array[i];
-            b = array[j];
-        } else {
-            a = m_metatable.arrayget(array, i);
-            b = m_metatable.arrayget(array, j);
-        }
-        if (a == null || b == null) return false;
-        if (!cmpfunc.isnil()) {
-            return cmpfunc.call(a, b).toboolean();
-        } else {
-            return a.lt_b(b);
+        TableSort.sort(values, comparator);
+        for (int i = 0; i < n; i++) {
+            rawset(i + 1, values[i] != null ? values[i] : NIL);
         }
     }
 
-    private void swap(int i, int j) {
-        LuaValue a = array[i];
-        array[i] = array[j];
-        array[j] = a;
-    }
-
     public int keyCount() {
         return keys().length;
     }
@@ -1076,8 +1638,14 @@ public class LuaTable extends LuaValue implements Metatable, Externalizable {
         default:
             if (n < 0) return NONE;
             LuaValue[] v = new LuaValue[n];
-            while (--n >= 0) {
-                v[n] = get(i + n);
+            if (numbers != null && i > 0 && j <= numberCount) {
+                while (--n >= 0) {
+                    v[n] = valueOf(numbers[i - 1 + n]);
+                }
+            } else {
+                while (--n >= 0) {
+                    v[n] = get(i + n);
+                }
             }
             return varargsOf(v);
         }
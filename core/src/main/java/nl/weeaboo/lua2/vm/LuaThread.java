@@ -27,7 +27,9 @@ import java.io.Serializable;
 
 import nl.weeaboo.lua2.LuaRunState;
 import nl.weeaboo.lua2.interpreter.LuaInterpreter;
+import nl.weeaboo.lua2.interpreter.RegisterStack;
 import nl.weeaboo.lua2.interpreter.StackFrame;
+import nl.weeaboo.lua2.interpreter.StackFramePool;
 import nl.weeaboo.lua2.io.LuaSerializable;
 import nl.weeaboo.lua2.lib.DebugLib;
 
@@ -52,9 +54,13 @@ public final class LuaThread extends LuaValue implements Serializable {
 	private int status = STATUS_SUSPENDED;
 	private int callstackMin;
 	private boolean isMainThread;
+	private transient boolean suspendable;
 	public StackFrame callstack;
 	public Object debugState;
 
+	private RegisterStack registers;
+	private transient StackFramePool framePool;
+
 	/**
 	 * Do not use. Required for efficient serialization.
 	 */
@@ -77,7 +83,7 @@ public final class LuaThread extends LuaValue implements Serializable {
 	public LuaThread(LuaThread parent, LuaClosure function) {
 		this(parent.luaRunState, parent.getfenv());
 
-		callstack = StackFrame.newInstance(function, NONE, null, 0, 0);
+		callstack = StackFrame.newInstance(this, function, NONE, null, 0, 0);
 	}
 
 	public static LuaThread createMainThread(LuaRunState lrs, LuaValue env) {
@@ -92,6 +98,7 @@ public final class LuaThread extends LuaValue implements Serializable {
         status = STATUS_SUSPENDED;
         callstackMin = 0;
         callstack = null;
+        registers = null; // Frames of the old callstack may still be running, don't let them touch the new stack
         debugState = null;
     }
 
@@ -146,6 +153,16 @@ public final class LuaThread extends LuaValue implements Serializable {
 	public boolean isFinished() {
 		return isDead() || callstack == null;
 	}
+	/**
+	 * @return {@code true} if the thread may be suspended by the interpreter. This is only the case for threads
+	 *         resumed directly from the main thread (not coroutines), and not while running a Lua function called
+	 *         from Java.
+	 * @see LuaRunState#onInstructionBudgetExhausted(LuaThread)
+	 */
+	public boolean isSuspendable() {
+		return suspendable;
+	}
+
 	public boolean isDead() {
 		return status == STATUS_DEAD;
 	}
@@ -186,7 +203,31 @@ public final class LuaThread extends LuaValue implements Serializable {
 		pushPending(func, args, -1, 0);
 	}
 	public void pushPending(LuaClosure func, Varargs args, int returnBase, int returnCount) {
-		callstack = StackFrame.newInstance(func, args, callstack, returnBase, returnCount);
+		callstack = StackFrame.newInstance(this, func, args, callstack, returnBase, returnCount);
+	}
+
+	/**
+	 * @return The pool used to recycle stack frames for this thread.
+	 */
+	public StackFramePool getFramePool() {
+		if (framePool == null) {
+			framePool = new StackFramePool(); // Pool isn't serialized
+		}
+		return framePool;
+	}
+
+	/**
+	 * @return The register stack containing the registers of all stack frames of this thread.
+	 */
+	public RegisterStack getRegisterStack() {
+		if (registers == null) {
+			registers = new RegisterStack();
+		}
+		return registers;
+	}
+
+	public LuaRunState getLuaRunState() {
+		return luaRunState;
 	}
 
 	public LuaFunction getCallstackFunction(int level) {
@@ -231,12 +272,14 @@ public final class LuaThread extends LuaValue implements Serializable {
 		Varargs result;
 
 		final int oldCallstackMin = callstackMin;
+		final boolean oldSuspendable = suspendable;
 		final LuaThread prior = luaRunState.getRunningThread();
 		try {
 			if (prior.status == STATUS_RUNNING) {
 				prior.status = STATUS_NORMAL;
 			}
 			status = STATUS_RUNNING;
+			suspendable = (maxDepth < 0 && prior.isMainThread && prior != this);
 			luaRunState.setRunningThread(this);
 
 			callstackMin = Math.max(callstackMin, (maxDepth < 0 ? 0 : callstackSize() - maxDepth));
@@ -247,6 +290,7 @@ public final class LuaThread extends LuaValue implements Serializable {
 			throw new LuaError("Runtime error :: " + t, t);
 		} finally {
 			callstackMin = oldCallstackMin;
+			suspendable = oldSuspendable;
 			if (status == STATUS_RUNNING) {
 				status = STATUS_NORMAL;
 			}
@@ -884,6 +884,17 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
         throw new LuaError(message);
     }
 
+    /**
+     * Throw a {@link LuaError} for a failed operation on behalf of Lua code, such as arithmetic on an invalid
+     * operand. Unlike {@link #error(String)}, the error doesn't record a Java stack trace.
+     *
+     * @param message String providing message details
+     * @throws LuaError in all cases
+     */
+    protected static LuaValue operror(String message) {
+        throw LuaError.luaError(message, 0);
+    }
+
     /**
      * Throw a {@link LuaError} indicating an invalid argument was supplied to a function
      *
@@ -940,7 +951,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError in all cases
      */
     protected LuaValue lenerror() {
-        throw new LuaError("attempt to get length of " + typename());
+        return operror("attempt to get length of " + typename());
     }
 
     /**
@@ -950,7 +961,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError in all cases
      */
     protected LuaValue aritherror() {
-        throw new LuaError("attempt to perform arithmetic on " + typename());
+        return operror("attempt to perform arithmetic on " + typename());
     }
 
     /**
@@ -961,7 +972,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError in all cases
      */
     protected LuaValue aritherror(String fun) {
-        throw new LuaError("attempt to perform arithmetic '" + fun + "' on " + typename());
+        return operror("attempt to perform arithmetic '" + fun + "' on " + typename());
     }
 
     /**
@@ -973,7 +984,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError in all cases
      */
     protected LuaValue compareerror(String rhs) {
-        throw new LuaError("attempt to compare " + typename() + " with " + rhs);
+        return operror("attempt to compare " + typename() + " with " + rhs);
     }
 
     /**
@@ -984,7 +995,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError in all cases
      */
     protected LuaValue compareerror(LuaValue rhs) {
-        throw new LuaError("attempt to compare " + typename() + " with " + rhs.typename());
+        return operror("attempt to compare " + typename() + " with " + rhs.typename());
     }
 
     /**
@@ -2096,8 +2107,8 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @see #EQ
      */
     public static final boolean eqmtcall(LuaValue lhs, LuaValue lhsmt, LuaValue rhs, LuaValue rhsmt) {
-        LuaValue h = lhsmt.rawget(EQ);
-        return h.isnil() || h != rhsmt.rawget(EQ) ? false : h.call(lhs, rhs).toboolean();
+        LuaValue h = metamethod(lhsmt, EQ);
+        return h.isnil() || h != metamethod(rhsmt, EQ) ? false : h.call(lhs, rhs).toboolean();
     }
 
     @Override
@@ -2242,7 +2253,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
         if (h.isnil()) {
             h = op2.metatag(tag);
             if (h.isnil()) {
-                error("attempt to perform arithmetic " + tag + " on " + typename() + " and "
+                operror("attempt to perform arithmetic " + tag + " on " + typename() + " and "
                         + op2.typename());
             }
         }
@@ -2269,7 +2280,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
     protected LuaValue arithmtwith(LuaValue tag, double op1) {
         LuaValue h = metatag(tag);
         if (h.isnil()) {
-            error("attempt to perform arithmetic " + tag + " on number and " + typename());
+            operror("attempt to perform arithmetic " + tag + " on number and " + typename());
         }
         return h.call(LuaValue.valueOf(op1), this);
     }
@@ -2425,18 +2436,18 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
         if (LE.raweq(tag) && (!(h = metatag(LT)).isnil() || !(h = op1.metatag(LT)).isnil())) {
             return h.call(op1, this).not();
         }
-        return error("attempt to compare " + tag + " on " + typename() + " and " + op1.typename());
+        return operror("attempt to compare " + tag + " on " + typename() + " and " + op1.typename());
     }
 
     @Override
     public int strcmp(LuaValue rhs) {
-        error("attempt to compare " + typename());
+        operror("attempt to compare " + typename());
         return 0;
     }
 
     @Override
     public int strcmp(LuaString rhs) {
-        error("attempt to compare " + typename());
+        operror("attempt to compare " + typename());
         return 0;
     }
 
@@ -2539,7 +2550,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
     public LuaValue concatmt(LuaValue rhs) {
         LuaValue h = metatag(CONCAT);
         if (h.isnil() && (h = rhs.metatag(CONCAT)).isnil()) {
-            error("attempt to concatenate " + typename() + " and " + rhs.typename());
+            operror("attempt to concatenate " + typename() + " and " + rhs.typename());
         }
         return h.call(this, rhs);
     }
@@ -2873,7 +2884,12 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
     public LuaValue metatag(LuaValue tag) {
         LuaValue mt = getmetatable();
         if (mt == null) return NIL;
-        return mt.rawget(tag);
+        return metamethod(mt, tag);
+    }
+
+    /** Metatables remember which metamethods they don't have, see {@link LuaTable#metamethod(LuaValue)} */
+    private static LuaValue metamethod(LuaValue mt, LuaValue tag) {
+        return mt instanceof LuaTable ? ((LuaTable)mt).metamethod(tag) : mt.rawget(tag);
     }
 
     /**
@@ -2887,7 +2903,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      */
     protected LuaValue checkmetatag(LuaValue tag, String reason) {
         LuaValue h = this.metatag(tag);
-        if (h.isnil()) throw new LuaError(reason + typename());
+        if (h.isnil()) operror(reason + typename());
         return h;
     }
 
@@ -2897,7 +2913,7 @@ public abstract class LuaValue extends Varargs implements IArith, IComparable {
      * @throws LuaError when called.
      */
     private void indexerror() {
-        error("attempt to index ? (a " + typename() + " value)");
+        operror("attempt to index ? (a " + typename() + " value)");
     }
 
     /** Construct a Metatable instance from the given LuaValue */
@@ -26,6 +26,9 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import nl.weeaboo.lua2.interpreter.CompiledFunction;
+import nl.weeaboo.lua2.interpreter.JitCompiler;
+import nl.weeaboo.lua2.interpreter.Quickener;
 import nl.weeaboo.lua2.io.LuaSerializable;
 
 /**
@@ -61,6 +64,14 @@ public final class Prototype implements Externalizable {
 	public int is_vararg;
 	public int maxstacksize;
 
+	/* inline caches for table reads, indexed by pc (not serialized) */
+	private transient IndexCache[] indexCaches;
+	/* copy of code with quickened instructions (not serialized) */
+	private transient int[] executionCode;
+	/* number of calls and loop iterations, and the resulting compiled code (not serialized) */
+	private transient int hotness;
+	private transient CompiledFunction compiledFunction;
+
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
 		out.writeObject(k);
@@ -100,6 +111,59 @@ public final class Prototype implements Externalizable {
 		return source + ":" + linedefined + "-" + lastlinedefined;
 	}
 
+	/**
+	 * Returns the inline cache for the table read instruction at the given program counter, creating it if
+	 * needed.
+	 *
+	 * @param pc the program counter
+	 */
+	public IndexCache getIndexCache(int pc) {
+		IndexCache[] caches = indexCaches;
+		if (caches == null) {
+			caches = indexCaches = new IndexCache[code.length];
+		}
+		IndexCache cache = caches[pc];
+		if (cache == null) {
+			cache = caches[pc] = new IndexCache();
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the copy of {@link #code} executed by the interpreter. Instructions in the copy may be rewritten
+	 * to specialized internal opcodes, {@link #code} itself is never modified.
+	 *
+	 * @see Quickener
+	 */
+	public int[] getExecutionCode() {
+		int[] result = executionCode;
+		if (result == null) {
+			result = executionCode = Quickener.quicken(this);
+		}
+		return result;
+	}
+
+	/**
+	 * Counts a call or loop iteration, used to decide when to compile the function.
+	 *
+	 * @return {@code true} when the function has become hot enough to compile.
+	 * @see JitCompiler
+	 */
+	public boolean countExecution() {
+		return ++hotness == JitCompiler.COMPILE_THRESHOLD;
+	}
+
+	/**
+	 * @return The compiled version of this function, or {@code null} if it isn't compiled.
+	 */
+	public CompiledFunction getCompiledFunction() {
+		return compiledFunction;
+	}
+
+	public void setCompiledFunction(CompiledFunction compiled) {
+		compiledFunction = compiled;
+	}
+
 	/**
 	 * Get the name of a local variable.
 	 * 
@@ -0,0 +1,125 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NOVALS;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The string keys of the hash part of a {@link LuaTable}, in the order they were added (a hidden class). Tables
+ * that had the same keys added in the same order share a shape, and only store their values. The shapes form a
+ * transition tree starting at {@link #ROOT}; shapes are immutable and can be shared between threads.
+ * <p>
+ * A shape only keeps weak references to the shapes it transitions to, a shape is kept alive by the tables using
+ * it or one of the shapes following it.
+ */
+final class TableShape {
+
+    /** Maximum number of keys, tables with more keys switch to a regular hash part. */
+    static final int MAX_KEYS = 32;
+
+    /** Maximum number of transitions from a single shape, limits the size of the tree. */
+    static final int MAX_TRANSITIONS = 64;
+
+    /** The shape of a table without any keys in its hash part. */
+    static final TableShape ROOT = new TableShape(null, NOVALS);
+
+    /** Keeps the shapes leading up to this one alive. */
+    @SuppressWarnings("unused")
+    private final TableShape parent;
+
+    /** The keys, the position of a key is also the position of its value in {@link LuaTable#hashValues}. */
+    final LuaValue[] keys;
+
+    /** Open addressing hash table mapping keys to their position plus one, {@code 0} for unused entries. */
+    private final int[] lookup;
+
+    private Map<LuaValue, WeakReference<TableShape>> transitions;
+
+    private TableShape(TableShape parent, LuaValue[] keys) {
+        this.parent = parent;
+        this.keys = keys;
+
+        lookup = new int[Math.max(1, Integer.highestOneBit(keys.length) << 2)];
+        final int mask = lookup.length - 1;
+        for (int n = 0; n < keys.length; n++) {
+            int i = keys[n].hashCode() & mask;
+            while (lookup[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            lookup[i] = n + 1;
+        }
+    }
+
+    /** @return The number of keys. */
+    int size() {
+        return keys.length;
+    }
+
+    /** @return The position of the given key, or {@code -1} if not found. */
+    int indexOf(LuaValue key) {
+        final int[] lookup = this.lookup;
+        final int mask = lookup.length - 1;
+        final int hash = key.hashCode();
+        int i = hash & mask;
+        while (true) {
+            final int n = lookup[i];
+            if (n == 0) {
+                return -1;
+            }
+            final LuaValue k = keys[n - 1];
+            if (k == key || (k.hashCode() == hash && key.raweq(k))) {
+                return n - 1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key A string key that's not part of this shape.
+     * @return The shape with the given key added to the end, or {@code null} if this shape already has the
+     *         maximum number of keys or transitions.
+     */
+    synchronized TableShape addKey(LuaValue key) {
+        if (keys.length >= MAX_KEYS) {
+            return null;
+        }
+
+        if (transitions == null) {
+            transitions = new HashMap<LuaValue, WeakReference<TableShape>>();
+        } else {
+            WeakReference<TableShape> ref = transitions.get(key);
+            TableShape shape = (ref != null ? ref.get() : null);
+            if (shape != null) {
+                return shape;
+            }
+
+            if (transitions.size() >= MAX_TRANSITIONS) {
+                removeClearedTransitions();
+                if (transitions.size() >= MAX_TRANSITIONS) {
+                    return null;
+                }
+            }
+        }
+
+        LuaValue[] newKeys = new LuaValue[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, keys.length);
+        newKeys[keys.length] = key;
+
+        TableShape shape = new TableShape(this, newKeys);
+        transitions.put(key, new WeakReference<TableShape>(shape));
+        return shape;
+    }
+
+    private void removeClearedTransitions() {
+        Iterator<WeakReference<TableShape>> itr = transitions.values().iterator();
+        while (itr.hasNext()) {
+            if (itr.next().get() == null) {
+                itr.remove();
+            }
+        }
+    }
+
+}
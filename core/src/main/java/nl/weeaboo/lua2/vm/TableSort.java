@@ -0,0 +1,147 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.TNUMBER;
+import static nl.weeaboo.lua2.vm.LuaConstants.TSTRING;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorting for {@link LuaTable#sort(LuaValue)}. Without a comparator, lists of only numbers or only strings are
+ * sorted directly on their primitive values. Everything else uses a merge sort, since calling a comparator
+ * written in Lua is far more expensive than moving values around. It does close to the minimum number of
+ * comparisons and only needs a linear number of them for input that's already sorted.
+ * <p>
+ * Unlike {@link Arrays#sort(Object[], Comparator)}, the merge sort doesn't require the comparator to be
+ * consistent, an invalid order function results in an arbitrary order instead of an exception.
+ */
+final class TableSort {
+
+    /** Ranges up to this length are sorted using a binary insertion sort. */
+    private static final int INSERTION_SORT_THRESHOLD = 12;
+
+    private static final Comparator<LuaValue> STRING_ORDER = new Comparator<LuaValue>() {
+        @Override
+        public int compare(LuaValue a, LuaValue b) {
+            return ((LuaString)a).strcmp((LuaString)b);
+        }
+    };
+
+    private TableSort() {
+    }
+
+    /**
+     * Sorts the given values in place.
+     *
+     * @param values The values to sort, may contain {@code null} values for nil.
+     * @param cmpfunc Returns {@code true} if its first argument should come before the second, or nil to use the
+     *        {@code <} operator.
+     * @throws LuaError If comparing two values results in an error, the contents of {@code values} are undefined
+     *         when that happens.
+     */
+    static void sort(LuaValue[] values, LuaValue cmpfunc) {
+        if (cmpfunc.isnil() && (sortNumbers(values) || sortStrings(values))) {
+            return;
+        }
+
+        LuaValue[] sorted = values.clone();
+        mergeSort(values, sorted, 0, values.length, cmpfunc);
+        System.arraycopy(sorted, 0, values, 0, values.length);
+    }
+
+    private static boolean sortNumbers(LuaValue[] values) {
+        final int n = values.length;
+        double[] numbers = new double[n];
+        for (int i = 0; i < n; i++) {
+            LuaValue v = values[i];
+            if (v == null || v.type() != TNUMBER) {
+                return false;
+            }
+            numbers[i] = v.todouble();
+        }
+
+        Arrays.sort(numbers);
+        for (int i = 0; i < n; i++) {
+            values[i] = LuaValue.valueOf(numbers[i]);
+        }
+        return true;
+    }
+
+    private static boolean sortStrings(LuaValue[] values) {
+        for (LuaValue v : values) {
+            if (v == null || v.type() != TSTRING) {
+                return false;
+            }
+        }
+        Arrays.sort(values, STRING_ORDER);
+        return true;
+    }
+
+    /**
+     * Sorts {@code src[lo..hi)} into {@code dst[lo..hi)}, the two ranges must initially contain the same values.
+     * Leaves {@code src} in an undefined order.
+     */
+    private static void mergeSort(LuaValue[] src, LuaValue[] dst, int lo, int hi, LuaValue cmpfunc) {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(dst, lo, hi, cmpfunc);
+            return;
+        }
+
+        // Sort both halves into src, then merge them back into dst
+        final int mid = (lo + hi) >>> 1;
+        mergeSort(dst, src, lo, mid, cmpfunc);
+        mergeSort(dst, src, mid, hi, cmpfunc);
+
+        if (!less(src[mid], src[mid - 1], cmpfunc)) {
+            // The halves are already in order
+            System.arraycopy(src, lo, dst, lo, hi - lo);
+            return;
+        }
+
+        int p = lo;
+        int q = mid;
+        int i = lo;
+        while (p < mid && q < hi) {
+            dst[i++] = (less(src[q], src[p], cmpfunc) ? src[q++] : src[p++]);
+        }
+        if (p < mid) {
+            System.arraycopy(src, p, dst, i, mid - p);
+        } else {
+            System.arraycopy(src, q, dst, i, hi - q);
+        }
+    }
+
+    /** Binary insertion sort, does few comparisons at the cost of moving more values. */
+    private static void insertionSort(LuaValue[] values, int lo, int hi, LuaValue cmpfunc) {
+        for (int i = lo + 1; i < hi; i++) {
+            final LuaValue v = values[i];
+            if (!less(v, values[i - 1], cmpfunc)) {
+                continue; // Already in place
+            }
+
+            int left = lo;
+            int right = i - 1;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (less(v, values[mid], cmpfunc)) {
+                    right = mid;
+                } else {
+                    left = mid + 1;
+                }
+            }
+            System.arraycopy(values, left, values, left + 1, i - left);
+            values[left] = v;
+        }
+    }
+
+    private static boolean less(LuaValue a, LuaValue b, LuaValue cmpfunc) {
+        if (a == null || b == null) {
+            return false;
+        } else if (cmpfunc.isnil()) {
+            return a.lt_b(b);
+        } else {
+            return cmpfunc.call(a, b).toboolean();
+        }
+    }
+
+}
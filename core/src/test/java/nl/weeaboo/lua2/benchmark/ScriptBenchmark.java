@@ -0,0 +1,80 @@
+package nl.weeaboo.lua2.benchmark;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.NONE;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import nl.weeaboo.lua2.LuaRunState;
+import nl.weeaboo.lua2.lib.BaseLib;
+import nl.weeaboo.lua2.vm.LuaClosure;
+import nl.weeaboo.lua2.vm.LuaError;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Measures the execution time of the Lua scripts in the {@code benchmark} resource folder. Each script is
+ * run a number of times to warm up the JIT before measuring.
+ * <p>
+ * Usage: {@code ScriptBenchmark [script...]}, or run the {@code benchmark} Gradle task to run all scripts.
+ */
+public final class ScriptBenchmark {
+
+    private static final List<String> DEFAULT_SCRIPTS = Arrays.asList(
+            "fib.lua",
+            "methodcall.lua",
+            "stdlib.lua",
+            "arrayloop.lua",
+            "nbody.lua",
+            "spectralnorm.lua");
+
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASURE_ITERATIONS = 20;
+
+    private ScriptBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        List<String> scripts = DEFAULT_SCRIPTS;
+        if (args.length > 0) {
+            scripts = Arrays.asList(args);
+        }
+
+        for (String script : scripts) {
+            run(script);
+        }
+    }
+
+    private static void run(String script) {
+        LuaRunState lrs = new LuaRunState();
+        lrs.setInstructionCountLimit(Integer.MAX_VALUE);
+        try {
+            LuaClosure chunk = load("benchmark/" + script);
+
+            Varargs result = NONE;
+            for (int n = 0; n < WARMUP_ITERATIONS; n++) {
+                result = chunk.invoke(NONE);
+            }
+
+            long start = System.nanoTime();
+            for (int n = 0; n < MEASURE_ITERATIONS; n++) {
+                chunk.invoke(NONE);
+            }
+            double millis = (System.nanoTime() - start) / (1000000.0 * MEASURE_ITERATIONS);
+
+            System.out.println(String.format(Locale.ROOT, "%-20s %10.2f ms/op  (result: %s)",
+                    script, millis, result.tojstring(1)));
+        } finally {
+            lrs.destroy();
+        }
+    }
+
+    private static LuaClosure load(String filename) {
+        Varargs loadResult = BaseLib.loadFile(filename);
+        if (loadResult.isnil(1)) {
+            throw new LuaError(loadResult.tojstring(2));
+        }
+        return loadResult.checkclosure(1);
+    }
+
+}
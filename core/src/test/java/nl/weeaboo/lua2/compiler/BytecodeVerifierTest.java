@@ -0,0 +1,101 @@
+package nl.weeaboo.lua2.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.LuaError;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public class BytecodeVerifierTest extends AbstractLuaTest {
+
+    private static final String[] SCRIPTS = {
+        "/interpreter/calls.lua",
+        "/interpreter/forloop.lua",
+        "/interpreter/globals.lua",
+        "/interpreter/registerstack.lua",
+        "/benchmark/nbody.lua",
+    };
+
+    /** Code produced by the compiler must always pass verification */
+    @Test
+    public void compiledCode() throws IOException {
+        for (String script : SCRIPTS) {
+            Prototype p = compile(script);
+            Prototype loaded = reload(p);
+            Assert.assertArrayEquals(p.code, loaded.code);
+        }
+    }
+
+    @Test
+    public void jumpOutOfRange() throws IOException {
+        Prototype p = LuaC.compile("local x = 0 while x < 10 do x = x + 1 end", "test");
+        int pc = find(p, Lua.OP_JMP);
+        p.code[pc] = (p.code[pc] & ~Lua.MASK_Bx) | ((Lua.MAXARG_sBx + p.code.length) << Lua.POS_Bx);
+        assertRejected(p, "jump target out of range");
+    }
+
+    @Test
+    public void registerOutOfRange() throws IOException {
+        Prototype p = LuaC.compile("local a, b = 1, 2 return a + b", "test");
+        int pc = find(p, Lua.OP_ADD);
+        p.code[pc] = (p.code[pc] & ~Lua.MASK_A) | (p.maxstacksize << Lua.POS_A);
+        assertRejected(p, "register index out of range");
+    }
+
+    @Test
+    public void constantOutOfRange() throws IOException {
+        Prototype p = LuaC.compile("return x", "test");
+        int pc = find(p, Lua.OP_GETGLOBAL);
+        p.code[pc] = (p.code[pc] & ~Lua.MASK_Bx) | (p.k.length << Lua.POS_Bx);
+        assertRejected(p, "constant index out of range");
+    }
+
+    @Test
+    public void missingReturn() throws IOException {
+        Prototype p = LuaC.compile("local x = 1", "test");
+        p.code[p.code.length - 1] = Lua.OP_MOVE;
+        assertRejected(p, "missing final return");
+    }
+
+    private static Prototype compile(String script) throws IOException {
+        InputStream in = BytecodeVerifierTest.class.getResourceAsStream(script);
+        Assert.assertNotNull(script, in);
+        try {
+            return LuaC.compile(in, script);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Prototype reload(Prototype p) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DumpState.dump(p, bout, false);
+        return LuaC.compile(new ByteArrayInputStream(bout.toByteArray()), "test");
+    }
+
+    private static int find(Prototype p, int opcode) {
+        for (int pc = 0; pc < p.code.length; pc++) {
+            if (Lua.GET_OPCODE(p.code[pc]) == opcode) {
+                return pc;
+            }
+        }
+        throw new AssertionError("Opcode not found: " + opcode);
+    }
+
+    private static void assertRejected(Prototype p, String expectedMessage) throws IOException {
+        try {
+            reload(p);
+            Assert.fail("Expected an exception");
+        } catch (LuaError e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(expectedMessage));
+        }
+    }
+
+}
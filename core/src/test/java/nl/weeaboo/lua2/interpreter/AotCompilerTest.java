@@ -0,0 +1,140 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState.InstructionLimitAction;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.DumpState;
+import nl.weeaboo.lua2.compiler.LuaC;
+import nl.weeaboo.lua2.vm.LuaConstants;
+import nl.weeaboo.lua2.vm.LuaNil;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public class AotCompilerTest extends AbstractLuaTest {
+
+    private static final String SCRIPT = "interpreter/jit.lua";
+    private static final String CLASS_NAME = "interpreter.jit";
+
+    private File outputDir;
+    private URLClassLoader classLoader;
+
+    @Before
+    public void before() throws IOException {
+        outputDir = File.createTempFile("aot", "");
+        Assert.assertTrue(outputDir.delete() && outputDir.mkdir());
+
+        // Does the same as the LuaClassCompiler build tool
+        Prototype chunk = compile(SCRIPT);
+        for (Map.Entry<String, byte[]> entry : AotCompiler.compile(chunk, CLASS_NAME).entrySet()) {
+            write(entry.getKey().replace('.', '/') + ".class", entry.getValue());
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DumpState.dump(chunk, bout, false);
+        write(AotCompiler.getBinaryChunkPath(CLASS_NAME), bout.toByteArray());
+
+        Properties manifest = new Properties();
+        manifest.setProperty(SCRIPT, CLASS_NAME);
+        bout = new ByteArrayOutputStream();
+        manifest.store(bout, null);
+        write(CompiledChunk.MANIFEST_PATH, bout.toByteArray());
+
+        classLoader = new URLClassLoader(new URL[] { outputDir.toURI().toURL() }, getClass().getClassLoader());
+    }
+
+    @After
+    public void after() {
+        delete(outputDir);
+    }
+
+    /** Functions are compiled from the start, with the same results as the interpreter */
+    @Test
+    public void compiledChunk() throws LuaException {
+        Assert.assertEquals(CLASS_NAME, CompiledChunk.readManifest(classLoader).getProperty(SCRIPT));
+
+        runChunk();
+        assertPrecompiled("arith");
+        assertPrecompiled("tables");
+        LuaTestUtil.assertGlobal("tablesResult", "4999,5000,5000,5000,name!");
+        LuaTestUtil.assertGlobal("lineResult", 501);
+        LuaTestUtil.assertGlobal("probeLine", 68);
+    }
+
+    /** Threads running compiled code can be saved while suspended, and continue after loading */
+    @Test
+    public void serializeSuspended() throws LuaException, IOException {
+        runChunk();
+        assertPrecompiled("whileLoop");
+
+        luaRunState.setInstructionCountLimit(10000);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("whileLoop", 100000);
+        luaRunState.update();
+        Assert.assertEquals(LuaNil.NIL, LuaTestUtil.getGlobal("loopDone"));
+
+        luaRunState = LuaTestUtil.serialize(luaRunState);
+        runToCompletion();
+        LuaTestUtil.assertGlobal("loopDone", true);
+        LuaTestUtil.assertGlobal("count", 100000);
+    }
+
+    private void runChunk() throws LuaException {
+        CompiledChunk chunk = CompiledChunk.newInstance(classLoader, CLASS_NAME);
+        chunk.setfenv(luaRunState.getGlobalEnvironment());
+        luaRunState.newThread(chunk.newClosure(), LuaConstants.NONE);
+        runToCompletion();
+    }
+
+    private static void assertPrecompiled(String functionName) {
+        Prototype p = LuaTestUtil.getGlobal(functionName).checkclosure().getPrototype();
+        CompiledFunction compiled = p.getCompiledFunction();
+        Assert.assertNotNull(functionName, compiled);
+        Assert.assertTrue(compiled.getClass().getName(), compiled.getClass().getName().startsWith(CLASS_NAME));
+    }
+
+    private void write(String relativePath, byte[] bytes) throws IOException {
+        File file = new File(outputDir, relativePath);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Prototype compile(String script) throws IOException {
+        InputStream in = AotCompilerTest.class.getResourceAsStream("/" + script);
+        try {
+            return LuaC.compile(in, "@/" + script);
+        } finally {
+            in.close();
+        }
+    }
+
+}
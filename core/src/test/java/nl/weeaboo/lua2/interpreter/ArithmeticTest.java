@@ -0,0 +1,75 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.vm.LuaValue.valueOf;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.vm.LuaValue;
+import nl.weeaboo.lua2.vm.Varargs;
+
+/**
+ * Checks the interpreter's arithmetic and comparison fast paths against the generic {@link LuaValue}
+ * operations.
+ */
+public class ArithmeticTest extends AbstractLuaTest {
+
+    private static final LuaValue[] NUMBERS = {
+        valueOf(0), valueOf(1), valueOf(-1), valueOf(7), valueOf(-7), valueOf(255), valueOf(-256),
+        valueOf(1024), valueOf(65536), valueOf(Integer.MAX_VALUE), valueOf(Integer.MIN_VALUE),
+        valueOf(0.5), valueOf(-2.5), valueOf(3.0e9), valueOf(-0.0), valueOf(Double.NaN),
+        valueOf(Double.POSITIVE_INFINITY), valueOf(Double.NEGATIVE_INFINITY),
+    };
+
+    @Before
+    public void before() throws LuaException {
+        loadScript("interpreter/arith.lua");
+        runToCompletion();
+    }
+
+    @Test
+    public void numbers() {
+        LuaValue arith = LuaTestUtil.getGlobal("arith");
+        LuaValue compare = LuaTestUtil.getGlobal("compare");
+        for (LuaValue a : NUMBERS) {
+            for (LuaValue b : NUMBERS) {
+                String message = a + ", " + b;
+
+                Varargs results = arith.invoke(a, b);
+                assertSameNumber(message + " +", a.add(b), results.arg(1));
+                assertSameNumber(message + " -", a.sub(b), results.arg(2));
+                assertSameNumber(message + " *", a.mul(b), results.arg(3));
+                assertSameNumber(message + " /", a.div(b), results.arg(4));
+                assertSameNumber(message + " %", a.mod(b), results.arg(5));
+                assertSameNumber(message + " ^", a.pow(b), results.arg(6));
+
+                results = compare.invoke(a, b);
+                Assert.assertEquals(message + " ==", a.eq_b(b), results.arg(1).toboolean());
+                Assert.assertEquals(message + " <", a.lt_b(b), results.arg(2).toboolean());
+                Assert.assertEquals(message + " <=", a.lteq_b(b), results.arg(3).toboolean());
+            }
+        }
+    }
+
+    @Test
+    public void otherTypes() {
+        LuaTestUtil.assertGlobal("constantResult", "4,2.5,6,1.5,1,9,true,true,false");
+        LuaTestUtil.assertGlobal("stringResult", "11,6,true,false");
+        LuaTestUtil.assertGlobal("metaResult", "add,add,true");
+    }
+
+    private static void assertSameNumber(String message, LuaValue expected, LuaValue actual) {
+        Assert.assertEquals(message, expected.getClass(), actual.getClass());
+        if (Double.isNaN(expected.todouble())) {
+            Assert.assertTrue(message, Double.isNaN(actual.todouble()));
+        } else {
+            Assert.assertEquals(message, Double.doubleToLongBits(expected.todouble()),
+                    Double.doubleToLongBits(actual.todouble()));
+        }
+    }
+
+}
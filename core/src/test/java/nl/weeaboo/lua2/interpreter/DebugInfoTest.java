@@ -0,0 +1,43 @@
+package nl.weeaboo.lua2.interpreter;
+
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.vm.LuaBoolean;
+
+/**
+ * The interpreter only runs its instrumented loop when debug hooks are active. Debug info must be the same for
+ * both.
+ */
+public class DebugInfoTest extends AbstractLuaTest {
+
+    @Test
+    public void instrumented() throws LuaException {
+        LuaTestUtil.setGlobal("instrumented", LuaBoolean.TRUE);
+        run();
+    }
+
+    @Test
+    public void uninstrumented() throws LuaException {
+        run();
+    }
+
+    private void run() throws LuaException {
+        loadScript("interpreter/debuginfo.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("arithError", "attempt to perform arithmetic __add on nil and number");
+        LuaTestUtil.assertGlobal("callErrorResult", "boom");
+        LuaTestUtil.assertGlobal("nestedError", "inner");
+        LuaTestUtil.assertGlobal("currentLine", 43);
+        LuaTestUtil.assertGlobal("callerLine", 40);
+        LuaTestUtil.assertGlobal("traceResult", "stack traceback:\n"
+                + "\t/interpreter/debuginfo.lua:48 in function traceInner\n"
+                + "\t/interpreter/debuginfo.lua:52 in function traceOuter\n"
+                + "\t/interpreter/debuginfo.lua:55 in main chunk");
+        LuaTestUtil.assertGlobal("lineHookResult", "62,63,64");
+    }
+
+}
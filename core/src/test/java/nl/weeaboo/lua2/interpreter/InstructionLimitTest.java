@@ -0,0 +1,121 @@
+package nl.weeaboo.lua2.interpreter;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState.InstructionLimitAction;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.vm.LuaNil;
+
+public class InstructionLimitTest extends AbstractLuaTest {
+
+    @Before
+    public void before() throws LuaException {
+        loadScript("interpreter/instructionlimit.lua");
+        runToCompletion();
+    }
+
+    @Test
+    public void error() {
+        luaRunState.setInstructionCountLimit(1000);
+        luaRunState.newThread("whileLoop");
+        try {
+            runToCompletion();
+            Assert.fail("Expected an exception");
+        } catch (LuaException e) {
+            assertLimitError(e.getMessage());
+        }
+    }
+
+    /** The limit may run out while entering a frame for pcall or a metamethod, the enclosing pcall catches it */
+    @Test
+    public void errorEnteringFrame() throws LuaException {
+        // The limit runs out at a different instruction depending on the limit
+        for (int limit = 1000; limit < 1004; limit++) {
+            LuaTestUtil.setGlobal("pcallLoopResult", LuaNil.NIL);
+            LuaTestUtil.setGlobal("indexLoopResult", LuaNil.NIL);
+
+            luaRunState.setInstructionCountLimit(limit);
+            luaRunState.newThread("pcallLoop");
+            luaRunState.newThread("indexLoop");
+            runToCompletion();
+
+            assertLimitError(LuaTestUtil.getGlobal("pcallLoopResult").tojstring());
+            assertLimitError(LuaTestUtil.getGlobal("indexLoopResult").tojstring());
+        }
+    }
+
+    /** Loops are suspended when they exceed the limit, then continue during the next update */
+    @Test
+    public void suspendLoop() throws LuaException {
+        luaRunState.setInstructionCountLimit(1000);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("countLoop", 100000);
+
+        luaRunState.update();
+        Assert.assertEquals(LuaNil.NIL, LuaTestUtil.getGlobal("loopDone"));
+        int count = LuaTestUtil.getGlobal("count").toint();
+        Assert.assertTrue("count=" + count, count > 0 && count < 100000);
+
+        runToCompletion();
+        LuaTestUtil.assertGlobal("loopDone", true);
+        LuaTestUtil.assertGlobal("count", 100000);
+    }
+
+    /** Calls count towards the limit, the called function starts running after the thread is resumed */
+    @Test
+    public void suspendCalls() throws LuaException {
+        luaRunState.setInstructionCountLimit(10);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("recursion", 100);
+
+        luaRunState.update();
+        Assert.assertEquals(LuaNil.NIL, LuaTestUtil.getGlobal("recursionResult"));
+
+        runToCompletion();
+        LuaTestUtil.assertGlobal("recursionResult", 100);
+    }
+
+    /** Lua functions called from Java can't be suspended, they raise an error instead */
+    @Test
+    public void suspendFromJava() throws LuaException {
+        luaRunState.setInstructionCountLimit(1000);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("xpcallLoop");
+        runToCompletion();
+
+        assertLimitError(LuaTestUtil.getGlobal("xpcallResult").tojstring());
+    }
+
+    /** Functions called through pcall run in the interpreter, so they can be suspended */
+    @Test
+    public void suspendInPcall() throws LuaException {
+        luaRunState.setInstructionCountLimit(1000);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("pcallCount", 100000);
+
+        luaRunState.update();
+        Assert.assertEquals(LuaNil.NIL, LuaTestUtil.getGlobal("pcallOk"));
+
+        runToCompletion();
+        LuaTestUtil.assertGlobal("pcallOk", true);
+        LuaTestUtil.assertGlobal("count", 100000);
+    }
+
+    @Test
+    public void noLimit() throws LuaException {
+        luaRunState.setInstructionCountLimit(Integer.MAX_VALUE);
+        luaRunState.newThread("countLoop", 100000);
+
+        luaRunState.update();
+        LuaTestUtil.assertGlobal("loopDone", true);
+    }
+
+    private static void assertLimitError(String message) {
+        Assert.assertTrue(message, message.contains("instruction limit exceeded"));
+    }
+
+}
@@ -0,0 +1,134 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaRunState.InstructionLimitAction;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LuaC;
+import nl.weeaboo.lua2.vm.LuaNil;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public class JitCompilerTest extends AbstractLuaTest {
+
+    private static final String SCRIPT = "/interpreter/jit.lua";
+
+    private static final String[] SCRIPTS = {
+        "/interpreter/arith.lua",
+        "/interpreter/calls.lua",
+        "/interpreter/forloop.lua",
+        "/interpreter/globals.lua",
+        "/interpreter/quicken.lua",
+        "/interpreter/registerstack.lua",
+        "/interpreter/jit.lua",
+        "/benchmark/arrayloop.lua",
+        "/benchmark/fib.lua",
+        "/benchmark/methodcall.lua",
+        "/benchmark/nbody.lua",
+        "/benchmark/spectralnorm.lua",
+    };
+
+    @After
+    public void after() {
+        JitCompiler.setEnabled(true);
+    }
+
+    @Test
+    public void compiledResults() throws LuaException {
+        runScript();
+        assertCompiled("arith", true);
+        assertCompiled("tables", true);
+        assertCompiled("lineAt", true);
+        assertCompiled("numbers", true);
+        assertResults();
+    }
+
+    /** Disabling the compiler doesn't change the results */
+    @Test
+    public void interpretedResults() throws LuaException {
+        JitCompiler.setEnabled(false);
+        runScript();
+        assertCompiled("arith", false);
+        assertResults();
+    }
+
+    private static void assertResults() {
+        LuaTestUtil.assertGlobal("arithResult", "25000000,141.40721,497,"
+                + "10020030040050060070080090010001100120013001400150016001700180019002000"
+                + "21002200230024002500260027002800290030003100320033003400350036003700380039004000"
+                + "4100420043004400450046004700480049005000,9999");
+        LuaTestUtil.assertGlobal("tablesResult", "4999,5000,5000,5000,name!");
+        LuaTestUtil.assertGlobal("lineResult", 501);
+        LuaTestUtil.assertGlobal("probeLine", 68);
+        LuaTestUtil.assertGlobal("numbersResult", "6232505,7500,inf");
+    }
+
+    /** Compiled loops can be suspended by the instruction limit, and continue in the interpreter */
+    @Test
+    public void suspendCompiledLoop() throws LuaException {
+        runScript();
+        luaRunState.setInstructionCountLimit(10000);
+        luaRunState.setInstructionLimitAction(InstructionLimitAction.SUSPEND);
+        luaRunState.newThread("whileLoop", 100000);
+
+        luaRunState.update();
+        Assert.assertEquals(LuaNil.NIL, LuaTestUtil.getGlobal("loopDone"));
+        int count = LuaTestUtil.getGlobal("count").toint();
+        Assert.assertTrue("count=" + count, count > 0 && count < 100000);
+        assertCompiled("whileLoop", true);
+
+        runToCompletion();
+        LuaTestUtil.assertGlobal("loopDone", true);
+        LuaTestUtil.assertGlobal("count", 100000);
+    }
+
+    /** Every function that's worth compiling produces a class the JVM accepts */
+    @Test
+    public void compileAll() throws IOException {
+        int compiled = 0;
+        for (String script : SCRIPTS) {
+            compiled += compileAll(compile(script));
+        }
+        Assert.assertTrue(compiled > 0);
+    }
+
+    private static int compileAll(Prototype p) {
+        int compiled = 0;
+        if (JitCompiler.isWorthCompiling(p)) {
+            CompiledFunction function = JitCompiler.compile(p);
+            Assert.assertNotNull(p.toString(), function);
+            Assert.assertSame(function, p.getCompiledFunction());
+            compiled++;
+        }
+        for (Prototype child : p.p) {
+            compiled += compileAll(child);
+        }
+        return compiled;
+    }
+
+    private void runScript() throws LuaException {
+        loadScript(SCRIPT.substring(1));
+        runToCompletion();
+    }
+
+    private static void assertCompiled(String functionName, boolean expected) {
+        Prototype p = LuaTestUtil.getGlobal(functionName).checkclosure().getPrototype();
+        Assert.assertEquals(functionName, expected, p.getCompiledFunction() != null);
+    }
+
+    private static Prototype compile(String script) throws IOException {
+        InputStream in = JitCompilerTest.class.getResourceAsStream(script);
+        try {
+            return LuaC.compile(in, script);
+        } finally {
+            in.close();
+        }
+    }
+
+}
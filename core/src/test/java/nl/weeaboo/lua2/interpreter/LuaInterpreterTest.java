@@ -0,0 +1,95 @@
+package nl.weeaboo.lua2.interpreter;
+
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.lib.ZeroArgFunction;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+public class LuaInterpreterTest extends AbstractLuaTest {
+
+    @Test
+    public void calls() throws LuaException {
+        loadScript("interpreter/calls.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("nestedResult", 6);
+        LuaTestUtil.assertGlobal("multiResult", 5);
+        LuaTestUtil.assertGlobal("tailcallResult", 5050);
+        LuaTestUtil.assertGlobal("returnCountResult", true);
+        LuaTestUtil.assertGlobal("tailVarargResult", 1 + 3 + 3);
+        LuaTestUtil.assertGlobal("tailMissingResult", true);
+        LuaTestUtil.assertGlobal("tailArgResult", "2,1");
+        LuaTestUtil.assertGlobal("deepTailResult", 40 * 20);
+        LuaTestUtil.assertGlobal("javaCallResult", "nil,5,el,20,y,true");
+        LuaTestUtil.assertGlobal("pcallErrors", 300);
+        LuaTestUtil.assertGlobal("depthChange", 0);
+        LuaTestUtil.assertGlobal("afterErrorResult", 15);
+        LuaTestUtil.assertGlobal("yieldResult", 15);
+    }
+
+    /** Lua functions called through pcall, iterators and metamethods */
+    @Test
+    public void metaCalls() throws LuaException {
+        LuaTestUtil.setGlobal("throwError", new ZeroArgFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LuaValue call() {
+                throw new OutOfMemoryError("test");
+            }
+        });
+        loadScript("interpreter/metacalls.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("pcallResult", "true,5,false,outer,true,false,inner,3");
+        LuaTestUtil.assertGlobal("pcallTypeError", true);
+        LuaTestUtil.assertGlobal("pcallJavaError", "false,Runtime error :: java.lang.OutOfMemoryError: test");
+        LuaTestUtil.assertGlobal("pcallYieldResult", true);
+        LuaTestUtil.assertGlobal("iteratorResult", 55 + 110 + 200);
+        LuaTestUtil.assertGlobal("iteratorErrorResult", "false,iterator failed,3");
+        LuaTestUtil.assertGlobal("metamethodResult", "name!,key!,2,x=1,nil,42,true");
+        LuaTestUtil.assertGlobal("deepPcallResult", 100);
+    }
+
+    @Test
+    public void closures() throws LuaException {
+        loadScript("interpreter/closures.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("distinctResult", "5,5,21,3");
+        LuaTestUtil.assertGlobal("perIterationResult", "5,15");
+        LuaTestUtil.assertGlobal("envResult", "false,custom,global");
+    }
+
+    @Test
+    public void globals() throws LuaException {
+        loadScript("interpreter/globals.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("globalRemovedResult", true);
+        LuaTestUtil.assertGlobal("globalTypeResult", "str");
+        LuaTestUtil.assertGlobal("globalRehashResult", 6);
+        LuaTestUtil.assertGlobal("envResult", "global,custom,global");
+        LuaTestUtil.assertGlobal("inheritResult", "global,changed,own,changed");
+        LuaTestUtil.assertGlobal("newindexResult", "1,3");
+    }
+
+    @Test
+    public void forLoop() throws LuaException {
+        loadScript("interpreter/forloop.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("intResult", "1 2 3 4 5|5 3 1|");
+        LuaTestUtil.assertGlobal("fractionResult", "1 2 3|3 1 -1|");
+        LuaTestUtil.assertGlobal("doubleResult", "0.5 1 1.5 2|1 1.25 1.5 1.75 2");
+        LuaTestUtil.assertGlobal("boundaryResult", "3,2147483646,2147483656");
+        LuaTestUtil.assertGlobal("nanResult", "|1 1000000001 2000000001 3000000001 4000000001 5000000001 6000000001 "
+                + "7000000001 8000000001 9000000001 10000000001|1 0 -1 -2 -3 -4 -5 -6 -7 -8 -9");
+        LuaTestUtil.assertGlobal("modifyResult", 55);
+        LuaTestUtil.assertGlobal("largeResult", 5000050000L);
+    }
+
+}
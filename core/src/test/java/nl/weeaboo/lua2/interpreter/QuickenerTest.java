@@ -0,0 +1,70 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.compiler.LuaC;
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public class QuickenerTest extends AbstractLuaTest {
+
+    private static final String SCRIPT = "/interpreter/quicken.lua";
+
+    @Test
+    public void quickenedInstructions() throws LuaException {
+        loadScript(SCRIPT);
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("arithResult", "2/0,2147483648/2147483646,-2147483647/-2147483649,1.5/-0.5,6/4,"
+                + "add/sub,4/2");
+        LuaTestUtil.assertGlobal("eqResult", "true/false,true/false,false/true,false/true,false/true,false/true");
+        LuaTestUtil.assertGlobal("callResult", "A,lua:b,C,4");
+        LuaTestUtil.assertGlobal("callResult2", "lua:a,B");
+        LuaTestUtil.assertGlobal("getResult", "value,string,value");
+    }
+
+    /** Quickening only changes opcodes, and only in the execution copy of the code */
+    @Test
+    public void operandsPreserved() throws IOException {
+        Prototype p = compile(SCRIPT);
+        int[] original = p.code.clone();
+
+        int quickened = checkOperandsPreserved(p);
+        Assert.assertTrue(quickened > 0);
+        Assert.assertArrayEquals(original, p.code);
+    }
+
+    private static int checkOperandsPreserved(Prototype p) {
+        int quickened = 0;
+        int[] code = p.getExecutionCode();
+        Assert.assertNotSame(p.code, code);
+        for (int pc = 0; pc < p.code.length; pc++) {
+            int op = Lua.GET_OPCODE(code[pc]);
+            if (op >= Lua.NUM_OPCODES) {
+                quickened++;
+            }
+            Assert.assertEquals(p.code[pc], Quickener.withOpcode(code[pc], Lua.GET_OPCODE(p.code[pc])));
+        }
+        for (Prototype child : p.p) {
+            quickened += checkOperandsPreserved(child);
+        }
+        return quickened;
+    }
+
+    private static Prototype compile(String script) throws IOException {
+        InputStream in = QuickenerTest.class.getResourceAsStream(script);
+        try {
+            return LuaC.compile(in, script);
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.compiler.LuaC;
+import nl.weeaboo.lua2.vm.Lua;
+import nl.weeaboo.lua2.vm.Prototype;
+
+public class RegisterLivenessTest {
+
+    @Test
+    public void deadAfterLastUse() throws IOException {
+        Prototype p = compile("local a, b = ...\n"
+                + "local c = a + b\n"
+                + "local d = c * 2\n"
+                + "return d");
+        RegisterLiveness liveness = RegisterLiveness.analyze(p);
+
+        int add = find(p, Lua.OP_ADD);
+        int mul = find(p, Lua.OP_MUL);
+        Assert.assertTrue(liveness.isLiveAfter(add, 2));
+        Assert.assertFalse(liveness.isLiveAfter(mul, 2));
+        Assert.assertTrue(liveness.isLiveAfter(mul, 3));
+    }
+
+    /** Registers captured by a closure may be read at any time */
+    @Test
+    public void capturedAlwaysLive() throws IOException {
+        Prototype p = compile("local a, b = ...\n"
+                + "local c = a + b\n"
+                + "local f = function() return c end\n"
+                + "local d = c * 2\n"
+                + "return d, f");
+        RegisterLiveness liveness = RegisterLiveness.analyze(p);
+
+        Assert.assertTrue(liveness.isLiveAfter(find(p, Lua.OP_MUL), 2));
+    }
+
+    /** Values used in the next iteration of a loop stay live, conditional instructions may skip a jump */
+    @Test
+    public void loops() throws IOException {
+        Prototype p = compile("local a, b = ...\n"
+                + "while a < b do\n"
+                + "  a = a + 1\n"
+                + "end");
+        RegisterLiveness liveness = RegisterLiveness.analyze(p);
+
+        int add = find(p, Lua.OP_ADD);
+        Assert.assertTrue(liveness.isLiveAfter(add, 0));
+        Assert.assertTrue(liveness.isBranchTarget(find(p, Lua.OP_LT)));
+        Assert.assertTrue(liveness.isBranchTarget(add));
+        Assert.assertFalse(liveness.isBranchTarget(add + 1));
+    }
+
+    private static int find(Prototype p, int opcode) {
+        for (int pc = 0; pc < p.code.length; pc++) {
+            if (Lua.GET_OPCODE(p.code[pc]) == opcode) {
+                return pc;
+            }
+        }
+        throw new AssertionError("Opcode not found: " + opcode);
+    }
+
+    private static Prototype compile(String script) throws IOException {
+        return LuaC.compile(new ByteArrayInputStream(script.getBytes("UTF-8")), "test");
+    }
+
+}
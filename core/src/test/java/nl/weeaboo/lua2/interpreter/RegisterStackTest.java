@@ -0,0 +1,81 @@
+package nl.weeaboo.lua2.interpreter;
+
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.link.LuaLink;
+import nl.weeaboo.lua2.vm.LuaValue;
+
+public class RegisterStackTest extends AbstractLuaTest {
+
+    @Test
+    public void segments() {
+        RegisterStack registers = new RegisterStack();
+
+        LuaValue[] first = registers.segmentAfter(null, 10);
+        Assert.assertSame(first, registers.segmentAfter(null, 10));
+        assertNilFilled(first);
+
+        // Segments grow
+        LuaValue[] second = registers.segmentAfter(first, 10);
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(second.length > first.length);
+        Assert.assertSame(second, registers.segmentAfter(first, 10));
+
+        // Segments that are too small are replaced
+        LuaValue[] large = registers.segmentAfter(first, second.length + 1);
+        Assert.assertEquals(second.length + 1, large.length);
+        Assert.assertSame(large, registers.segmentAfter(first, 10));
+
+        Assert.assertEquals(first.length + large.length, registers.capacity());
+    }
+
+    @Test
+    public void run() throws LuaException {
+        LuaLink link = loadScript("interpreter/registerstack.lua");
+        runToCompletion();
+
+        assertResults();
+
+        // The registers of popped frames are cleared
+        RegisterStack registers = link.getThread().getRegisterStack();
+        Assert.assertTrue(registers.segmentCount() > 1);
+        for (int n = 0; n < registers.segmentCount(); n++) {
+            assertNilFilled(registers.segment(n));
+        }
+    }
+
+    /** Serialize while frames with open upvalues are spread over multiple segments */
+    @Test
+    public void serialize() throws LuaException, IOException {
+        LuaLink link = loadScript("interpreter/registerstack.lua");
+        link.update();
+        LuaTestUtil.assertGlobal("deepResult", null);
+
+        luaRunState = LuaTestUtil.serialize(luaRunState);
+        runToCompletion();
+
+        assertResults();
+    }
+
+    private static void assertResults() {
+        LuaTestUtil.assertGlobal("deepResult", 1829);
+        LuaTestUtil.assertGlobal("capturedSum", 4080);
+        LuaTestUtil.assertGlobal("varargResult", 1 + 2 + 3 + 20);
+        LuaTestUtil.assertGlobal("missingResult", true);
+    }
+
+    private static void assertNilFilled(LuaValue[] stack) {
+        for (LuaValue val : stack) {
+            Assert.assertSame(NIL, val);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package nl.weeaboo.lua2.interpreter;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.LuaException;
+import nl.weeaboo.lua2.LuaTestUtil;
+import nl.weeaboo.lua2.link.LuaLink;
+import nl.weeaboo.lua2.vm.UpValue;
+
+public class StackFramePoolTest extends AbstractLuaTest {
+
+    @Test
+    public void recycleOpenUps() {
+        StackFramePool pool = new StackFramePool();
+
+        // Arrays are rounded up to the next size class
+        UpValue[] ups = pool.allocOpenUps(3);
+        Assert.assertEquals(4, ups.length);
+
+        // Freed arrays are reused
+        pool.freeOpenUps(ups);
+        Assert.assertSame(ups, pool.allocOpenUps(4));
+
+        // Arrays of other size classes aren't reused
+        pool.freeOpenUps(ups);
+        Assert.assertNotSame(ups, pool.allocOpenUps(5));
+
+        // Very large arrays aren't pooled
+        UpValue[] large = pool.allocOpenUps(300);
+        Assert.assertEquals(300, large.length);
+        pool.freeOpenUps(large);
+        Assert.assertNotSame(large, pool.allocOpenUps(300));
+    }
+
+    @Test
+    public void recycleFrames() throws LuaException {
+        loadScript("interpreter/framepool.lua");
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("counterResult", 12 + 22);
+        LuaTestUtil.assertGlobal("yieldResult", 3);
+    }
+
+    /** Serialize a thread while a (pooled) frame with open upvalues is suspended */
+    @Test
+    public void serializeOpenUpValues() throws LuaException, IOException {
+        LuaLink thread = loadScript("interpreter/framepool.lua");
+        thread.update();
+        LuaTestUtil.assertGlobal("yieldResult", null);
+
+        luaRunState = LuaTestUtil.serialize(luaRunState);
+        runToCompletion();
+
+        LuaTestUtil.assertGlobal("yieldResult", 3);
+    }
+
+}
@@ -0,0 +1,275 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaConstants.INDEX;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexCacheTest {
+
+    private static final LuaString KEY = LuaString.valueOf("key");
+
+    private IndexCache cache;
+    private LuaTable receiver;
+    private LuaTable meta;
+    private LuaTable index;
+
+    @Before
+    public void before() {
+        cache = new IndexCache();
+
+        index = new LuaTable();
+        index.rawset(KEY, LuaValue.valueOf("index"));
+
+        meta = new LuaTable();
+        meta.rawset(INDEX, index);
+
+        receiver = new LuaTable();
+        receiver.setmetatable(meta);
+    }
+
+    @Test
+    public void ownKey() {
+        receiver.rawset(KEY, LuaValue.valueOf("own"));
+        assertGet("own");
+
+        // Value changes don't require a new lookup, but must be visible
+        receiver.rawset(KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+
+        // Removed key falls back to __index
+        receiver.rawset(KEY, NIL);
+        assertGet("index");
+    }
+
+    @Test
+    public void numberEntryReplaced() {
+        receiver.rawset(KEY, LuaValue.valueOf(1));
+        assertGet(1);
+
+        // Number entries are replaced when storing a non-number
+        receiver.rawset(KEY, LuaValue.valueOf("string"));
+        assertGet("string");
+    }
+
+    @Test
+    public void rehash() {
+        receiver.rawset(KEY, LuaValue.valueOf("own"));
+        assertGet("own");
+
+        for (int n = 0; n < 100; n++) {
+            receiver.rawset(LuaValue.valueOf("k" + n), LuaValue.valueOf(n));
+        }
+        assertGet("own");
+        receiver.rawset(KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+    }
+
+    @Test
+    public void indexTable() {
+        assertGet("index");
+
+        // Changed value in the __index table
+        index.rawset(KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+
+        // Receiver shadows the __index table
+        receiver.rawset(KEY, LuaValue.valueOf("own"));
+        assertGet("own");
+        receiver.rawset(KEY, NIL);
+        assertGet("changed");
+
+        // Other receiver with the same metatable
+        LuaTable other = new LuaTable();
+        other.setmetatable(meta);
+        Assert.assertEquals("changed", cache.get(other, KEY).tojstring());
+        other.rawset(KEY, LuaValue.valueOf("other"));
+        Assert.assertEquals("other", cache.get(other, KEY).tojstring());
+        assertGet("changed");
+    }
+
+    @Test
+    public void indexChanged() {
+        assertGet("index");
+
+        // __index is replaced by a different table (in-place value update)
+        LuaTable index2 = new LuaTable();
+        index2.rawset(KEY, LuaValue.valueOf("index2"));
+        meta.rawset(INDEX, index2);
+        assertGet("index2");
+
+        // __index removed
+        meta.rawset(INDEX, NIL);
+        assertGet(NIL);
+    }
+
+    @Test
+    public void metatableChanged() {
+        assertGet("index");
+
+        LuaTable index2 = new LuaTable();
+        index2.rawset(KEY, LuaValue.valueOf("index2"));
+        LuaTable meta2 = new LuaTable();
+        meta2.rawset(INDEX, index2);
+        receiver.setmetatable(meta2);
+        assertGet("index2");
+
+        receiver.setmetatable(null);
+        assertGet(NIL);
+    }
+
+    /** Class hierarchy, receiver -> index -> base -> root */
+    @Test
+    public void indexChain() {
+        index.rawset(KEY, NIL);
+        LuaTable root = new LuaTable();
+        root.rawset(KEY, LuaValue.valueOf("root"));
+        LuaTable base = new LuaTable();
+        base.setmetatable(LuaValue.tableOf(new LuaValue[] { INDEX, root }));
+        index.setmetatable(LuaValue.tableOf(new LuaValue[] { INDEX, base }));
+        assertGet("root");
+
+        root.rawset(KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+
+        // A class in the middle of the chain overrides the value
+        base.rawset(KEY, LuaValue.valueOf("base"));
+        assertGet("base");
+        base.rawset(KEY, NIL);
+        assertGet("changed");
+        index.rawset(KEY, LuaValue.valueOf("index"));
+        assertGet("index");
+        index.rawset(KEY, NIL);
+        assertGet("changed");
+
+        // The __index of a metatable in the middle of the chain is replaced
+        LuaTable root2 = new LuaTable();
+        root2.rawset(KEY, LuaValue.valueOf("root2"));
+        base.getmetatable().rawset(INDEX, root2);
+        assertGet("root2");
+
+        // The metatable in the middle of the chain is replaced
+        base.setmetatable(null);
+        assertGet(NIL);
+    }
+
+    /** Chains longer than the cache supports give the same results */
+    @Test
+    public void deepIndexChain() {
+        LuaTable t = index;
+        for (int n = 0; n < IndexCache.MAX_DEPTH + 2; n++) {
+            t.rawset(KEY, NIL);
+            LuaTable parent = new LuaTable();
+            parent.rawset(KEY, LuaValue.valueOf("level" + n));
+            t.setmetatable(LuaValue.tableOf(new LuaValue[] { INDEX, parent }));
+            assertGet("level" + n);
+            t = parent;
+        }
+    }
+
+    @Test
+    public void weakTable() {
+        LuaTable weakMeta = new LuaTable();
+        weakMeta.rawset(LuaConstants.MODE, LuaValue.valueOf("v"));
+        receiver.setmetatable(weakMeta);
+
+        receiver.rawset(KEY, LuaValue.valueOf("own"));
+        assertGet("own");
+        receiver.rawset(KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+    }
+
+    @Test
+    public void stringMethods() {
+        LuaString str = LuaString.valueOf("abc");
+        LuaValue oldMetatable = LuaString.s_metatable;
+        try {
+            LuaString.s_metatable = meta;
+            Assert.assertEquals("index", cache.get(str, KEY).tojstring());
+
+            index.rawset(KEY, LuaValue.valueOf("changed"));
+            Assert.assertEquals("changed", cache.get(str, KEY).tojstring());
+        } finally {
+            LuaString.s_metatable = oldMetatable;
+        }
+    }
+
+    @Test
+    public void setOwnKey() {
+        cache.set(receiver, KEY, LuaValue.valueOf("own"));
+        assertGet("own");
+        cache.set(receiver, KEY, LuaValue.valueOf("changed"));
+        assertGet("changed");
+
+        // Number entries are replaced when storing a non-number
+        cache.set(receiver, KEY, LuaValue.valueOf(1));
+        cache.set(receiver, KEY, LuaValue.valueOf(2));
+        assertGet(2);
+        cache.set(receiver, KEY, LuaValue.valueOf("string"));
+        assertGet("string");
+
+        // Removal
+        cache.set(receiver, KEY, NIL);
+        assertGet("index");
+        cache.set(receiver, KEY, LuaValue.valueOf("again"));
+        assertGet("again");
+    }
+
+    @Test
+    public void setOtherReceiver() {
+        cache.set(receiver, KEY, LuaValue.valueOf("own"));
+
+        LuaTable other = new LuaTable();
+        cache.set(other, KEY, LuaValue.valueOf("other"));
+        assertGet("own");
+        Assert.assertEquals("other", other.get(KEY).tojstring());
+    }
+
+    /** Tables with the same shape share the cached position */
+    @Test
+    public void sameShape() {
+        LuaTable a = new LuaTable();
+        a.rawset("x", LuaValue.valueOf(1));
+        a.rawset(KEY, LuaValue.valueOf("a"));
+        LuaTable b = new LuaTable();
+        b.rawset("x", LuaValue.valueOf(2));
+        b.rawset(KEY, LuaValue.valueOf("b"));
+        Assert.assertSame(a.shape, b.shape);
+
+        Assert.assertEquals("a", cache.get(a, KEY).tojstring());
+        Assert.assertEquals("b", cache.get(b, KEY).tojstring());
+        cache.set(b, KEY, LuaValue.valueOf("changed"));
+        Assert.assertEquals("changed", b.rawget(KEY).tojstring());
+        Assert.assertEquals("a", cache.get(a, KEY).tojstring());
+
+        // Removed key in a table with the same shape
+        b.rawset(KEY, NIL);
+        Assert.assertEquals(NIL, cache.get(b, KEY));
+        b.setmetatable(meta);
+        Assert.assertEquals("index", cache.get(b, KEY).tojstring());
+
+        // Different shape
+        LuaTable c = new LuaTable();
+        c.rawset(KEY, LuaValue.valueOf("c"));
+        Assert.assertEquals("c", cache.get(c, KEY).tojstring());
+        Assert.assertEquals("a", cache.get(a, KEY).tojstring());
+    }
+
+    private void assertGet(Object expected) {
+        // Call twice to check both the lookup that fills the cache, and the cached lookup
+        for (int n = 0; n < 2; n++) {
+            LuaValue actual = cache.get(receiver, KEY);
+            Assert.assertEquals(receiver.get(KEY), actual);
+            if (expected instanceof Integer) {
+                Assert.assertEquals(((Integer)expected).intValue(), actual.toint());
+            } else if (expected instanceof String) {
+                Assert.assertEquals(expected, actual.tojstring());
+            } else {
+                Assert.assertEquals(expected, actual);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package nl.weeaboo.lua2.vm;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.compiler.LuaC;
+
+public class LuaErrorTest extends AbstractLuaTest {
+
+    private static final String SCRIPT = "local function fail()\n"
+            + "  error('boom')\n"
+            + "end\n"
+            + "local function outer()\n"
+            + "  fail()\n"
+            + "end\n"
+            + "outer()\n";
+
+    /** Errors raised by Lua code only have the Lua callstack as their stack trace */
+    @Test
+    public void luaStackTrace() throws Exception {
+        LuaError error = runFailingScript(SCRIPT);
+        Assert.assertEquals("boom", error.getMessage());
+
+        StackTraceElement[] stack = error.getStackTrace();
+        Assert.assertEquals(2, stack.length);
+        assertLuaElement(stack[0], "function fail", 5);
+        assertLuaElement(stack[1], "function outer", 7);
+    }
+
+    /** Errors wrapping a Java exception keep the Java stack trace */
+    @Test
+    public void javaCause() {
+        LuaError error = new LuaError("wrapped", new IllegalStateException());
+        Assert.assertTrue(containsClass(error.getStackTrace(), LuaErrorTest.class));
+    }
+
+    /** Errors raised by the interpreter don't record a Java stack trace either */
+    @Test
+    public void operationError() throws Exception {
+        LuaError error = runFailingScript("local x = nil\nreturn x + 1\n");
+        Assert.assertFalse(containsClass(error.getStackTrace(), LuaErrorTest.class));
+    }
+
+    /** Errors raised by Java functions keep the Java stack trace, with the Lua callstack inserted */
+    @Test
+    public void javaStackTrace() throws Exception {
+        LuaError error = runFailingScript("string.rep('x', 'y')\n");
+        StackTraceElement[] stack = error.getStackTrace();
+        Assert.assertTrue(containsClass(stack, LuaErrorTest.class));
+        Assert.assertTrue(containsClass(stack, LuaValue.class));
+        Assert.assertTrue(containsClass(stack, "Lua"));
+
+        error = new LuaError("api");
+        Assert.assertTrue(containsClass(error.getStackTrace(), LuaErrorTest.class));
+    }
+
+    /** Copies of an error keep its stack trace */
+    @Test
+    public void copy() throws Exception {
+        LuaError luaError = runFailingScript(SCRIPT);
+        Assert.assertEquals(Arrays.asList(luaError.getStackTrace()),
+                Arrays.asList(new LuaError(luaError).getStackTrace()));
+
+        LuaError noTrace = LuaError.luaError("none", -1);
+        Assert.assertEquals(0, noTrace.getStackTrace().length);
+        Assert.assertTrue(containsClass(new LuaError(noTrace).getStackTrace(), LuaErrorTest.class));
+    }
+
+    private LuaError runFailingScript(String script) throws Exception {
+        LuaClosure closure = new LuaClosure(LuaC.compile(script, "@test.lua"), luaRunState.getGlobalEnvironment());
+        try {
+            closure.call();
+        } catch (LuaError e) {
+            return e;
+        }
+        throw new AssertionError("Expected an exception");
+    }
+
+    private static void assertLuaElement(StackTraceElement elem, String function, int line) {
+        Assert.assertEquals("Lua", elem.getClassName());
+        Assert.assertEquals(function, elem.getMethodName());
+        Assert.assertEquals("test.lua", elem.getFileName());
+        Assert.assertEquals(line, elem.getLineNumber());
+    }
+
+    private static boolean containsClass(StackTraceElement[] stack, Class<?> clazz) {
+        return containsClass(stack, clazz.getName());
+    }
+
+    private static boolean containsClass(StackTraceElement[] stack, String className) {
+        for (StackTraceElement elem : stack) {
+            if (elem.getClassName().equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
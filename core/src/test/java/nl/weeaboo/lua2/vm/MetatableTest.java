@@ -379,4 +379,29 @@ public class MetatableTest extends TestCase {
 
     }
 
+    /** Metamethods added after their absence was noticed are used */
+    public void testMetamethodAddedLater() {
+        LuaTable mt = LuaValue.tableOf();
+        LuaTable t = LuaValue.tableOf();
+        t.setmetatable(mt);
+        assertEquals(NIL, t.get("key"));
+        assertEquals(0, t.length());
+
+        mt.set(INDEX, LuaValue.tableOf(new LuaValue[] { LuaValue.valueOf("key"), LuaValue.valueOf("value") }));
+        assertEquals("value", t.get("key").tojstring());
+
+        mt.set(LuaConstants.LEN, new TwoArgFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LuaValue call(LuaValue arg1, LuaValue arg2) {
+                return LuaValue.valueOf(42);
+            }
+        });
+        assertEquals(42, t.length());
+
+        mt.set(INDEX, NIL);
+        assertEquals(NIL, t.get("key"));
+    }
+
 }
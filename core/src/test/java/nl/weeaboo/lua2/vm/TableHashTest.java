@@ -25,6 +25,10 @@ import static nl.weeaboo.lua2.vm.LuaConstants.INDEX;
 import static nl.weeaboo.lua2.vm.LuaConstants.TNUMBER;
 import static nl.weeaboo.lua2.vm.LuaNil.NIL;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -331,4 +335,46 @@ public class TableHashTest {
         }
         Assert.assertEquals(5, numEntries);
     }
+
+    /** Colliding keys, removed keys and keys added again must all be found */
+    @Test
+    public void testRandomSetRemove() {
+        final LuaTable t = new_Table();
+        final LuaValue[] keys = new LuaValue[64];
+        for (int n = 0; n < keys.length; n++) {
+            switch (n % 4) {
+            case 0:
+                keys[n] = LuaValue.valueOf("k" + n);
+                break;
+            case 1:
+                keys[n] = LuaValue.valueOf(n * 16);
+                break;
+            case 2:
+                keys[n] = LuaValue.valueOf(n + 0.5);
+                break;
+            default:
+                keys[n] = new LuaTable();
+                break;
+            }
+        }
+
+        Map<LuaValue, LuaValue> expected = new HashMap<LuaValue, LuaValue>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 5000; i++) {
+            LuaValue key = keys[random.nextInt(keys.length)];
+            LuaValue value = (random.nextInt(3) == 0 ? NIL : LuaValue.valueOf(i));
+            t.set(key, value);
+            if (value.isnil()) {
+                expected.remove(key);
+            } else {
+                expected.put(key, value);
+            }
+        }
+
+        for (LuaValue key : keys) {
+            LuaValue value = expected.get(key);
+            Assert.assertEquals(value != null ? value : NIL, t.get(key));
+        }
+        Assert.assertEquals(expected.size(), t.keyCount());
+    }
 }
@@ -0,0 +1,82 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaBoolean.TRUE;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TableShapeTest {
+
+    /** Tables with the same string keys added in the same order share their shape */
+    @Test
+    public void sharedShape() {
+        LuaTable a = newObject("x", "y", "hp");
+        LuaTable b = newObject("x", "y", "hp");
+        Assert.assertNotNull(a.shape);
+        Assert.assertSame(a.shape, b.shape);
+        Assert.assertSame(a.hashKeys, b.hashKeys);
+        Assert.assertNotSame(a.shape, newObject("y", "x", "hp").shape);
+
+        Assert.assertEquals(2, b.get("y").toint());
+        Assert.assertEquals(NIL, b.get("z"));
+    }
+
+    /** Removed keys stay part of the shape, and can be added again */
+    @Test
+    public void removeKey() {
+        LuaTable t = newObject("x", "y", "hp");
+        TableShape shape = t.shape;
+
+        t.set("y", NIL);
+        Assert.assertSame(shape, t.shape);
+        Assert.assertEquals(NIL, t.get("y"));
+        Assert.assertEquals(2, t.keyCount());
+
+        t.set("y", LuaValue.valueOf(10));
+        Assert.assertSame(shape, t.shape);
+        Assert.assertEquals(10, t.get("y").toint());
+        Assert.assertEquals(3, t.keyCount());
+    }
+
+    /** Non-string keys and too many keys switch to a regular hash part */
+    @Test
+    public void leaveShape() {
+        LuaTable t = newObject("x", "y");
+        t.set(LuaValue.valueOf(0.5), TRUE);
+        Assert.assertNull(t.shape);
+        Assert.assertEquals(1, t.get("x").toint());
+        Assert.assertEquals(TRUE, t.get(LuaValue.valueOf(0.5)));
+
+        String[] keys = new String[TableShape.MAX_KEYS + 1];
+        for (int n = 0; n < keys.length; n++) {
+            keys[n] = "k" + n;
+        }
+        t = newObject(keys);
+        Assert.assertNull(t.shape);
+        for (int n = 0; n < keys.length; n++) {
+            Assert.assertEquals(n + 1, t.get(keys[n]).toint());
+        }
+    }
+
+    /** Integer keys that fit in the array part don't affect the shape */
+    @Test
+    public void arrayPart() {
+        LuaTable t = newObject("x", "y");
+        TableShape shape = t.shape;
+        for (int n = 1; n <= 10; n++) {
+            t.set(n, LuaValue.valueOf(n));
+        }
+        Assert.assertSame(shape, t.shape);
+        Assert.assertEquals(10, t.length());
+    }
+
+    private static LuaTable newObject(String... keys) {
+        LuaTable t = new LuaTable();
+        for (int n = 0; n < keys.length; n++) {
+            t.set(keys[n], LuaValue.valueOf(n + 1));
+        }
+        return t;
+    }
+
+}
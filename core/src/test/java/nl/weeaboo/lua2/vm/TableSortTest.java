@@ -0,0 +1,145 @@
+package nl.weeaboo.lua2.vm;
+
+import static nl.weeaboo.lua2.vm.LuaBoolean.FALSE;
+import static nl.weeaboo.lua2.vm.LuaBoolean.TRUE;
+import static nl.weeaboo.lua2.vm.LuaNil.NIL;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.weeaboo.lua2.AbstractLuaTest;
+import nl.weeaboo.lua2.lib.TwoArgFunction;
+
+public class TableSortTest extends AbstractLuaTest {
+
+    private final Random random = new Random(1);
+
+    /** Lists of only numbers, boxed and unboxed */
+    @Test
+    public void sortNumbers() {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 1000; i++) {
+            t.set(i, (i % 3 == 0 ? LuaValue.valueOf(random.nextInt(100)) : LuaValue.valueOf(random.nextDouble())));
+        }
+        LuaTable boxed = copy(t);
+        boxed.set("n", LuaValue.valueOf("x"));
+        boxed.set(1, LuaValue.valueOf("x"));
+        boxed.set(1, t.get(1));
+
+        t.sort(NIL);
+        boxed.sort(NIL);
+        assertSorted(t, 1000, NIL);
+        assertSorted(boxed, 1000, NIL);
+        for (int i = 1; i <= 1000; i++) {
+            Assert.assertEquals(t.get(i), boxed.get(i));
+        }
+        Assert.assertTrue(t.get(1).isinttype());
+    }
+
+    @Test
+    public void sortStrings() {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 1000; i++) {
+            t.set(i, LuaValue.valueOf("s" + random.nextInt(500)));
+        }
+        t.set(1, LuaValue.valueOf("é")); // Compared as bytes, like the < operator
+        t.set(2, LuaValue.valueOf(""));
+
+        t.sort(NIL);
+        assertSorted(t, 1000, NIL);
+        Assert.assertEquals(LuaValue.valueOf(""), t.get(1));
+    }
+
+    /** Every value is compared by the comparator, calling it less often than a heap sort */
+    @Test
+    public void sortComparator() {
+        CountingComparator greater = new CountingComparator();
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 1000; i++) {
+            t.set(i, LuaValue.valueOf(random.nextInt(1000)));
+        }
+
+        t.sort(greater);
+        Assert.assertTrue(greater.calls < 10000);
+        assertSorted(t, 1000, greater);
+
+        // Sorted input only needs a linear number of comparisons
+        greater.calls = 0;
+        t.sort(greater);
+        Assert.assertTrue(greater.calls < 1000);
+    }
+
+    /** The table is left unchanged when a comparison fails */
+    @Test
+    public void compareError() {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 100; i++) {
+            t.set(i, LuaValue.valueOf(101 - i));
+        }
+        t.set(50, LuaValue.valueOf("x"));
+
+        try {
+            t.sort(NIL);
+            Assert.fail();
+        } catch (LuaError e) {
+            // Expected
+        }
+        Assert.assertEquals(LuaValue.valueOf("x"), t.get(50));
+        for (int i = 1; i <= 100; i++) {
+            if (i != 50) {
+                Assert.assertEquals(101 - i, t.get(i).toint());
+            }
+        }
+    }
+
+    /** An invalid order function results in an arbitrary order */
+    @Test
+    public void invalidOrderFunction() {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 100; i++) {
+            t.set(i, LuaValue.valueOf(random.nextInt(10)));
+        }
+        t.sort(new TwoArgFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public LuaValue call(LuaValue a, LuaValue b) {
+                return random.nextBoolean() ? TRUE : FALSE;
+            }
+        });
+        Assert.assertEquals(100, t.length());
+    }
+
+    private static LuaTable copy(LuaTable t) {
+        LuaTable result = new LuaTable();
+        for (int i = 1; i <= t.length(); i++) {
+            result.set(i, t.get(i));
+        }
+        return result;
+    }
+
+    private static void assertSorted(LuaTable t, int length, LuaValue cmpfunc) {
+        Assert.assertEquals(length, t.length());
+        for (int i = 1; i < length; i++) {
+            LuaValue a = t.get(i);
+            LuaValue b = t.get(i + 1);
+            Assert.assertFalse(cmpfunc.isnil() ? b.lt_b(a) : cmpfunc.call(b, a).toboolean());
+        }
+    }
+
+    private static final class CountingComparator extends TwoArgFunction {
+
+        private static final long serialVersionUID = 1L;
+
+        int calls;
+
+        @Override
+        public LuaValue call(LuaValue a, LuaValue b) {
+            calls++;
+            return a.gt_b(b) ? TRUE : FALSE;
+        }
+    }
+
+}
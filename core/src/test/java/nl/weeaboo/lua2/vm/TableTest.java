@@ -292,6 +292,64 @@ public class TableTest {
         }
     }
 
+    /** Appending to an object-like table grows the array part directly */
+    @Test
+    public void testAppendLuaLength() {
+        LuaTable t = newTable();
+        t.set("name", LuaValue.valueOf("queue"));
+
+        for (int i = 1; i <= 100; ++i) {
+            t.set(t.length() + 1, LuaValue.valueOf(i));
+            Assert.assertEquals(i, t.length());
+        }
+        Assert.assertTrue(t.getArrayLength() >= 100);
+        Assert.assertTrue(t.getArrayLength() <= 128);
+        Assert.assertEquals(1, t.hashEntries);
+
+        // Removing from the end, and a hole in the array part
+        for (int i = 100; i > 90; --i) {
+            t.set(i, NIL);
+            Assert.assertEquals(i - 1, t.length());
+        }
+        t.set(50, NIL);
+        int n = t.length();
+        Assert.assertTrue(n == 49 || n == 90);
+    }
+
+    /** Lists of numbers are stored unboxed until a different value is stored */
+    @Test
+    public void testNumberList() {
+        LuaTable t = newTable();
+        for (int i = 1; i <= 100; ++i) {
+            t.set(i, (i % 2 == 0 ? LuaValue.valueOf(100 - i) : LuaValue.valueOf(i + .5)));
+        }
+        t.set("n", LuaValue.valueOf(100));
+        Assert.assertEquals(100, t.length());
+        Assert.assertEquals(LuaValue.valueOf(98), t.get(2));
+        Assert.assertEquals(LuaValue.valueOf(3.5), t.get(LuaValue.valueOf(3)));
+        Assert.assertEquals(NIL, t.get(101));
+        Assert.assertEquals(101, t.keyCount());
+
+        t.sort(NIL);
+        for (int i = 1; i < 100; ++i) {
+            Assert.assertTrue(t.get(i).lteq_b(t.get(i + 1)));
+        }
+        Assert.assertEquals(LuaValue.valueOf(0), t.unpack(1, 3).arg1());
+        Assert.assertTrue(t.get(1).isinttype());
+
+        // Removing from the end
+        t.set(100, NIL);
+        t.set(99, NIL);
+        Assert.assertEquals(98, t.length());
+
+        // Storing something else keeps the existing values
+        t.set(50, LuaValue.valueOf("x"));
+        Assert.assertEquals(98, t.length());
+        Assert.assertEquals(LuaValue.valueOf("x"), t.get(50));
+        Assert.assertEquals(LuaValue.valueOf(0), t.get(1));
+        Assert.assertEquals(99, t.keyCount());
+    }
+
     private static final void compareLists(LuaTable t, List<? extends LuaValue> v) {
         int n = v.size();
         Assert.assertEquals(v.size(), t.length());
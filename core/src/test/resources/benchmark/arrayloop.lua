@@ -0,0 +1,19 @@
+-- Numeric for loops over a large array
+
+local n = 100000
+local t = {}
+for i = 1, n do
+    t[i] = i
+end
+
+local sum = 0
+for pass = 1, 10 do
+    for i = 1, n do
+        sum = sum + t[i]
+    end
+    for i = n, 1, -2 do
+        sum = sum - t[i]
+    end
+end
+
+return sum
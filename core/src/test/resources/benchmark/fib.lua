@@ -0,0 +1,11 @@
+
+-- Recursive Fibonacci, dominated by Lua-to-Lua call overhead
+
+local function fib(n)
+    if n < 2 then
+        return n
+    end
+    return fib(n - 1) + fib(n - 2)
+end
+
+return fib(27)
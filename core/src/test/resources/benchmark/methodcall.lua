@@ -0,0 +1,43 @@
+
+-- Object-oriented code, dominated by method calls through a metatable
+
+local Counter = {}
+Counter.__index = Counter
+
+function Counter.new()
+    return setmetatable({ value = 0 }, Counter)
+end
+
+function Counter:get()
+    return self.value
+end
+
+function Counter:add(n)
+    self.value = self:get() + n
+    return self
+end
+
+local Toggle = setmetatable({}, { __index = Counter })
+Toggle.__index = Toggle
+
+function Toggle.new()
+    local self = Counter.new()
+    self.state = false
+    return setmetatable(self, Toggle)
+end
+
+function Toggle:flip()
+    self.state = not self.state
+    return self.state
+end
+
+local counter = Counter.new()
+local toggle = Toggle.new()
+for i = 1, 200000 do
+    counter:add(1)
+    if toggle:flip() then
+        toggle:add(2)
+    end
+end
+
+return counter:get() + toggle:get()
@@ -0,0 +1,17 @@
+
+-- Calls to Java library functions with few arguments
+
+local floor, max, sub, type, rawget = math.floor, math.max, string.sub, type, rawget
+
+local str = "The quick brown fox jumps over the lazy dog"
+local t = { 1, 2, 3 }
+local total = 0
+for i = 1, 200000 do
+    local n = floor(i / 3)
+    total = max(total, n)
+    if type(sub(str, i % 40, i % 40 + 2)) == "string" then
+        total = total + rawget(t, i % 3 + 1)
+    end
+end
+
+return total
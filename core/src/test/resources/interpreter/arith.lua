@@ -0,0 +1,25 @@
+-- Each operator is compiled to its own opcode, the operands are always registers
+
+function arith(a, b)
+    return a + b, a - b, a * b, a / b, a % b, a ^ b
+end
+
+function compare(a, b)
+    return a == b, a < b, a <= b
+end
+
+-- Constant operands
+local x = 3
+constantResult = (x + 1) .. "," .. (x - 0.5) .. "," .. (2 * x) .. "," .. (x / 2) .. "," .. (x % 2) .. "," .. (x ^ 2)
+    .. "," .. tostring(x == 3) .. "," .. tostring(x < 3.5) .. "," .. tostring(x <= 2)
+
+-- Strings are coerced to numbers by arithmetic, and compared as strings
+stringResult = ("10" + 1) .. "," .. (2 * "3") .. "," .. tostring("10" < "9") .. "," .. tostring("1" == 1)
+
+-- Metamethods
+local mt = {
+    __add = function(a, b) return "add" end,
+    __lt = function(a, b) return true end,
+}
+local obj = setmetatable({}, mt)
+metaResult = (obj + 1) .. "," .. (1 + obj) .. "," .. tostring(obj < obj)
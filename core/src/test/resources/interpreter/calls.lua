@@ -0,0 +1,133 @@
+
+local function add(a, b)
+    return a + b
+end
+
+-- Nested Lua-to-Lua calls
+local function sum3(a, b, c)
+    return add(add(a, b), c)
+end
+nestedResult = sum3(1, 2, 3)
+
+-- Multiple results, variable result count (C == 0) and variable arg count (B == 0)
+local function multi()
+    return 1, 2, 3
+end
+multiResult = add(select(2, multi()))
+
+-- Tail calls
+local function countdown(n, acc)
+    if n == 0 then
+        return acc
+    end
+    return countdown(n - 1, acc + n)
+end
+tailcallResult = countdown(100, 0)
+
+-- Fewer/more return values than the caller expects
+local function two()
+    return 1, 2
+end
+local x, y, z = two()
+local w = two()
+returnCountResult = (z == nil and w == 1 and y == 2)
+
+-- Tail calls with missing args and extra (vararg) args
+local function varargTail(a, ...)
+    local t = { ... }
+    return a + select("#", ...) + (t[2] or 0)
+end
+local function missingTail(a, b, c)
+    return c == nil
+end
+local function tailVararg()
+    return varargTail(1, 2, 3, 4)
+end
+local function tailMissing()
+    local junk = 5
+    return missingTail(junk)
+end
+tailVarargResult = tailVararg()
+tailMissingResult = tailMissing()
+
+-- Tail call into a function using the implicit 'arg' table, from a function with more registers
+local function argTail(a, ...)
+    return arg and arg.n, a
+end
+local function tailArg(x, y, z, w)
+    local q, r, s = 1, 2, 3
+    return argTail(x, y, z)
+end
+local argCount, argA = tailArg(1, 2, 3, 4)
+tailArgResult = tostring(argCount) .. "," .. tostring(argA)
+
+-- Tail calls into a function with many registers, at various register stack depths
+local function big(n)
+    local a, b, c, d, e, f, g, h, i, j = n, n, n, n, n, n, n, n, n, n
+    local k, l, m, o, p, q, r, s, t, u = n, n, n, n, n, n, n, n, n, n
+    return a + b + c + d + e + f + g + h + i + j + k + l + m + o + p + q + r + s + t + u
+end
+local function deepTail(n)
+    if n == 0 then
+        return big(1)
+    end
+    local padding1, padding2, padding3, padding4, padding5 = 1, 2, 3, 4, 5
+    return deepTail(n - 1) + padding1 * 0
+end
+local deepTailTotal = 0
+for depth = 1, 40 do
+    deepTailTotal = deepTailTotal + deepTail(depth)
+end
+deepTailResult = deepTailTotal
+
+-- Java functions with 0-3 args and 0-1 results
+local t = { 10, 20 }
+local javaResults = {
+    type(nil),
+    math.max(1, 5, 3),
+    string.sub("hello", 2, 3),
+    rawget(t, 2),
+    select(2, "x", "y"),
+    os.clock() >= 0,
+}
+math.random() -- Result is discarded
+javaCallResult = table.concat(javaResults, ",", 1, 5) .. "," .. tostring(javaResults[6])
+
+-- Errors in nested frames must unwind all frames up to the pcall
+local function fail()
+    error("fail")
+end
+local function callFail()
+    fail()
+    return 1
+end
+local function callstackDepth()
+    local depth = 0
+    while debug.getinfo(depth + 1) do
+        depth = depth + 1
+    end
+    return depth
+end
+local depthBefore = callstackDepth()
+local errors = 0
+for i = 1, 300 do
+    if not pcall(callFail) then
+        errors = errors + 1
+    end
+end
+pcallErrors = errors
+depthChange = callstackDepth() - depthBefore
+afterErrorResult = sum3(4, 5, 6)
+
+-- Yielding from nested frames resumes each caller
+local function yieldingAdd(a, b)
+    yield()
+    return add(a, b)
+end
+local function yieldingSum(n)
+    if n == 0 then
+        return 0
+    end
+    return yieldingAdd(n, yieldingSum(n - 1))
+end
+yieldResult = yieldingSum(5)
@@ -0,0 +1,52 @@
+
+-- Each execution of OP_CLOSURE creates a new closure, scripts can observe closure identity
+
+local function countDistinct(list)
+    local seen, count = {}, 0
+    for _, f in ipairs(list) do
+        if not seen[f] then
+            seen[f] = true
+            count = count + 1
+        end
+    end
+    return count
+end
+
+-- Two evaluations return different closures, also without upvalues or with the same upvalues
+local noUpvalues, sameUpvalues = {}, {}
+local shared = 10
+for i = 1, 5 do
+    noUpvalues[i] = function(x) return x + 1 end
+    sameUpvalues[i] = function(x) return x + shared end
+end
+shared = 20 -- The upvalue is shared, not copied
+local handlers, handlerCount = {}, 0
+for i = 1, 3 do
+    handlers[function() end] = i
+end
+for _ in pairs(handlers) do
+    handlerCount = handlerCount + 1
+end
+distinctResult = countDistinct(noUpvalues) .. "," .. countDistinct(sameUpvalues) .. "," .. sameUpvalues[1](1)
+        .. "," .. handlerCount
+
+-- Each iteration has its own loop variable, so each closure has different upvalues
+local perIteration = {}
+for i = 1, 5 do
+    perIteration[i] = function() return i end
+end
+local sum = 0
+for _, f in ipairs(perIteration) do
+    sum = sum + f()
+end
+perIterationResult = countDistinct(perIteration) .. "," .. sum
+
+-- Changing the environment of one closure doesn't affect closures from other evaluations
+local function makeGetter()
+    return function() return envValue end
+end
+envValue = "global"
+local getter1 = makeGetter()
+setfenv(getter1, { envValue = "custom" })
+local getter2 = makeGetter()
+envResult = tostring(getter1 == getter2) .. "," .. getter1() .. "," .. getter2()
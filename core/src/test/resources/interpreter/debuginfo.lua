@@ -0,0 +1,65 @@
+-- Line numbers must be correct regardless of whether the interpreter runs instrumented
+if instrumented then
+    debug.sethook(function() end, "", 1000000)
+end
+
+local function errorMessage(f, ...)
+    local ok, err = pcall(f, ...)
+    return tostring(err)
+end
+
+-- Error raised by the interpreter itself
+local function arith(x)
+    local y = 1
+    return x + y
+end
+arithError = errorMessage(arith, nil)
+
+-- Error raised by a Java function, reported at the line of the call
+local function callError()
+    local a = 1
+    error("boom")
+end
+callErrorResult = errorMessage(callError)
+
+-- Error raised by a function called from a nested Lua function
+local function inner()
+    error("inner", 2)
+end
+local function outer()
+    local x = 1
+    inner()
+end
+nestedError = errorMessage(outer)
+
+-- debug.getinfo of the current function and its caller
+local function lineOf(level)
+    return debug.getinfo(level, "l").currentline
+end
+local function caller()
+    local here = lineOf(2)
+    return here
+end
+currentLine = lineOf(2)
+callerLine = caller()
+
+-- Stack traces
+local function traceInner()
+    local trace = debug.traceback()
+    return trace
+end
+local function traceOuter()
+    local trace = traceInner()
+    return trace
+end
+traceResult = traceOuter()
+
+-- Line hooks, enabled while already running
+local lines = {}
+debug.sethook(function(event, line)
+    lines[#lines + 1] = line
+end, "l")
+local hooked = 1
+hooked = hooked + 1
+debug.sethook()
+lineHookResult = table.concat(lines, ",")
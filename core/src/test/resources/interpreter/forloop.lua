@@ -0,0 +1,53 @@
+-- Numeric for loops, integer loops take a separate path in the interpreter
+
+local function collect(init, limit, step)
+    local t = {}
+    for i = init, limit, step do
+        t[#t + 1] = i
+        if #t > 10 then
+            break
+        end
+    end
+    return table.concat(t, " ")
+end
+
+intResult = collect(1, 5, 1) .. "|" .. collect(5, 1, -2) .. "|" .. collect(1, 0, 1)
+
+-- Fractional limits are rounded towards the initial value
+fractionResult = collect(1, 3.5, 1) .. "|" .. collect(3, -1.5, -2) .. "|" .. collect(1, 0.5, 1)
+
+-- Non-integer init or step use the double path
+doubleResult = collect(0.5, 2, 0.5) .. "|" .. collect(1, 2, 0.25)
+
+-- Loops near the int range must neither overflow nor stop early
+local max = 2147483647
+local count = 0
+for i = max - 2, max do
+    count = count + 1
+end
+local last, beyond
+for i = max - 3, max, 2 do
+    last = i
+end
+for i = max - 3, max + 10, 2 do
+    beyond = i
+end
+boundaryResult = count .. "," .. last .. "," .. beyond
+
+-- Infinite and NaN limits
+nanResult = collect(1, 0/0, 1) .. "|" .. collect(1, math.huge, 1000000000) .. "|" .. collect(1, -math.huge, -1)
+
+-- Changing the visible loop variable doesn't affect the iteration count
+local sum = 0
+for i = 1, 10 do
+    sum = sum + i
+    i = i * 100
+end
+modifyResult = sum
+
+-- Large loops leave the small integer cache
+local n = 0
+for i = 1, 100000 do
+    n = n + i
+end
+largeResult = n
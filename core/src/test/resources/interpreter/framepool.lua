@@ -0,0 +1,37 @@
+
+-- Closures created in recycled frames must keep their own upvalues
+local function counter(start)
+    local n = start
+    return function()
+        n = n + 1
+        return n
+    end
+end
+
+local function sum(a, b)
+    return a + b
+end
+
+local c1 = counter(10)
+local c2 = counter(20)
+for i = 1, 100 do
+    -- Reuses the frames and register arrays that were used by the counter() calls
+    sum(i, i)
+end
+c1()
+c2()
+counterResult = c1() + c2()
+
+-- Open upvalues must remain valid while their frame is suspended (and serialized)
+function yieldingFunc()
+    local x = 1
+    local inc = function()
+        x = x + 1
+    end
+    inc()
+    yield()
+    inc()
+    yieldResult = x
+end
+
+yieldingFunc()
@@ -0,0 +1,70 @@
+-- Each GETGLOBAL/SETGLOBAL instruction caches the slot it used last time
+
+local function readCounter()
+    return counter
+end
+
+local function bumpCounter()
+    counter = counter + 1
+end
+
+-- Reassignment and removal of a cached global
+counter = 0
+for n = 1, 10 do
+    bumpCounter()
+end
+local before = readCounter()
+counter = nil
+globalRemovedResult = (before == 10 and readCounter() == nil)
+
+-- Number slots are replaced when storing a non-number
+counter = 1
+bumpCounter()
+counter = "str"
+globalTypeResult = readCounter()
+
+-- Rehash while a slot is cached
+counter = 5
+readCounter()
+for n = 1, 200 do
+    _G["filler" .. n] = n
+end
+bumpCounter()
+globalRehashResult = readCounter()
+
+-- setfenv: the cache must not return values from the previous environment
+local function readEnv()
+    return envValue
+end
+envValue = "global"
+local a = readEnv()
+setfenv(readEnv, { envValue = "custom" })
+local b = readEnv()
+setfenv(readEnv, _G)
+envResult = a .. "," .. b .. "," .. readEnv()
+
+-- Environment inheriting from _G through __index, shadowed by own keys
+local function inherited()
+    return envValue
+end
+local env = setmetatable({}, { __index = _G })
+setfenv(inherited, env)
+local c = inherited()
+envValue = "changed"
+local d = inherited()
+env.envValue = "own"
+local e = inherited()
+env.envValue = nil
+inheritResult = c .. "," .. d .. "," .. e .. "," .. inherited()
+
+-- Environment with __newindex: new globals go through the metamethod, existing ones don't
+local log = {}
+local function writer(v)
+    logged = v
+end
+local proxyEnv = setmetatable({}, { __newindex = function(t, k, v) log[#log + 1] = k; rawset(t, k, v) end })
+setfenv(writer, proxyEnv)
+writer(1)
+writer(2)
+writer(3)
+newindexResult = #log .. "," .. proxyEnv.logged
@@ -0,0 +1,59 @@
+-- Functions that run for a long time, started as separate threads by InstructionLimitTest
+
+function countLoop(n)
+    for i = 1, n do
+        count = i
+    end
+    loopDone = true
+end
+
+function whileLoop()
+    local n = 0
+    while true do
+        n = n + 1
+    end
+end
+
+local function recurse(n)
+    if n == 0 then
+        return 0
+    end
+    return 1 + recurse(n - 1)
+end
+
+function recursion(n)
+    recursionResult = recurse(n)
+end
+
+function xpcallLoop()
+    local ok, err = xpcall(whileLoop, function(err) return err end)
+    xpcallResult = err
+end
+
+function pcallCount(n)
+    pcallOk = pcall(countLoop, n)
+end
+
+-- Loops entering a new frame on each iteration, the limit may run out while entering the frame
+local function noop()
+end
+
+function pcallLoop()
+    local ok, err = pcall(function()
+        for i = 1, 1e9 do
+            pcall(noop)
+        end
+    end)
+    pcallLoopResult = err
+end
+
+local indexed = setmetatable({}, { __index = function(t, k) return k end })
+
+function indexLoop()
+    local ok, err = pcall(function()
+        for i = 1, 1e9 do
+            local x = indexed.x
+        end
+    end)
+    indexLoopResult = err
+end
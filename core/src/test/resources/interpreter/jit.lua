@@ -0,0 +1,97 @@
+-- Hot functions are compiled, they must behave exactly like the interpreted code
+
+local meta = {
+    __add = function(a, b) return 1 end,
+    __index = function(t, k) return k .. "!" end,
+}
+local obj = setmetatable({}, meta)
+
+function arith(n)
+    local i, d, m = 0, 0.5, 0
+    local s = ""
+    for x = 1, n do
+        i = i + x * 2 - 1
+        d = d / 2 + x ^ 0.5
+        m = (m + x % 7 - -x) % 1000
+        if x % 100 == 0 then
+            s = s .. x
+        end
+    end
+    local o = 0
+    for x = 1, n, 0.5 do
+        o = o + (obj + x)
+    end
+    return i .. "," .. d .. "," .. m .. "," .. s .. "," .. o
+end
+
+local counter = 0
+function tables(n)
+    local t = { 1, 2, 3 }
+    local u = {}
+    local found = 0
+    for x = 1, n do
+        t.value = x
+        u[x] = t.value + #t
+        counter = counter + 1
+        shared = (shared or 0) + 1
+        if u[x] == x + 3 and not (x > n) and x <= n then
+            found = found + 1
+        end
+        local flag = x ~= 5 or nil
+        if flag == nil then
+            found = found - 1
+        end
+    end
+    return found .. "," .. #u .. "," .. counter .. "," .. shared .. "," .. obj.name
+end
+
+function whileLoop(n)
+    local x = 0
+    while x < n do
+        x = x + 1
+        count = x
+    end
+    loopDone = true
+end
+
+-- Metamethods called from compiled code see the line number of the calling instruction
+local probe = setmetatable({}, {
+    __add = function(a, b)
+        probeLine = debug.getinfo(2, "l").currentline
+        return 0
+    end
+})
+function lineAt(n)
+    local v = 0
+    for x = 1, 2000 do
+        if x == n then
+            v = v + probe
+        end
+        v = v + 1
+    end
+    return v
+end
+
+-- Intermediate results of arithmetic expressions aren't stored in registers
+function numbers(n)
+    local sum, count, zero = 0, 0, 0
+    local str = "3"
+    local nan = 0 / 0
+    for x = 1, n do
+        sum = sum + (x * 2 + 1) / 4 - x % 3 ^ 2
+        if x * 2 - 1 < n and -(x + 1) <= -2 then
+            count = count + 1
+        end
+        if not (nan + x < 0) and not (x - nan >= 0) then
+            count = count + 1
+        end
+        zero = 1 / (0 * -x)
+        sum = sum + (str * 2 - x) % 5 - (obj + x) * 2
+    end
+    return sum .. "," .. count .. "," .. zero
+end
+
+arithResult = arith(5000)
+tablesResult = tables(5000)
+lineResult = lineAt(1500)
+numbersResult = numbers(5000)
@@ -0,0 +1,102 @@
+
+-- Lua functions called through pcall, generic for loops and metamethods run in the interpreter loop
+
+local function add(a, b)
+    return a + b
+end
+local function fail(message)
+    error(message, 0)
+end
+
+-- Results of pcall, errors in nested frames are caught by the innermost pcall
+local function nestedFail()
+    local ok, err = pcall(fail, "inner")
+    return ok, err, add(1, 2)
+end
+local ok1, sum = pcall(add, 2, 3)
+local ok2, err2 = pcall(fail, "outer")
+local ok3, ok4, err4, three = pcall(nestedFail)
+pcallResult = table.concat({ tostring(ok1), sum, tostring(ok2), err2, tostring(ok3), tostring(ok4), err4, three },
+        ",")
+
+-- Non-Lua errors get the same message as when they're thrown in a Java function
+local ok5, err5 = pcall(function() return nil .. "x" end)
+pcallTypeError = (not ok5 and type(err5) == "string")
+
+-- Java errors (such as running out of memory) are caught as well, throwError is set by the test
+local okError, errError = pcall(function() throwError() end)
+pcallJavaError = tostring(okError) .. "," .. errError
+
+-- A function called through pcall may yield
+local function yieldingAdd(a, b)
+    yield()
+    return add(a, b)
+end
+local ok6, sum6 = pcall(yieldingAdd, 4, 5)
+pcallYieldResult = (ok6 and sum6 == 9)
+
+-- Iterator functions written in Lua, including a break and an error inside the iterator
+local function range(n)
+    return function(_, i)
+        if i < n then
+            return i + 1, (i + 1) * 2
+        end
+    end, nil, 0
+end
+local total = 0
+for i, double in range(10) do
+    total = total + i + double
+end
+for i in range(10) do
+    if i == 3 then
+        break
+    end
+    total = total + 100
+end
+iteratorResult = total
+
+local function failingRange()
+    return function(_, i)
+        if i == 3 then
+            error("iterator failed", 0)
+        end
+        return i + 1
+    end, nil, 0
+end
+local iterations = 0
+local ok7, err7 = pcall(function()
+    for i in failingRange() do
+        iterations = iterations + 1
+    end
+end)
+iteratorErrorResult = tostring(ok7) .. "," .. err7 .. "," .. iterations
+
+-- __index, __newindex and __call metamethods written in Lua
+local log = {}
+local proxy = setmetatable({}, {
+    __index = function(t, k)
+        return k .. "!"
+    end,
+    __newindex = function(t, k, v)
+        log[#log + 1] = k .. "=" .. v
+        rawset(t, k, v)
+    end,
+    __call = function(self, a, b)
+        return a * b, self
+    end,
+})
+proxy.x = 1
+proxy.x = 2 -- Raw set, doesn't call __newindex
+local product, self = proxy(6, 7)
+metamethodResult = table.concat({ proxy.name, proxy["key"], proxy.x, log[1], tostring(log[2]), product,
+        tostring(self == proxy) }, ",")
+
+-- Nested protected calls, the error at the bottom is caught by the innermost one
+local function deepPcall(n)
+    if n == 0 then
+        fail(0)
+    end
+    local ok, result = pcall(deepPcall, n - 1)
+    return result + 1
+end
+deepPcallResult = deepPcall(100)
@@ -0,0 +1,66 @@
+-- Quickened instructions must behave like the original instructions, also after deoptimization
+
+local function add1(x)
+    return x + 1
+end
+local function sub1(x)
+    return x - 1
+end
+
+local meta = {
+    __add = function(a, b) return "add" end,
+    __sub = function(a, b) return "sub" end,
+}
+local obj = setmetatable({}, meta)
+
+local results = {}
+for _, v in ipairs({ 1, 2147483647, -2147483648, 0.5, "5", obj, 3 }) do
+    results[#results + 1] = tostring(add1(v)) .. "/" .. tostring(sub1(v))
+end
+arithResult = table.concat(results, ",")
+
+-- Comparison with a constant string
+local function isAbc(x)
+    return x == "abc"
+end
+local function notAbc(x)
+    return x ~= "abc"
+end
+results = {}
+for _, v in ipairs({ "abc", "ab" .. "c", "abd", 1, obj, false }) do
+    results[#results + 1] = tostring(isAbc(v)) .. "/" .. tostring(notAbc(v))
+end
+eqResult = table.concat(results, ",")
+
+-- Call sites that first call a Java function, then a Lua function (and the other way around)
+local function luaUpper(s)
+    return "lua:" .. s
+end
+local function callWith(f, arg)
+    return f(arg)
+end
+callResult = table.concat({
+    callWith(string.upper, "a"),
+    callWith(luaUpper, "b"),
+    callWith(string.upper, "c"),
+    callWith(tostring, 4),
+}, ",")
+
+local function callLuaFirst(f, arg)
+    return (f(arg))
+end
+callResult2 = table.concat({
+    callLuaFirst(luaUpper, "a"),
+    callLuaFirst(string.upper, "b"),
+}, ",")
+
+-- Constant string keys, on tables and other values
+local t = { key = "value" }
+local function getKey(x)
+    return x.key
+end
+local stringMeta = getmetatable("")
+stringMeta.__index.key = "string"
+results = { getKey(t), getKey("s"), getKey(setmetatable({}, { __index = t })) }
+stringMeta.__index.key = nil
+getResult = table.concat(results, ",")
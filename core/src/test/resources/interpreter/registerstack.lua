@@ -0,0 +1,42 @@
+
+-- Deep recursion with many registers per frame, spanning multiple register stack segments
+local captured = {}
+
+local function deep(n)
+    local a, b, c, d, e, f, g, h = n, n + 1, n + 2, n + 3, n + 4, n + 5, n + 6, n + 7
+    local i, j, k, l, m, o, p, q = a, b, c, d, e, f, g, h
+
+    -- Closure keeps open upvalues in this frame
+    captured[n] = function()
+        return a + q
+    end
+
+    if n > 1 then
+        local r = deep(n - 1)
+        -- Locals must be intact after the callee returns
+        return r + a + (b + c + d + e + f + g + h) - (j + k + l + m + o + p + q)
+    end
+    yield()
+    return 0
+end
+
+deepResult = deep(60)
+
+capturedSum = 0
+for n = 1, 60 do
+    capturedSum = capturedSum + captured[n]()
+end
+
+-- Arguments passed in-place, including varargs which overlap with the callee's registers
+local function va(a, b, ...)
+    local x, y, z = 1, 2, 3
+    return a + b + select("#", ...) + select(2, ...)
+end
+varargResult = va(1, 2, 10, 20, 30)
+
+-- Missing params are nil, even if the caller's registers contained garbage
+local function missing(a, b, c)
+    return c == nil
+end
+local junk1, junk2, junk3, junk4 = 1, 2, 3, 4
+missingResult = missing(junk1)